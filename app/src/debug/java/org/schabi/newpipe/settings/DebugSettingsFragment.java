@@ -1,14 +1,30 @@
 package org.schabi.newpipe.settings;
 
+import android.content.Context;
 import android.os.Bundle;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
+import androidx.preference.Preference;
 
 import org.schabi.newpipe.R;
+import org.schabi.newpipe.player.helper.MediaCache;
+import org.schabi.newpipe.player.helper.StartupTracer;
+import org.schabi.newpipe.util.ShareUtils;
 
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.CompositeDisposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 import leakcanary.LeakCanary;
 
+import static us.shandian.giga.util.Utility.formatBytes;
+
 public class DebugSettingsFragment extends BasePreferenceFragment {
+    private final CompositeDisposable disposables = new CompositeDisposable();
+    private Preference mediaCachePreference;
+
     @Override
     public void onCreate(@Nullable final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -18,10 +34,52 @@ public class DebugSettingsFragment extends BasePreferenceFragment {
                     startActivity(LeakCanary.INSTANCE.newLeakDisplayActivityIntent());
                     return true;
                 });
+
+        findPreference(getString(R.string.export_startup_traces_key))
+                .setOnPreferenceClickListener(preference -> {
+                    ShareUtils.shareText(requireContext(),
+                            getString(R.string.export_startup_traces_title),
+                            StartupTracer.getInstance().export());
+                    return true;
+                });
+
+        mediaCachePreference = findPreference(getString(R.string.media_cache_statistics_key));
+        mediaCachePreference.setOnPreferenceClickListener(preference -> {
+            final Context appContext = requireContext().getApplicationContext();
+            disposables.add(Completable.fromAction(() ->
+                    MediaCache.getInstance(appContext).clear())
+                    .subscribeOn(Schedulers.io())
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(this::updateMediaCacheStatistics,
+                            throwable -> Log.e(TAG, "Unable to clear the media cache",
+                                    throwable)));
+            return true;
+        });
+        updateMediaCacheStatistics();
     }
 
     @Override
     public void onCreatePreferences(final Bundle savedInstanceState, final String rootKey) {
         addPreferencesFromResource(R.xml.debug_settings);
     }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        disposables.clear();
+    }
+
+    private void updateMediaCacheStatistics() {
+        // the cache is opened if no player did it yet, which reads the disk
+        final Context appContext = requireContext().getApplicationContext();
+        disposables.add(Single.fromCallable(() -> MediaCache.getInstance(appContext))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(cache -> mediaCachePreference.setSummary(getString(
+                        R.string.media_cache_statistics_summary,
+                        formatBytes(cache.getCacheSize()), cache.getHits(), cache.getMisses(),
+                        formatBytes(cache.getBytesSaved()),
+                        formatBytes(cache.getBytesFromNetwork()))),
+                        throwable -> Log.e(TAG, "Unable to open the media cache", throwable)));
+    }
 }
@@ -67,8 +67,16 @@ import java.util.Locale;
 
 import icepick.Icepick;
 import icepick.State;
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.disposables.CompositeDisposable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import us.shandian.giga.get.DownloadMission;
+import us.shandian.giga.get.FinishedMission;
 import us.shandian.giga.get.MissionRecoveryInfo;
+import us.shandian.giga.get.SegmentPlaylist;
 import us.shandian.giga.io.StoredDirectoryHelper;
 import us.shandian.giga.io.StoredFileHelper;
 import us.shandian.giga.postprocessing.Postprocessing;
@@ -106,6 +114,9 @@ public class DownloadDialog extends DialogFragment
     private ActionMenuItemView okButton = null;
     private Context context;
     private boolean askForSavePath;
+    private boolean ignoreExistingDownload = false;
+    @Nullable
+    private Disposable existingDownloadCheck = null;
 
     private StreamItemAdapter<AudioStream, Stream> audioStreamsAdapter;
     private StreamItemAdapter<VideoStream, AudioStream> videoStreamsAdapter;
@@ -602,7 +613,121 @@ public class DownloadDialog extends DialogFragment
         );
     }
 
+    /**
+     * Looks for a previous download of the selected streams, if the file still exists the user
+     * can use it instead of downloading the same streams again. The files are checked in
+     * background, the download goes on if there is none.
+     *
+     * @return {@code true} if the check was started, otherwise, {@code false}
+     */
+    private boolean checkExistingDownload() {
+        final Stream selectedStream;
+        Stream secondaryStream = null;
+        long expectedLength;
+
+        switch (dialogBinding.videoAudioGroup.getCheckedRadioButtonId()) {
+            case R.id.audio_button:
+                final AudioStream audioStream = audioStreamsAdapter.getItem(selectedAudioIndex);
+                selectedStream = audioStream;
+                expectedLength = wrappedAudioStreams.getSizeInBytes(audioStream);
+                break;
+            case R.id.video_button:
+                final VideoStream videoStream = videoStreamsAdapter.getItem(selectedVideoIndex);
+                selectedStream = videoStream;
+                expectedLength = wrappedVideoStreams.getSizeInBytes(videoStream);
+
+                final SecondaryStreamHelper<AudioStream> secondary = videoStreamsAdapter
+                        .getAllSecondary()
+                        .get(wrappedVideoStreams.getStreamsList().indexOf(videoStream));
+
+                if (secondary != null) {
+                    secondaryStream = secondary.getStream();
+                    expectedLength = secondary.getSizeInBytes() > 0 && expectedLength > 0
+                            ? expectedLength + secondary.getSizeInBytes() : 0;
+                }
+                break;
+            default:
+                return false; // subtitles are small, download them again
+        }
+
+        if (existingDownloadCheck != null && !existingDownloadCheck.isDisposed()) {
+            return true; // already checking
+        }
+
+        final MissionRecoveryInfo[] recoveryInfo = secondaryStream == null
+                ? new MissionRecoveryInfo[]{new MissionRecoveryInfo(selectedStream)}
+                : new MissionRecoveryInfo[]{new MissionRecoveryInfo(selectedStream),
+                new MissionRecoveryInfo(secondaryStream)};
+        final String source = currentInfo.getUrl();
+        final String variant = DownloadMission.getVariant(recoveryInfo);
+        final long length = Math.max(expectedLength, 0);
+
+        // queries the database and the storage, and verifies the content of the file
+        existingDownloadCheck = Maybe.fromCallable(() ->
+                downloadManager.findExistingDownload(source, variant, length))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::showExistingDownload, throwable -> {
+                    Log.e(TAG, "Unable to check the previous downloads", throwable);
+                    continueWithoutExistingDownload();
+                }, this::continueWithoutExistingDownload);
+        disposables.add(existingDownloadCheck);
+
+        return true;
+    }
+
+    private void showExistingDownload(@NonNull final FinishedMission existing) {
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.download_dialog_title)
+                .setMessage(getString(R.string.download_already_downloaded,
+                        existing.storage.getName()))
+                .setNegativeButton(android.R.string.cancel, null)
+                .setNeutralButton(R.string.download_show_existing, (dialog, which) ->
+                        verifyExistingDownload(existing))
+                .setPositiveButton(R.string.download_again, (dialog, which) ->
+                        continueWithoutExistingDownload())
+                .create()
+                .show();
+    }
+
+    /**
+     * Shows the existing download if its content is still the one downloaded, otherwise,
+     * downloads the streams again. The whole file is read in background.
+     *
+     * @param existing the previous download of the selected streams
+     */
+    private void verifyExistingDownload(@NonNull final FinishedMission existing) {
+        existingDownloadCheck = Single.fromCallable(() ->
+                downloadManager.isContentIntact(existing))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(isIntact -> {
+                    if (isIntact) {
+                        startActivity(new Intent(context, DownloadActivity.class)
+                                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+                        dismiss();
+                    } else {
+                        Toast.makeText(context, R.string.download_existing_modified,
+                                Toast.LENGTH_LONG).show();
+                        continueWithoutExistingDownload();
+                    }
+                }, throwable -> {
+                    Log.e(TAG, "Unable to verify the previous download", throwable);
+                    continueWithoutExistingDownload();
+                });
+        disposables.add(existingDownloadCheck);
+    }
+
+    private void continueWithoutExistingDownload() {
+        ignoreExistingDownload = true;
+        prepareSelectedDownload();
+    }
+
     private void prepareSelectedDownload() {
+        if (!ignoreExistingDownload && checkExistingDownload()) {
+            return; // continues once the previous downloads are checked
+        }
+
         final StoredDirectoryHelper mainStorage;
         final MediaFormat format;
         final String mime;
@@ -935,8 +1060,14 @@ public class DownloadDialog extends DialogFragment
                     new MissionRecoveryInfo(secondaryStream)};
         }
 
+        // HLS streams are downloaded segment by segment, the flag applies to the whole mission
+        boolean segmented = true;
+        for (final String url : urls) {
+            segmented &= SegmentPlaylist.isPlaylistUrl(url);
+        }
+
         DownloadManagerService.startMission(context, urls, storage, kind, threads,
-                currentInfo.getUrl(), psName, psArgs, nearLength, recoveryInfo);
+                currentInfo.getUrl(), psName, psArgs, nearLength, recoveryInfo, segmented);
 
         dismiss();
     }
@@ -62,6 +62,7 @@ public class HistoryRecordManager {
     private final StreamHistoryDAO streamHistoryTable;
     private final SearchHistoryDAO searchHistoryTable;
     private final StreamStateDAO streamStateTable;
+    private final StreamStateBuffer streamStateBuffer;
     private final SharedPreferences sharedPreferences;
     private final String searchHistoryKey;
     private final String streamHistoryKey;
@@ -72,6 +73,7 @@ public class HistoryRecordManager {
         streamHistoryTable = database.streamHistoryDAO();
         searchHistoryTable = database.searchHistoryDAO();
         streamStateTable = database.streamStateDAO();
+        streamStateBuffer = StreamStateBuffer.getInstance(database);
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         searchHistoryKey = context.getString(R.string.enable_search_history_key);
         streamHistoryKey = context.getString(R.string.enable_watch_history_key);
@@ -103,10 +105,10 @@ public class HistoryRecordManager {
     }
 
     public Completable deleteStreamHistoryAndState(final long streamId) {
-        return Completable.fromAction(() -> {
+        return flushStreamStates().andThen(Completable.fromAction(() -> {
             streamStateTable.deleteState(streamId);
             streamHistoryTable.deleteStreamHistory(streamId);
-        }).subscribeOn(Schedulers.io());
+        }).subscribeOn(Schedulers.io()));
     }
 
     public Single<Integer> deleteWholeStreamHistory() {
@@ -115,8 +117,8 @@ public class HistoryRecordManager {
     }
 
     public Single<Integer> deleteCompleteStreamStateHistory() {
-        return Single.fromCallable(streamStateTable::deleteAll)
-                .subscribeOn(Schedulers.io());
+        return flushStreamStates().andThen(Single.fromCallable(streamStateTable::deleteAll)
+                .subscribeOn(Schedulers.io()));
     }
 
     public Flowable<List<StreamHistoryEntry>> getStreamHistory() {
@@ -210,38 +212,63 @@ public class HistoryRecordManager {
     }
 
     public Maybe<StreamStateEntity> loadStreamState(final PlayQueueItem queueItem) {
-        return queueItem.getStream()
+        return flushStreamStates().andThen(queueItem.getStream()
                 .map((info) -> streamTable.upsert(new StreamEntity(info)))
                 .flatMapPublisher(streamStateTable::getState)
                 .firstElement()
                 .flatMap(list -> list.isEmpty() ? Maybe.empty() : Maybe.just(list.get(0)))
                 .filter(state -> state.isValid((int) queueItem.getDuration()))
-                .subscribeOn(Schedulers.io());
+                .subscribeOn(Schedulers.io()));
     }
 
     public Maybe<StreamStateEntity> loadStreamState(final StreamInfo info) {
-        return Single.fromCallable(() -> streamTable.upsert(new StreamEntity(info)))
+        return flushStreamStates().andThen(Single.fromCallable(() ->
+                streamTable.upsert(new StreamEntity(info)))
                 .flatMapPublisher(streamStateTable::getState)
                 .firstElement()
                 .flatMap(list -> list.isEmpty() ? Maybe.empty() : Maybe.just(list.get(0)))
                 .filter(state -> state.isValid((int) info.getDuration()))
-                .subscribeOn(Schedulers.io());
+                .subscribeOn(Schedulers.io()));
     }
 
+    /**
+     * Saves the progress of a stream right away, along with the progress buffered by
+     * {@link #bufferStreamState(StreamInfo, long)}.
+     *
+     * @param info         the stream
+     * @param progressTime the progress in milliseconds
+     * @return a completable saving the progress
+     */
     public Completable saveStreamState(@NonNull final StreamInfo info, final long progressTime) {
-        return Completable.fromAction(() -> database.runInTransaction(() -> {
-            final long streamId = streamTable.upsert(new StreamEntity(info));
-            final StreamStateEntity state = new StreamStateEntity(streamId, progressTime);
-            if (state.isValid((int) info.getDuration())) {
-                streamStateTable.upsert(state);
-            } else {
-                streamStateTable.deleteState(streamId);
-            }
-        })).subscribeOn(Schedulers.io());
+        return Completable.defer(() -> {
+            streamStateBuffer.put(info, progressTime);
+            return streamStateBuffer.flush();
+        });
+    }
+
+    /**
+     * Buffers the progress of a stream, to be saved later in a single transaction with the
+     * progress of the other streams. Only the latest progress of each stream is saved.
+     * The progress is saved within half a minute, or earlier by {@link #flushStreamStates()},
+     * and always before a stream state is read or deleted through this class.
+     *
+     * @param info         the stream
+     * @param progressTime the progress in milliseconds
+     */
+    public void bufferStreamState(@NonNull final StreamInfo info, final long progressTime) {
+        streamStateBuffer.put(info, progressTime);
+    }
+
+    /**
+     * @return a completable saving the progress buffered by
+     * {@link #bufferStreamState(StreamInfo, long)}
+     */
+    public Completable flushStreamStates() {
+        return streamStateBuffer.flush();
     }
 
     public Single<StreamStateEntity[]> loadStreamState(final InfoItem info) {
-        return Single.fromCallable(() -> {
+        return flushStreamStates().andThen(Single.fromCallable(() -> {
             final List<StreamEntity> entities = streamTable
                     .getStream(info.getServiceId(), info.getUrl()).blockingFirst();
             if (entities.isEmpty()) {
@@ -253,11 +280,11 @@ public class HistoryRecordManager {
                 return new StreamStateEntity[]{null};
             }
             return new StreamStateEntity[]{states.get(0)};
-        }).subscribeOn(Schedulers.io());
+        }).subscribeOn(Schedulers.io()));
     }
 
     public Single<List<StreamStateEntity>> loadStreamStateBatch(final List<InfoItem> infos) {
-        return Single.fromCallable(() -> {
+        return flushStreamStates().andThen(Single.fromCallable(() -> {
             final List<StreamStateEntity> result = new ArrayList<>(infos.size());
             for (final InfoItem info : infos) {
                 final List<StreamEntity> entities = streamTable
@@ -275,12 +302,12 @@ public class HistoryRecordManager {
                 result.add(states.get(0));
             }
             return result;
-        }).subscribeOn(Schedulers.io());
+        }).subscribeOn(Schedulers.io()));
     }
 
     public Single<List<StreamStateEntity>> loadLocalStreamStateBatch(
             final List<? extends LocalItem> items) {
-        return Single.fromCallable(() -> {
+        return flushStreamStates().andThen(Single.fromCallable(() -> {
             final List<StreamStateEntity> result = new ArrayList<>(items.size());
             for (final LocalItem item : items) {
                 final long streamId;
@@ -303,7 +330,7 @@ public class HistoryRecordManager {
                 result.add(states.get(0));
             }
             return result;
-        }).subscribeOn(Schedulers.io());
+        }).subscribeOn(Schedulers.io()));
     }
 
     ///////////////////////////////////////////////////////
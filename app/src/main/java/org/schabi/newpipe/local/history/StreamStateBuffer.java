@@ -0,0 +1,164 @@
+package org.schabi.newpipe.local.history;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.MainActivity;
+import org.schabi.newpipe.database.AppDatabase;
+import org.schabi.newpipe.database.stream.dao.StreamDAO;
+import org.schabi.newpipe.database.stream.dao.StreamStateDAO;
+import org.schabi.newpipe.database.stream.model.StreamEntity;
+import org.schabi.newpipe.database.stream.model.StreamStateEntity;
+import org.schabi.newpipe.extractor.stream.StreamInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * Write-behind buffer of the stream progress, shared by all the {@link HistoryRecordManager}s
+ * of the process.
+ * <p>
+ * The player saves the progress on every pause, seek and stream change, each save used to be
+ * its own transaction. Here only the latest progress of each stream is kept, and all of them
+ * are written in a single transaction at most {@link #FLUSH_DELAY_SECONDS} after the first
+ * change, or earlier when {@link #flush()} is called. The flushes run one after the other on
+ * their own thread, so they are written in the order they were buffered. If a flush fails, its
+ * progress is buffered again, unless a newer one was buffered meanwhile, and written later.
+ * </p>
+ */
+/* package-private */ final class StreamStateBuffer {
+    private static final boolean DEBUG = MainActivity.DEBUG;
+    private static final String TAG = "StreamStateBuffer";
+    private static final long FLUSH_DELAY_SECONDS = 30;
+
+    private static StreamStateBuffer instance;
+
+    private final AppDatabase database;
+    private final StreamDAO streamTable;
+    private final StreamStateDAO streamStateTable;
+    private final Scheduler scheduler = Schedulers.from(Executors.newSingleThreadExecutor());
+
+    /**
+     * The latest progress of every stream, by service and url, guarded by the instance.
+     */
+    private final Map<String, PendingState> pending = new LinkedHashMap<>();
+    private Disposable scheduledFlush;
+
+    private StreamStateBuffer(@NonNull final AppDatabase database) {
+        this.database = database;
+        this.streamTable = database.streamDAO();
+        this.streamStateTable = database.streamStateDAO();
+    }
+
+    @NonNull
+    static synchronized StreamStateBuffer getInstance(@NonNull final AppDatabase database) {
+        if (instance == null) {
+            instance = new StreamStateBuffer(database);
+        }
+        return instance;
+    }
+
+    /**
+     * Buffers the progress of a stream, replacing the one buffered before for the same stream.
+     *
+     * @param info         the stream
+     * @param progressTime the progress in milliseconds
+     */
+    synchronized void put(@NonNull final StreamInfo info, final long progressTime) {
+        pending.put(info.getServiceId() + ":" + info.getUrl(),
+                new PendingState(info, progressTime));
+
+        scheduleFlush();
+    }
+
+    private synchronized void scheduleFlush() {
+        if (scheduledFlush == null) {
+            scheduledFlush = scheduler.scheduleDirect(this::scheduledFlush,
+                    FLUSH_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return a completable writing the buffered progress, completes right away if there is none
+     */
+    @NonNull
+    Completable flush() {
+        return Completable.fromAction(this::flushNow).subscribeOn(scheduler);
+    }
+
+    private void scheduledFlush() {
+        try {
+            flushNow();
+        } catch (final Exception e) {
+            Log.e(TAG, "Unable to save the progress of the streams", e);
+        }
+    }
+
+    private void flushNow() {
+        final Map<String, PendingState> states;
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.dispose();
+                scheduledFlush = null;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            states = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "flushNow() called, saving " + states.size() + " stream states");
+        }
+        try {
+            database.runInTransaction(() -> {
+                for (final PendingState pendingState : states.values()) {
+                    final long streamId = streamTable.upsert(new StreamEntity(pendingState.info));
+                    final StreamStateEntity state
+                            = new StreamStateEntity(streamId, pendingState.progressTime);
+                    if (state.isValid((int) pendingState.info.getDuration())) {
+                        streamStateTable.upsert(state);
+                    } else {
+                        streamStateTable.deleteState(streamId);
+                    }
+                }
+            });
+        } catch (final RuntimeException e) {
+            restore(states);
+            throw e;
+        }
+    }
+
+    /**
+     * Buffers again the progress which could not be written, the progress buffered meanwhile is
+     * newer and is kept instead. Another flush is scheduled.
+     *
+     * @param states the progress which could not be written, by stream
+     */
+    private synchronized void restore(@NonNull final Map<String, PendingState> states) {
+        final Map<String, PendingState> newer = new LinkedHashMap<>(pending);
+        pending.clear();
+        pending.putAll(states);
+        pending.putAll(newer);
+        scheduleFlush();
+    }
+
+    private static final class PendingState {
+        private final StreamInfo info;
+        private final long progressTime;
+
+        PendingState(@NonNull final StreamInfo info, final long progressTime) {
+            this.info = info;
+            this.progressTime = progressTime;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -100,10 +101,13 @@ import org.schabi.newpipe.player.event.PlayerGestureListener;
 import org.schabi.newpipe.player.event.PlayerServiceEventListener;
 import org.schabi.newpipe.player.helper.AudioReactor;
 import org.schabi.newpipe.player.helper.LoadController;
+import org.schabi.newpipe.player.helper.MediaCache;
+import org.schabi.newpipe.player.helper.MediaPrefetcher;
 import org.schabi.newpipe.player.helper.MediaSessionManager;
 import org.schabi.newpipe.player.helper.PlaybackParameterDialog;
 import org.schabi.newpipe.player.helper.PlayerDataSource;
 import org.schabi.newpipe.player.helper.PlayerHelper;
+import org.schabi.newpipe.player.helper.StartupTracer;
 import org.schabi.newpipe.player.playback.CustomTrackSelector;
 import org.schabi.newpipe.player.playback.MediaSourceManager;
 import org.schabi.newpipe.player.playback.PlaybackListener;
@@ -128,6 +132,7 @@ import org.schabi.newpipe.views.ExpandableSurfaceView;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -241,6 +246,20 @@ public class Player implements
 
     private static final int RENDERER_UNAVAILABLE = -1;
 
+    /**
+     * How many streams after the current one have their cached media pinned.
+     */
+    private static final int PINNED_QUEUE_SIZE = 2;
+
+    /**
+     * Two stalls within this time lower the quality, when it adapts to the connection.
+     */
+    private static final long STALL_WINDOW_MILLIS = 30_000;
+    /**
+     * Buffering within this time from a seek is caused by the seek, not by the connection.
+     */
+    private static final long SEEK_BUFFERING_MILLIS = 1_000;
+
     /*//////////////////////////////////////////////////////////////////////////
     // Playback
     //////////////////////////////////////////////////////////////////////////*/
@@ -269,8 +288,11 @@ public class Player implements
     @NonNull private final LoadController loadController;
     @NonNull private final RenderersFactory renderFactory;
 
+    @NonNull private final DefaultBandwidthMeter bandwidthMeter;
     @NonNull private final VideoPlaybackResolver videoResolver;
     @NonNull private final AudioPlaybackResolver audioResolver;
+    @NonNull private final MediaPrefetcher prefetcher;
+    @NonNull private final MediaCache mediaCache;
 
     private final MainPlayer service; //TODO try to remove and replace everything with context
 
@@ -284,6 +306,8 @@ public class Player implements
     // audio only mode does not mean that player type is background, but that the player was
     // minimized to background but will resume automatically to the original player type
     private boolean isAudioOnly = false;
+    private long lastStallMillis = 0;
+    private long lastSeekMillis = 0;
     private boolean isPrepared = false;
     private boolean wasPlaying = false;
     private boolean isFullscreen = false;
@@ -389,13 +413,17 @@ public class Player implements
         setupBroadcastReceiver();
 
         trackSelector = new CustomTrackSelector(context, PlayerHelper.getQualitySelector());
+        bandwidthMeter = new DefaultBandwidthMeter.Builder(context).build();
         final PlayerDataSource dataSource = new PlayerDataSource(context, DownloaderImpl.USER_AGENT,
-                new DefaultBandwidthMeter.Builder(context).build());
+                bandwidthMeter);
         loadController = new LoadController();
         renderFactory = new DefaultRenderersFactory(context);
 
-        videoResolver = new VideoPlaybackResolver(context, dataSource, getQualityResolver());
+        videoResolver = new VideoPlaybackResolver(context, dataSource, getQualityResolver(),
+                bandwidthMeter);
         audioResolver = new AudioPlaybackResolver(context, dataSource);
+        prefetcher = dataSource.getPrefetcher();
+        mediaCache = MediaCache.getInstance(context);
 
         windowManager = ContextCompat.getSystemService(context, WindowManager.class);
     }
@@ -475,6 +503,7 @@ public class Player implements
         simpleExoPlayer.setSeekParameters(PlayerHelper.getSeekParameters(context));
         simpleExoPlayer.setWakeMode(C.WAKE_MODE_NETWORK);
         simpleExoPlayer.setHandleAudioBecomingNoisy(true);
+        simpleExoPlayer.setPriorityTaskManager(prefetcher.getPriorityTaskManager());
 
         audioReactor = new AudioReactor(context, simpleExoPlayer);
         mediaSessionManager = new MediaSessionManager(context, simpleExoPlayer,
@@ -485,6 +514,7 @@ public class Player implements
         // Setup video view
         simpleExoPlayer.setVideoSurfaceView(binding.surfaceView);
         simpleExoPlayer.addVideoListener(this);
+        simpleExoPlayer.addAnalyticsListener(StartupTracer.getInstance().getAnalyticsListener());
 
         // Setup subtitle view
         simpleExoPlayer.addTextOutput(binding.subtitleView);
@@ -729,6 +759,7 @@ public class Player implements
 
         playQueue = queue;
         playQueue.init();
+        videoResolver.resetAdaptiveQuality();
         reloadPlayQueueManager();
 
         if (playQueueAdapter != null) {
@@ -758,6 +789,9 @@ public class Player implements
             simpleExoPlayer.stop();
             simpleExoPlayer.release();
         }
+        prefetcher.cancel();
+        mediaCache.setPinned(Collections.emptyList());
+        mediaCache.saveState();
         if (isProgressLoopRunning()) {
             stopProgressLoop();
         }
@@ -787,6 +821,7 @@ public class Player implements
         destroyPlayer();
         unregisterBroadcastReceiver();
 
+        flushStreamProgressState();
         databaseUpdateDisposable.clear();
         progressUpdateDisposable.set(null);
         ImageLoader.getInstance().stop();
@@ -828,7 +863,7 @@ public class Player implements
         }
 
         if (playQueue != null) {
-            playQueueManager = new MediaSourceManager(this, playQueue);
+            playQueueManager = new MediaSourceManager(context, this, playQueue);
         }
     }
 
@@ -1532,6 +1567,46 @@ public class Player implements
                 (int) simpleExoPlayer.getDuration(),
                 simpleExoPlayer.getBufferedPercentage()
         );
+        maybePrefetchNextStream();
+    }
+
+    /**
+     * Pins the media of the current stream and of the next ones in the cache, so that going
+     * back and forth in the queue does not download them again.
+     */
+    private void pinQueuedStreams() {
+        if (playQueue == null) {
+            return;
+        }
+
+        final List<String> urls = new ArrayList<>(PINNED_QUEUE_SIZE + 1);
+        for (int i = 0; i <= PINNED_QUEUE_SIZE; i++) {
+            final PlayQueueItem item = playQueue.getItem(playQueue.getIndex() + i);
+            if (item != null) {
+                urls.add(item.getUrl());
+            }
+        }
+        mediaCache.setPinned(urls);
+    }
+
+    /**
+     * Prefetches the beginning of the next stream in the queue once the player stopped loading
+     * the current one, so the transition does not wait for the network. The prefetch pauses by
+     * itself whenever the player resumes loading.
+     */
+    private void maybePrefetchNextStream() {
+        if (exoPlayerIsNull() || !isPrepared || isLive() || playQueue == null
+                || simpleExoPlayer.isLoading() || getRepeatMode() == REPEAT_MODE_ONE) {
+            return;
+        }
+
+        PlayQueueItem next = playQueue.getItem(playQueue.getIndex() + 1);
+        if (next == null && getRepeatMode() == REPEAT_MODE_ALL) {
+            next = playQueue.getItem(0);
+        }
+        if (next != null && next != playQueue.getItem()) {
+            prefetcher.prefetch(next.getUrl());
+        }
     }
 
     private Disposable getProgressUpdateDisposable() {
@@ -1836,6 +1911,10 @@ public class Player implements
             startProgressLoop();
         }
 
+        if (!isLoading) {
+            maybePrefetchNextStream();
+        }
+
         maybeUpdateCurrentMetadata();
     }
 
@@ -1875,6 +1954,14 @@ public class Player implements
         if (DEBUG) {
             Log.d(TAG, "changeState() called with: state = [" + state + "]");
         }
+        if (state == STATE_BUFFERING && currentState == STATE_PLAYING) {
+            onPlaybackStalled();
+        }
+        if (state == STATE_BUFFERING) {
+            StartupTracer.getInstance().markCurrent(StartupTracer.Phase.BUFFERING, C.TIME_UNSET);
+        } else if (state == STATE_PLAYING) {
+            showStartupTrace(StartupTracer.getInstance().finish());
+        }
         currentState = state;
         switch (state) {
             case STATE_BLOCKED:
@@ -1975,6 +2062,49 @@ public class Player implements
         NotificationUtil.getInstance().createNotificationIfNeededAndUpdate(this, false);
     }
 
+    /**
+     * Shows how long the stream took to start playing over the video, if enabled in the debug
+     * settings. Hides the trace of the previous stream otherwise.
+     *
+     * @param trace the trace of the stream which started playing, if it was traced
+     */
+    private void showStartupTrace(@Nullable final StartupTracer.Trace trace) {
+        if (trace != null
+                && prefs.getBoolean(context.getString(R.string.show_startup_traces_key), false)) {
+            binding.startupTraceText.setText(trace.toString());
+            binding.startupTraceText.setVisibility(View.VISIBLE);
+        } else {
+            binding.startupTraceText.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Called when the playback runs out of buffer. When it happens repeatedly and the quality
+     * adapts to the connection, the stream is reloaded at a lower resolution.
+     */
+    private void onPlaybackStalled() {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - lastSeekMillis < SEEK_BUFFERING_MILLIS) {
+            return;
+        }
+
+        final boolean isRepeated = now - lastStallMillis < STALL_WINDOW_MILLIS;
+        lastStallMillis = now;
+        if (!isRepeated || isAudioOnly || currentMetadata == null) {
+            return;
+        }
+
+        if (videoResolver.lowerAdaptiveQuality(currentMetadata)) {
+            if (DEBUG) {
+                Log.d(TAG, "onPlaybackStalled() lowering the quality");
+            }
+            lastStallMillis = 0;
+            saveStreamProgressState();
+            setRecovery();
+            reloadPlayQueueManager();
+        }
+    }
+
     private void onBuffering() {
         if (DEBUG) {
             Log.d(TAG, "onBuffering() called");
@@ -2053,6 +2183,9 @@ public class Player implements
             toggleFullscreen();
         }
 
+        if (playQueue.getItem() != null) {
+            mediaCache.markWatched(playQueue.getItem().getUrl());
+        }
         if (playQueue.getIndex() < playQueue.size() - 1) {
             playQueue.offsetIndex(+1);
         }
@@ -2116,6 +2249,7 @@ public class Player implements
         simpleExoPlayer.setShuffleModeEnabled(!simpleExoPlayer.getShuffleModeEnabled());
     }
 
+    @Override // own playback listener
     @RepeatMode
     public int getRepeatMode() {
         return exoPlayerIsNull() ? REPEAT_MODE_OFF : simpleExoPlayer.getRepeatMode();
@@ -2256,6 +2390,11 @@ public class Player implements
             return;
         }
 
+        if (discontinuityReason == DISCONTINUITY_REASON_SEEK
+                || discontinuityReason == DISCONTINUITY_REASON_SEEK_ADJUSTMENT) {
+            lastSeekMillis = SystemClock.elapsedRealtime();
+        }
+
         // Refresh the playback if there is a transition to the next video
         final int newWindowIndex = simpleExoPlayer.getCurrentWindowIndex();
         switch (discontinuityReason) {
@@ -2269,6 +2408,11 @@ public class Player implements
             case DISCONTINUITY_REASON_SEEK:
             case DISCONTINUITY_REASON_SEEK_ADJUSTMENT:
             case DISCONTINUITY_REASON_INTERNAL:
+                if (discontinuityReason == DISCONTINUITY_REASON_PERIOD_TRANSITION
+                        && playQueue.getItem() != null) {
+                    // the previous stream was played until the end
+                    mediaCache.markWatched(playQueue.getItem().getUrl());
+                }
                 if (playQueue.getIndex() != newWindowIndex) {
                     resetStreamProgressState(playQueue.getItem());
                     playQueue.setIndex(newWindowIndex);
@@ -2285,6 +2429,7 @@ public class Player implements
     public void onRenderedFirstFrame() {
         //TODO check if this causes black screen when switching to fullscreen
         animate(binding.surfaceForeground, false, DEFAULT_CONTROLS_DURATION);
+        StartupTracer.getInstance().markCurrent(StartupTracer.Phase.FIRST_FRAME, C.TIME_UNSET);
     }
     //endregion
 
@@ -2455,6 +2600,7 @@ public class Player implements
             return;
         }
         currentItem = item;
+        pinQueuedStreams();
 
         // Check if on wrong window
         if (currentPlayQueueIndex != playQueue.getIndex()) {
@@ -2590,6 +2736,7 @@ public class Player implements
         audioReactor.abandonAudioFocus();
         simpleExoPlayer.setPlayWhenReady(false);
         saveStreamProgressState();
+        flushStreamProgressState();
     }
 
     public void playPause() {
@@ -2680,19 +2827,26 @@ public class Player implements
             Log.d(TAG, "saveStreamProgressState() called");
         }
         if (prefs.getBoolean(context.getString(R.string.enable_watch_history_key), true)) {
-            final Disposable stateSaver = recordManager.saveStreamState(info, progress)
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .doOnError((e) -> {
-                        if (DEBUG) {
-                            e.printStackTrace();
-                        }
-                    })
-                    .onErrorComplete()
-                    .subscribe();
-            databaseUpdateDisposable.add(stateSaver);
+            // written later along with the next updates, see flushStreamProgressState()
+            recordManager.bufferStreamState(info, progress);
         }
     }
 
+    /**
+     * Writes the progress buffered by {@link #saveStreamProgressState()} to the database, not
+     * cancelled when the player is destroyed.
+     */
+    private void flushStreamProgressState() {
+        recordManager.flushStreamStates()
+                .doOnError((e) -> {
+                    if (DEBUG) {
+                        e.printStackTrace();
+                    }
+                })
+                .onErrorComplete()
+                .subscribe();
+    }
+
     private void resetStreamProgressState(final PlayQueueItem queueItem) {
         if (queueItem == null) {
             return;
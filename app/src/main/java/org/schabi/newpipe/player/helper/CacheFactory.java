@@ -1,93 +1,72 @@
 package org.schabi.newpipe.player.helper;
 
 import android.content.Context;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.PriorityDataSource;
 import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
-import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
-import com.google.android.exoplayer2.upstream.cache.SimpleCache;
-
-import java.io.File;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
 
 /* package-private */ class CacheFactory implements DataSource.Factory {
-    private static final String TAG = "CacheFactory";
-
-    private static final String CACHE_FOLDER_NAME = "exoplayer";
     private static final int CACHE_FLAGS = CacheDataSource.FLAG_BLOCK_ON_CACHE
             | CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR;
 
     private final DefaultDataSourceFactory dataSourceFactory;
-    private final File cacheDir;
+    private final MediaCache mediaCache;
     private final long maxFileSize;
 
-    // Creating cache on every instance may cause problems with multiple players when
-    // sources are not ExtractorMediaSource
-    // see: https://stackoverflow.com/questions/28700391/using-cache-in-exoplayer
-    // todo: make this a singleton?
-    private static SimpleCache cache;
-
     CacheFactory(@NonNull final Context context,
                  @NonNull final String userAgent,
                  @NonNull final TransferListener transferListener) {
-        this(context, userAgent, transferListener, PlayerHelper.getPreferredCacheSize(),
-                PlayerHelper.getPreferredFileSize());
+        this(context, userAgent, transferListener, PlayerHelper.getPreferredFileSize());
     }
 
     private CacheFactory(@NonNull final Context context,
                          @NonNull final String userAgent,
                          @NonNull final TransferListener transferListener,
-                         final long maxCacheSize,
                          final long maxFileSize) {
         this.maxFileSize = maxFileSize;
 
         dataSourceFactory = new DefaultDataSourceFactory(context, userAgent, transferListener);
-        cacheDir = new File(context.getExternalCacheDir(), CACHE_FOLDER_NAME);
-        if (!cacheDir.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            cacheDir.mkdir();
-        }
-
-        if (cache == null) {
-            final LeastRecentlyUsedCacheEvictor evictor
-                    = new LeastRecentlyUsedCacheEvictor(maxCacheSize);
-            cache = new SimpleCache(cacheDir, evictor, new ExoDatabaseProvider(context));
-        }
+        // a single cache is shared by all the players of the process
+        mediaCache = MediaCache.getInstance(context);
     }
 
     @Override
     public DataSource createDataSource() {
-        Log.d(TAG, "initExoPlayerCache: cacheDir = " + cacheDir.getAbsolutePath());
-
         final DefaultDataSource dataSource = dataSourceFactory.createDataSource();
+        dataSource.addTransferListener(mediaCache.getNetworkListener());
         final FileDataSource fileSource = new FileDataSource();
-        final CacheDataSink dataSink = new CacheDataSink(cache, maxFileSize);
+        final CacheDataSink dataSink = new CacheDataSink(mediaCache.getCache(), maxFileSize);
 
-        return new CacheDataSource(cache, dataSource, fileSource, dataSink, CACHE_FLAGS, null);
+        return new CacheDataSource(mediaCache.getCache(), dataSource, fileSource, dataSink,
+                CACHE_FLAGS, mediaCache.getCacheListener());
     }
 
-    public void tryDeleteCacheFiles() {
-        if (!cacheDir.exists() || !cacheDir.isDirectory()) {
-            return;
-        }
-
-        try {
-            for (final File file : cacheDir.listFiles()) {
-                final String filePath = file.getAbsolutePath();
-                final boolean deleteSuccessful = file.delete();
+    /**
+     * Creates a data source backed by the same cache, whose network reads wait for the tasks
+     * with a priority higher than {@link C#PRIORITY_DOWNLOAD}.
+     *
+     * @param priorityTaskManager the task manager the player takes its priority in
+     * @return a new data source
+     */
+    DataSource createPrefetchDataSource(@NonNull final PriorityTaskManager priorityTaskManager) {
+        final DefaultDataSource upstream = dataSourceFactory.createDataSource();
+        upstream.addTransferListener(mediaCache.getNetworkListener());
+        final DataSource dataSource = new PriorityDataSource(upstream, priorityTaskManager,
+                C.PRIORITY_DOWNLOAD);
+        final FileDataSource fileSource = new FileDataSource();
+        final CacheDataSink dataSink = new CacheDataSink(mediaCache.getCache(), maxFileSize);
 
-                Log.d(TAG, "tryDeleteCacheFiles: " + filePath + " deleted = " + deleteSuccessful);
-            }
-        } catch (final Exception ignored) {
-            Log.e(TAG, "Failed to delete file.", ignored);
-        }
+        return new CacheDataSource(mediaCache.getCache(), dataSource, fileSource, dataSink,
+                CACHE_FLAGS, null);
     }
 }
@@ -0,0 +1,128 @@
+package org.schabi.newpipe.player.helper;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.StreamInfo;
+import org.schabi.newpipe.extractor.stream.VideoStream;
+
+import java.util.List;
+
+import us.shandian.giga.get.DownloadMission;
+import us.shandian.giga.get.FinishedMission;
+import us.shandian.giga.get.MissionRecoveryInfo;
+import us.shandian.giga.get.sqlite.FinishedMissionStore;
+
+import static org.schabi.newpipe.player.Player.DEBUG;
+
+/**
+ * Finds the streams already downloaded by the downloader, so they can be played from the
+ * storage instead of the network.
+ * <p>
+ * The finished downloads are looked up by the url of the stream page (which is unique across
+ * services) and matched against the selected stream through the keys of their variant, see
+ * {@link DownloadMission#getVariant()}. A download only matches if the file is still there,
+ * untouched. The lookups query the database, they must not be done in the main thread.
+ * </p>
+ */
+public final class DownloadedStreamIndex {
+    private static final String TAG = "DownloadedStreamIndex";
+
+    private static DownloadedStreamIndex instance;
+
+    @NonNull
+    private final FinishedMissionStore store;
+
+    private DownloadedStreamIndex(@NonNull final Context context) {
+        store = FinishedMissionStore.getInstance(context);
+    }
+
+    @NonNull
+    public static synchronized DownloadedStreamIndex getInstance(@NonNull final Context context) {
+        if (instance == null) {
+            instance = new DownloadedStreamIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Finds a downloaded file with the given video, and with audio if the video has none.
+     *
+     * @param info  the stream
+     * @param video the video stream selected for the playback
+     * @return the file, or {@code null} if it was not downloaded
+     */
+    @Nullable
+    public Uri findVideo(@NonNull final StreamInfo info, @NonNull final VideoStream video) {
+        final String videoKey = new MissionRecoveryInfo(video).getVariantKey();
+        // a video only stream is downloaded along with an audio stream
+        final int streamCount = video.isVideoOnly() ? 2 : 1;
+
+        for (final FinishedMission mission : findMissions(info)) {
+            final String[] keys = DownloadMission.getVariantKeys(mission.variant);
+            if (mission.kind != 'v' || keys == null || keys.length != streamCount
+                    || !keys[0].equals(videoKey)) {
+                continue;
+            }
+
+            final Uri uri = getUriIfIntact(mission);
+            if (uri != null) {
+                return uri;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a downloaded file with the given audio, same format and bitrate.
+     *
+     * @param info  the stream
+     * @param audio the audio stream selected for the playback
+     * @return the file, or {@code null} if the audio was not downloaded
+     */
+    @Nullable
+    public Uri findAudio(@NonNull final StreamInfo info, @NonNull final AudioStream audio) {
+        final String audioKey = new MissionRecoveryInfo(audio).getVariantKey();
+
+        for (final FinishedMission mission : findMissions(info)) {
+            final String[] keys = DownloadMission.getVariantKeys(mission.variant);
+            if (mission.kind != 'a' || keys == null || keys.length != 1
+                    || !keys[0].equals(audioKey)) {
+                continue;
+            }
+
+            final Uri uri = getUriIfIntact(mission);
+            if (uri != null) {
+                return uri;
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private List<FinishedMission> findMissions(@NonNull final StreamInfo info) {
+        return store.findFinishedMissions(info.getUrl());
+    }
+
+    @Nullable
+    private static Uri getUriIfIntact(@NonNull final FinishedMission mission) {
+        try {
+            if (mission.storage.isInvalid() || !mission.storage.existsAsFile()
+                    || mission.storage.length() != mission.length) {
+                return null;
+            }
+            return mission.storage.getUri();
+        } catch (final Exception e) {
+            // the storage was revoked or is not mounted
+            if (DEBUG) {
+                Log.w(TAG, "Unable to check the download: " + mission.storage, e);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.schabi.newpipe.player.helper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.schabi.newpipe.player.Player.DEBUG;
+
+/**
+ * The media cache shared by all the players of the process.
+ * <p>
+ * A {@link SimpleCache} can only be opened once per folder, so it lives here instead of in
+ * every {@link CacheFactory}. Its index is kept in a database, so the cached media survives
+ * restarts. The streams being played or queued can be pinned so they are never evicted, while
+ * the streams watched until the end are evicted first, see {@link MediaCacheEvictor}.
+ * </p>
+ * <p>
+ * Hits, misses and the bytes read from the cache instead of the network are counted, the
+ * totals are saved along with the watched streams by {@link #saveState()}.
+ * </p>
+ */
+public final class MediaCache {
+    private static final String TAG = "MediaCache";
+
+    private static final String CACHE_FOLDER_NAME = "exoplayer";
+    private static final String PREFERENCES_NAME = "media_cache";
+    private static final String KEY_WATCHED = "watched";
+    private static final String KEY_HITS = "hits";
+    private static final String KEY_MISSES = "misses";
+    private static final String KEY_BYTES_FROM_CACHE = "bytes_from_cache";
+    private static final String KEY_BYTES_FROM_NETWORK = "bytes_from_network";
+
+    private static MediaCache instance;
+
+    @NonNull
+    private final SimpleCache cache;
+    @NonNull
+    private final MediaCacheEvictor evictor;
+    @NonNull
+    private final SharedPreferences preferences;
+
+    /** The watched streams, in the order they were watched, see {@link #markWatched}. */
+    private final Set<String> watched = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesFromCache = new AtomicLong();
+    private final AtomicLong bytesFromNetwork = new AtomicLong();
+
+    private final CacheDataSource.EventListener cacheListener
+            = new CacheDataSource.EventListener() {
+        @Override
+        public void onCachedBytesRead(final long cacheSizeBytes, final long cachedBytesRead) {
+            hits.incrementAndGet();
+            bytesFromCache.addAndGet(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(final int reason) {
+            // the read goes to the network and is counted there
+        }
+    };
+
+    private final TransferListener networkListener = new TransferListener() {
+        @Override
+        public void onTransferInitializing(final DataSource source, final DataSpec dataSpec,
+                                           final boolean isNetwork) {
+        }
+
+        @Override
+        public void onTransferStart(final DataSource source, final DataSpec dataSpec,
+                                    final boolean isNetwork) {
+            if (isNetwork) {
+                misses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onBytesTransferred(final DataSource source, final DataSpec dataSpec,
+                                       final boolean isNetwork, final int bytesTransferred) {
+            if (isNetwork) {
+                bytesFromNetwork.addAndGet(bytesTransferred);
+            }
+        }
+
+        @Override
+        public void onTransferEnd(final DataSource source, final DataSpec dataSpec,
+                                  final boolean isNetwork) {
+        }
+    };
+
+    private MediaCache(@NonNull final Context context, final long maxCacheSize) {
+        final File cacheDir = new File(context.getExternalCacheDir(), CACHE_FOLDER_NAME);
+        if (!cacheDir.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            cacheDir.mkdir();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "MediaCache: cacheDir = " + cacheDir.getAbsolutePath());
+        }
+
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        hits.set(preferences.getLong(KEY_HITS, 0));
+        misses.set(preferences.getLong(KEY_MISSES, 0));
+        bytesFromCache.set(preferences.getLong(KEY_BYTES_FROM_CACHE, 0));
+        bytesFromNetwork.set(preferences.getLong(KEY_BYTES_FROM_NETWORK, 0));
+        watched.addAll(preferences.getStringSet(KEY_WATCHED, Collections.emptySet()));
+
+        // the evictor must know the watched streams before the cache reports the stored spans
+        evictor = new MediaCacheEvictor(maxCacheSize);
+        evictor.setWatched(watched);
+        cache = new SimpleCache(cacheDir, evictor, new ExoDatabaseProvider(context));
+    }
+
+    @NonNull
+    public static synchronized MediaCache getInstance(@NonNull final Context context) {
+        if (instance == null) {
+            instance = new MediaCache(context.getApplicationContext(),
+                    PlayerHelper.getPreferredCacheSize());
+        }
+        return instance;
+    }
+
+    @NonNull
+    Cache getCache() {
+        return cache;
+    }
+
+    @NonNull
+    CacheDataSource.EventListener getCacheListener() {
+        return cacheListener;
+    }
+
+    @NonNull
+    TransferListener getNetworkListener() {
+        return networkListener;
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Pinning and eviction
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * Replaces the pinned streams, their cached media is not evicted until they are unpinned.
+     *
+     * @param streamUrls the urls of the streams being played or queued
+     */
+    public void setPinned(@NonNull final Collection<String> streamUrls) {
+        evictor.setPinned(streamUrls);
+    }
+
+    /**
+     * Marks a stream as watched until the end, its cached media is evicted before the rest.
+     * Only the last {@link MediaCacheEvictor#MAX_WATCHED} streams are remembered.
+     *
+     * @param streamUrl the url of the stream
+     */
+    public void markWatched(@NonNull final String streamUrl) {
+        synchronized (watched) {
+            watched.remove(streamUrl);
+            watched.add(streamUrl);
+            MediaCacheEvictor.trimWatched(watched);
+        }
+        evictor.addWatched(streamUrl);
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Statistics
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * @return how many reads were served, at least partially, by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many requests went to the network
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many bytes were read from the cache instead of the network
+     */
+    public long getBytesSaved() {
+        return bytesFromCache.get();
+    }
+
+    /**
+     * @return how many bytes of media were downloaded
+     */
+    public long getBytesFromNetwork() {
+        return bytesFromNetwork.get();
+    }
+
+    /**
+     * @return how many bytes are stored in the cache
+     */
+    public long getCacheSize() {
+        return evictor.getCurrentSize();
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Persistence
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * Saves the statistics and the watched streams, forgetting the watched streams which are
+     * no longer in the cache. The cache index itself is always persisted by {@link SimpleCache}.
+     */
+    public void saveState() {
+        final Set<String> keys = cache.getKeys();
+        final List<String> stillCached = new ArrayList<>();
+        synchronized (watched) {
+            for (final String url : watched) {
+                for (final String key : keys) {
+                    if (key.startsWith(url)) {
+                        stillCached.add(url);
+                        break;
+                    }
+                }
+            }
+            watched.retainAll(stillCached);
+        }
+        evictor.setWatched(stillCached);
+
+        preferences.edit()
+                .putStringSet(KEY_WATCHED, new HashSet<>(stillCached))
+                .putLong(KEY_HITS, hits.get())
+                .putLong(KEY_MISSES, misses.get())
+                .putLong(KEY_BYTES_FROM_CACHE, bytesFromCache.get())
+                .putLong(KEY_BYTES_FROM_NETWORK, bytesFromNetwork.get())
+                .apply();
+
+        if (DEBUG) {
+            Log.d(TAG, "saveState: size = " + getCacheSize() + ", hits = " + hits.get()
+                    + ", misses = " + misses.get() + ", bytes saved = " + bytesFromCache.get()
+                    + ", bytes from network = " + bytesFromNetwork.get());
+        }
+    }
+
+    /**
+     * Removes all the cached media which is not pinned. Slow, not to be called from the main
+     * thread.
+     */
+    public void clear() {
+        for (final String key : cache.getKeys()) {
+            for (final CacheSpan span : cache.getCachedSpans(key)) {
+                if (!evictor.isPinned(key)) {
+                    cache.removeSpan(span);
+                }
+            }
+        }
+    }
+}
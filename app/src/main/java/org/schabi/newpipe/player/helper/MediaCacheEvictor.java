@@ -0,0 +1,229 @@
+package org.schabi.newpipe.player.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Evicts the least recently used spans of the media cache, like
+ * {@link com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor}, with
+ * two exceptions: the spans of the pinned streams are never evicted and the spans of the
+ * streams which were watched until the end are evicted first.
+ * <p>
+ * Streams are identified by their url, which is the prefix of the cache keys built by
+ * {@link PlayerHelper#cacheKeyOf}. If only pinned spans are left the cache is allowed to grow
+ * past its maximum size, until they are unpinned.
+ * </p>
+ */
+/* package-private */ class MediaCacheEvictor implements CacheEvictor {
+    /** Maximum number of watched streams remembered, the oldest are forgotten first. */
+    static final int MAX_WATCHED = 200;
+
+    private static final int STATE_UNKNOWN = -1;
+    private static final int STATE_NONE = 0;
+    private static final int STATE_PINNED = 1;
+    private static final int STATE_WATCHED = 2;
+
+    private final long maxBytes;
+    private final TreeSet<CacheSpan> leastRecentlyUsed = new TreeSet<>((a, b) -> {
+        if (a.lastTouchTimestamp != b.lastTouchTimestamp) {
+            return a.lastTouchTimestamp < b.lastTouchTimestamp ? -1 : 1;
+        }
+        return a.compareTo(b);
+    });
+    private final Set<String> pinned = new HashSet<>();
+    private final Set<String> watched = new LinkedHashSet<>();
+    /** The cache keys with spans, matched against the stream urls once per key. */
+    private final Map<String, KeyInfo> keys = new HashMap<>();
+
+    private long currentSize = 0;
+
+    MediaCacheEvictor(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void setPinned(@NonNull final Collection<String> streamUrls) {
+        pinned.clear();
+        pinned.addAll(streamUrls);
+        invalidateStates();
+    }
+
+    synchronized void setWatched(@NonNull final Collection<String> streamUrls) {
+        watched.clear();
+        for (final String url : streamUrls) {
+            addWatched(url);
+        }
+    }
+
+    synchronized void addWatched(@NonNull final String streamUrl) {
+        // re-inserted, so that it is the last one to be forgotten
+        watched.remove(streamUrl);
+        watched.add(streamUrl);
+        trimWatched(watched);
+        invalidateStates();
+    }
+
+    synchronized boolean isPinned(@NonNull final String key) {
+        final KeyInfo info = keys.get(key);
+        return (info != null ? stateOf(info, key) : matchState(key)) == STATE_PINNED;
+    }
+
+    synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    @Override
+    public boolean requiresCacheSpanTouches() {
+        return true;
+    }
+
+    @Override
+    public void onCacheInitialized() {
+        // Do nothing.
+    }
+
+    @Override
+    public void onStartFile(final Cache cache, final String key, final long position,
+                            final long length) {
+        if (length != C.LENGTH_UNSET) {
+            evictCache(cache, length);
+        }
+    }
+
+    @Override
+    public synchronized void onSpanAdded(final Cache cache, final CacheSpan span) {
+        KeyInfo info = keys.get(span.key);
+        if (info == null) {
+            info = new KeyInfo();
+            keys.put(span.key, info);
+        }
+        info.spans++;
+        stateOf(info, span.key);
+
+        leastRecentlyUsed.add(span);
+        currentSize += span.length;
+        evictCache(cache, 0);
+    }
+
+    @Override
+    public synchronized void onSpanRemoved(final Cache cache, final CacheSpan span) {
+        leastRecentlyUsed.remove(span);
+        currentSize -= span.length;
+
+        final KeyInfo info = keys.get(span.key);
+        if (info != null && --info.spans <= 0) {
+            keys.remove(span.key);
+        }
+    }
+
+    @Override
+    public synchronized void onSpanTouched(final Cache cache, final CacheSpan oldSpan,
+                                           final CacheSpan newSpan) {
+        // same key, the state of the key is kept
+        leastRecentlyUsed.remove(oldSpan);
+        leastRecentlyUsed.add(newSpan);
+        currentSize += newSpan.length - oldSpan.length;
+        evictCache(cache, 0);
+    }
+
+    private synchronized void evictCache(final Cache cache, final long requiredSpace) {
+        while (currentSize + requiredSpace > maxBytes) {
+            final CacheSpan span = nextToEvict();
+            if (span == null) {
+                return; // everything left is pinned
+            }
+            // removing the span calls onSpanRemoved()
+            cache.removeSpan(span);
+        }
+    }
+
+    @Nullable
+    private CacheSpan nextToEvict() {
+        CacheSpan oldestUnpinned = null;
+        for (final CacheSpan span : leastRecentlyUsed) {
+            final KeyInfo info = keys.get(span.key);
+            final int state = info != null ? stateOf(info, span.key) : matchState(span.key);
+            if (state == STATE_PINNED) {
+                continue;
+            }
+            if (state == STATE_WATCHED) {
+                return span;
+            }
+            if (oldestUnpinned == null) {
+                oldestUnpinned = span;
+            }
+        }
+        return oldestUnpinned;
+    }
+
+    private void invalidateStates() {
+        for (final KeyInfo info : keys.values()) {
+            info.state = STATE_UNKNOWN;
+        }
+    }
+
+    /**
+     * The state of a cache key is kept until the pinned or the watched streams change, so that
+     * the evictor, called while the cache is locked, does not match every span against every
+     * stream url.
+     *
+     * @param info the spans of the key
+     * @param key  the cache key
+     * @return {@link #STATE_PINNED}, {@link #STATE_WATCHED} or {@link #STATE_NONE}
+     */
+    private int stateOf(@NonNull final KeyInfo info, @NonNull final String key) {
+        if (info.state == STATE_UNKNOWN) {
+            info.state = matchState(key);
+        }
+        return info.state;
+    }
+
+    /**
+     * @param key the cache key of a span
+     * @return whether the key starts with the url of a pinned or a watched stream
+     */
+    private int matchState(@NonNull final String key) {
+        for (final String url : pinned) {
+            if (key.startsWith(url)) {
+                return STATE_PINNED;
+            }
+        }
+        for (final String url : watched) {
+            if (key.startsWith(url)) {
+                return STATE_WATCHED;
+            }
+        }
+        return STATE_NONE;
+    }
+
+    /**
+     * Forgets the oldest streams of the set, if there are more than {@link #MAX_WATCHED}.
+     *
+     * @param watchedUrls the watched streams, in insertion order
+     */
+    static void trimWatched(@NonNull final Collection<String> watchedUrls) {
+        final Iterator<String> iterator = watchedUrls.iterator();
+        while (watchedUrls.size() > MAX_WATCHED && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class KeyInfo {
+        private int spans = 0;
+        private int state = STATE_UNKNOWN;
+    }
+}
@@ -0,0 +1,197 @@
+package org.schabi.newpipe.player.helper;
+
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.schabi.newpipe.player.Player.DEBUG;
+
+/**
+ * Downloads the beginning of the progressive streams of the next queue item into the player
+ * cache, so the transition to it does not have to wait for the network.
+ * <p>
+ * The resolvers {@link #register(String, String, String) register} the streams they build
+ * sources for, using the same cache keys of {@link PlayerHelper#cacheKeyOf}. The prefetch only
+ * reads from the network while the player is not loading, since the player takes
+ * {@link C#PRIORITY_PLAYBACK} in {@link #getPriorityTaskManager()} while loading.
+ * </p>
+ */
+public class MediaPrefetcher {
+    private static final String TAG = "MediaPrefetcher";
+
+    /**
+     * How many streams (play queue items) are remembered.
+     */
+    private static final int MAXIMUM_STREAMS = 16;
+    /**
+     * How many sources of a single stream are remembered, a video and an audio source.
+     */
+    private static final int MAXIMUM_SOURCES_PER_STREAM = 2;
+
+    @NonNull
+    private final CacheFactory cacheFactory;
+    @NonNull
+    private final PriorityTaskManager priorityTaskManager = new PriorityTaskManager();
+    private final long prefetchLength;
+
+    /**
+     * Stream url to sources of the stream, as cache key to source url, both in access order.
+     */
+    private final Map<String, LinkedHashMap<String, String>> streams
+            = new LinkedHashMap<String, LinkedHashMap<String, String>>(
+                    MAXIMUM_STREAMS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, LinkedHashMap<String, String>> eldest) {
+            return size() > MAXIMUM_STREAMS;
+        }
+    };
+
+    @Nullable
+    private String prefetchedStreamUrl;
+    @Nullable
+    private Disposable prefetcher;
+
+    MediaPrefetcher(@NonNull final CacheFactory cacheFactory, final long prefetchLength) {
+        this.cacheFactory = cacheFactory;
+        this.prefetchLength = prefetchLength;
+    }
+
+    /**
+     * @return the task manager the player should take {@link C#PRIORITY_PLAYBACK} in
+     */
+    @NonNull
+    public PriorityTaskManager getPriorityTaskManager() {
+        return priorityTaskManager;
+    }
+
+    /**
+     * Remembers a progressive source built for a stream, so it can be prefetched later.
+     * <p>
+     * May be called from any thread.
+     * </p>
+     *
+     * @param streamUrl the url of the stream info
+     * @param sourceUrl the url of the media
+     * @param cacheKey  the cache key the source is built with
+     */
+    public void register(@NonNull final String streamUrl,
+                         @NonNull final String sourceUrl,
+                         @NonNull final String cacheKey) {
+        synchronized (streams) {
+            LinkedHashMap<String, String> sources = streams.get(streamUrl);
+            if (sources == null) {
+                sources = new LinkedHashMap<String, String>(
+                        MAXIMUM_SOURCES_PER_STREAM, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                        return size() > MAXIMUM_SOURCES_PER_STREAM;
+                    }
+                };
+                streams.put(streamUrl, sources);
+            }
+            sources.put(cacheKey, sourceUrl);
+        }
+    }
+
+    /**
+     * Starts prefetching the sources of the given stream, cancelling any other prefetch.
+     * Does nothing if the stream was already prefetched or none of its sources were registered.
+     *
+     * @param streamUrl the url of the stream info
+     */
+    public void prefetch(@NonNull final String streamUrl) {
+        if (streamUrl.equals(prefetchedStreamUrl)) {
+            return;
+        }
+
+        final List<Map.Entry<String, String>> sources;
+        synchronized (streams) {
+            final LinkedHashMap<String, String> registered = streams.get(streamUrl);
+            if (registered == null || registered.isEmpty()) {
+                return;
+            }
+            sources = new ArrayList<>(registered.entrySet());
+        }
+
+        cancel();
+        prefetchedStreamUrl = streamUrl;
+        prefetcher = Completable.fromAction(() -> {
+            for (final Map.Entry<String, String> source : sources) {
+                prefetch(Uri.parse(source.getValue()), source.getKey());
+            }
+        })
+                .subscribeOn(Schedulers.io())
+                .subscribe(() -> {
+                    if (DEBUG) {
+                        Log.d(TAG, "Prefetched stream=[" + streamUrl + "]");
+                    }
+                }, error -> Log.w(TAG, "Unable to prefetch stream=[" + streamUrl + "]", error));
+    }
+
+    /**
+     * Stops the running prefetch, if any.
+     */
+    public void cancel() {
+        if (prefetcher != null) {
+            prefetcher.dispose();
+            prefetcher = null;
+        }
+        prefetchedStreamUrl = null;
+    }
+
+    private void prefetch(@NonNull final Uri uri, @NonNull final String cacheKey)
+            throws IOException, InterruptedException {
+        final DataSource dataSource = cacheFactory.createPrefetchDataSource(priorityTaskManager);
+        final byte[] buffer = new byte[16 * 1024];
+        long position = 0;
+
+        priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+        try {
+            while (position < prefetchLength) {
+                // wait for the player to stop loading
+                priorityTaskManager.proceed(C.PRIORITY_DOWNLOAD);
+
+                try {
+                    dataSource.open(new DataSpec(uri, position, prefetchLength - position,
+                            cacheKey));
+
+                    int read;
+                    while ((read = dataSource.read(buffer, 0, buffer.length))
+                            != C.RESULT_END_OF_INPUT) {
+                        position += read;
+                    }
+                    return;
+                } catch (final PriorityTaskManager.PriorityTooLowException e) {
+                    // the player started loading, resume from here once it is done
+                } finally {
+                    dataSource.close();
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            priorityTaskManager.remove(C.PRIORITY_DOWNLOAD);
+        }
+    }
+}
@@ -21,14 +21,25 @@ public class PlayerDataSource {
     private static final int EXTRACTOR_MINIMUM_RETRY = Integer.MAX_VALUE;
     private static final int LIVE_STREAM_EDGE_GAP_MILLIS = 10000;
 
-    private final DataSource.Factory cacheDataSourceFactory;
+    private final CacheFactory cacheDataSourceFactory;
     private final DataSource.Factory cachelessDataSourceFactory;
+    private final DataSource.Factory localDataSourceFactory;
+    private final MediaPrefetcher prefetcher;
 
     public PlayerDataSource(@NonNull final Context context, @NonNull final String userAgent,
                             @NonNull final TransferListener transferListener) {
-        cacheDataSourceFactory = new CacheFactory(context, userAgent, transferListener);
-        cachelessDataSourceFactory
-                = new DefaultDataSourceFactory(context, userAgent, transferListener);
+        // also records the first byte of media, see StartupTracer
+        final TransferListener listener = StartupTracer.getInstance().wrap(transferListener);
+        cacheDataSourceFactory = new CacheFactory(context, userAgent, listener);
+        cachelessDataSourceFactory = new DefaultDataSourceFactory(context, userAgent, listener);
+        // no transfer listener, the reads from the storage must not reach the bandwidth meter
+        localDataSourceFactory = new DefaultDataSourceFactory(context, userAgent);
+        prefetcher = new MediaPrefetcher(cacheDataSourceFactory,
+                PlayerHelper.getPreferredPrefetchSize());
+    }
+
+    public MediaPrefetcher getPrefetcher() {
+        return prefetcher;
     }
 
     public SsMediaSource.Factory getLiveSsMediaSourceFactory() {
@@ -79,6 +90,13 @@ public class PlayerDataSource {
         return getExtractorMediaSourceFactory().setCustomCacheKey(key);
     }
 
+    /**
+     * @return a factory for the files on the device, {@code file://} or {@code content://}
+     */
+    public ProgressiveMediaSource.Factory getLocalMediaSourceFactory() {
+        return new ProgressiveMediaSource.Factory(localDataSourceFactory);
+    }
+
     public SingleSampleMediaSource.Factory getSampleMediaSourceFactory() {
         return new SingleSampleMediaSource.Factory(cacheDataSourceFactory);
     }
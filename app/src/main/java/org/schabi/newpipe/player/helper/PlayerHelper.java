@@ -244,6 +244,11 @@ public final class PlayerHelper {
                 .getBoolean(context.getString(R.string.auto_queue_key), false);
     }
 
+    public static boolean isAdaptiveQualityEnabled(@NonNull final Context context) {
+        return getPreferences(context)
+                .getBoolean(context.getString(R.string.adaptive_quality_key), true);
+    }
+
     public static boolean isClearingQueueConfirmationRequired(@NonNull final Context context) {
         return getPreferences(context)
                 .getBoolean(context.getString(R.string.clear_queue_confirmation_key), false);
@@ -296,6 +301,14 @@ public final class PlayerHelper {
         return 64 * 1024 * 1024L;
     }
 
+    /**
+     * @return how many bytes of each source of the next stream are prefetched into the cache,
+     * roughly the first seconds of a 720p video or the first minute of an audio stream
+     */
+    public static long getPreferredPrefetchSize() {
+        return 1024 * 1024L;
+    }
+
     public static long getPreferredFileSize() {
         return 512 * 1024L;
     }
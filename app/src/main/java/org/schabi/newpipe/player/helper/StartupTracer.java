@@ -0,0 +1,393 @@
+package org.schabi.newpipe.player.helper;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
+import com.google.android.exoplayer2.source.MediaSourceEventListener;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.reactivex.rxjava3.core.Single;
+
+import static org.schabi.newpipe.player.Player.DEBUG;
+
+/**
+ * Traces the time it takes for a stream to start playing, from the moment it is selected in
+ * the play queue to the moment the player starts playing it, phase by phase.
+ * <p>
+ * A trace is begun by {@link org.schabi.newpipe.player.playback.MediaSourceManager} when the
+ * current stream changes and finished by the player when it starts playing. In between, the
+ * extraction, the loading and the resolution of the media source, the manifest, the first
+ * byte of media, the initialization of the decoders and the first frame are recorded, each only
+ * the first time it happens. The phases which know the stream they belong to are only
+ * recorded if it is the one being traced, the other ones (data source, decoders) are
+ * attributed to the current trace.
+ * </p>
+ * <p>
+ * The last {@link #MAX_TRACES} finished traces are kept in memory, see {@link #getTraces()} and
+ * {@link #export()}.
+ * </p>
+ */
+public final class StartupTracer {
+    private static final String TAG = "StartupTracer";
+    private static final int MAX_TRACES = 32;
+    /**
+     * A trace not finished after this long is abandoned, e.g. the stream was paused before
+     * starting to play.
+     */
+    private static final long MAX_TRACE_MILLIS = 120000;
+
+    public enum Phase {
+        EXTRACTION("extraction"),
+        SOURCE_LOAD("source load"),
+        RESOLUTION("resolution"),
+        MANIFEST("manifest"),
+        FIRST_BYTE("first byte"),
+        DECODER_INIT("decoder init"),
+        FIRST_FRAME("first frame"),
+        BUFFERING("buffering"),
+        PLAYING("playing");
+
+        @NonNull
+        private final String label;
+
+        Phase(@NonNull final String label) {
+            this.label = label;
+        }
+
+        @NonNull
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final StartupTracer INSTANCE = new StartupTracer();
+
+    /**
+     * The finished traces, from the oldest to the newest, guarded by the instance.
+     */
+    private final ArrayDeque<Trace> traces = new ArrayDeque<>(MAX_TRACES);
+    @Nullable
+    private Trace current;
+
+    private StartupTracer() {
+    }
+
+    @NonNull
+    public static StartupTracer getInstance() {
+        return INSTANCE;
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Recording
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * Begins tracing a stream, unless it is already being traced.
+     *
+     * @param streamUrl the url of the stream, as in the play queue
+     */
+    public synchronized void begin(@NonNull final String streamUrl) {
+        if (getCurrent(streamUrl) != null) {
+            return;
+        }
+        current = new Trace(streamUrl);
+    }
+
+    /**
+     * Records the moment a phase of a stream happened, if it is being traced.
+     *
+     * @param streamUrl the url of the stream
+     * @param phase     the phase which just happened
+     */
+    public synchronized void mark(@NonNull final String streamUrl, @NonNull final Phase phase) {
+        final Trace trace = getCurrent(streamUrl);
+        if (trace != null) {
+            trace.record(phase, C.TIME_UNSET);
+        }
+    }
+
+    /**
+     * Records a phase of a stream which started at the given time and ends now, if the stream is
+     * being traced.
+     *
+     * @param streamUrl the url of the stream
+     * @param phase     the phase
+     * @param startedAt when the phase started, in {@link SystemClock#elapsedRealtime()} time
+     */
+    public synchronized void span(@NonNull final String streamUrl, @NonNull final Phase phase,
+                                  final long startedAt) {
+        final Trace trace = getCurrent(streamUrl);
+        if (trace != null) {
+            trace.record(phase, SystemClock.elapsedRealtime() - startedAt);
+        }
+    }
+
+    /**
+     * Records a phase of the stream being traced, if any.
+     *
+     * @param phase    the phase
+     * @param duration how long it lasted in milliseconds, or {@link C#TIME_UNSET}
+     */
+    public synchronized void markCurrent(@NonNull final Phase phase, final long duration) {
+        final Trace trace = getCurrent(null);
+        if (trace != null) {
+            trace.record(phase, duration);
+        }
+    }
+
+    /**
+     * Finishes the trace of the stream being traced, if any.
+     *
+     * @return the finished trace, or {@code null} if none was in progress
+     */
+    @Nullable
+    public synchronized Trace finish() {
+        final Trace trace = getCurrent(null);
+        if (trace == null) {
+            return null;
+        }
+
+        trace.record(Phase.PLAYING, C.TIME_UNSET);
+        trace.totalMillis = SystemClock.elapsedRealtime() - trace.startedAt;
+        current = null;
+
+        if (traces.size() >= MAX_TRACES) {
+            traces.removeFirst();
+        }
+        traces.addLast(trace);
+
+        if (DEBUG) {
+            Log.d(TAG, "finish() called, " + trace);
+        }
+        return trace;
+    }
+
+    @Nullable
+    private Trace getCurrent(@Nullable final String streamUrl) {
+        if (current != null
+                && SystemClock.elapsedRealtime() - current.startedAt > MAX_TRACE_MILLIS) {
+            current = null;
+        }
+        if (current == null || (streamUrl != null && !streamUrl.equals(current.streamUrl))) {
+            return null;
+        }
+        return current;
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Hooks
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * @param streamUrl  the url of the stream being extracted
+     * @param extraction the extraction of the stream info
+     * @param <T>        the type of the info
+     * @return the extraction, recording its duration
+     */
+    @NonNull
+    public <T> Single<T> traceExtraction(@NonNull final String streamUrl,
+                                         @NonNull final Single<T> extraction) {
+        return Single.defer(() -> {
+            final long startedAt = SystemClock.elapsedRealtime();
+            return extraction.doOnSuccess(info -> span(streamUrl, Phase.EXTRACTION, startedAt));
+        });
+    }
+
+    /**
+     * @param listener the listener of the data sources of the player
+     * @return a listener which also records the first byte received from the network
+     */
+    @NonNull
+    public TransferListener wrap(@NonNull final TransferListener listener) {
+        return new TransferListener() {
+            @Override
+            public void onTransferInitializing(final DataSource source, final DataSpec dataSpec,
+                                               final boolean isNetwork) {
+                listener.onTransferInitializing(source, dataSpec, isNetwork);
+            }
+
+            @Override
+            public void onTransferStart(final DataSource source, final DataSpec dataSpec,
+                                        final boolean isNetwork) {
+                listener.onTransferStart(source, dataSpec, isNetwork);
+            }
+
+            @Override
+            public void onBytesTransferred(final DataSource source, final DataSpec dataSpec,
+                                           final boolean isNetwork, final int bytesTransferred) {
+                listener.onBytesTransferred(source, dataSpec, isNetwork, bytesTransferred);
+                if (isNetwork && bytesTransferred > 0) {
+                    markCurrent(Phase.FIRST_BYTE, C.TIME_UNSET);
+                }
+            }
+
+            @Override
+            public void onTransferEnd(final DataSource source, final DataSpec dataSpec,
+                                      final boolean isNetwork) {
+                listener.onTransferEnd(source, dataSpec, isNetwork);
+            }
+        };
+    }
+
+    /**
+     * @return a listener recording the manifest load and the decoders initialization, to be
+     * added to the player
+     */
+    @NonNull
+    public AnalyticsListener getAnalyticsListener() {
+        return new AnalyticsListener() {
+            @Override
+            public void onLoadCompleted(
+                    @NonNull final EventTime eventTime,
+                    @NonNull final MediaSourceEventListener.LoadEventInfo loadEventInfo,
+                    @NonNull final MediaSourceEventListener.MediaLoadData mediaLoadData) {
+                if (mediaLoadData.dataType == C.DATA_TYPE_MANIFEST) {
+                    markCurrent(Phase.MANIFEST, loadEventInfo.loadDurationMs);
+                }
+            }
+
+            @Override
+            public void onDecoderInitialized(@NonNull final EventTime eventTime,
+                                             final int trackType,
+                                             @NonNull final String decoderName,
+                                             final long initializationDurationMs) {
+                markCurrent(Phase.DECODER_INIT, initializationDurationMs);
+            }
+        };
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Reading
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * @return the finished traces, from the newest to the oldest
+     */
+    @NonNull
+    public synchronized List<Trace> getTraces() {
+        final List<Trace> result = new ArrayList<>(traces.size());
+        traces.descendingIterator().forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Exports the finished traces as tab separated values, one line per trace, with the time
+     * each phase happened at and, between parentheses, how long it lasted, in milliseconds.
+     *
+     * @return the traces, from the oldest to the newest, with a header line
+     */
+    @NonNull
+    public synchronized String export() {
+        final StringBuilder builder = new StringBuilder("date\turl\ttotal");
+        for (final Phase phase : Phase.values()) {
+            builder.append('\t').append(phase.getLabel());
+        }
+        builder.append('\n');
+
+        final SimpleDateFormat dateFormat
+                = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.ENGLISH);
+        for (final Trace trace : traces) {
+            builder.append(dateFormat.format(new Date(trace.date)))
+                    .append('\t').append(trace.streamUrl)
+                    .append('\t').append(trace.totalMillis);
+            for (final Phase phase : Phase.values()) {
+                builder.append('\t');
+                final Record record = trace.records.get(phase);
+                if (record != null) {
+                    builder.append(record);
+                }
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    public static final class Trace {
+        @NonNull
+        private final String streamUrl;
+        private final long date = System.currentTimeMillis();
+        private final long startedAt = SystemClock.elapsedRealtime();
+        private final Map<Phase, Record> records = new EnumMap<>(Phase.class);
+        private long totalMillis = C.TIME_UNSET;
+
+        private Trace(@NonNull final String streamUrl) {
+            this.streamUrl = streamUrl;
+        }
+
+        private void record(@NonNull final Phase phase, final long duration) {
+            if (!records.containsKey(phase)) {
+                records.put(phase, new Record(SystemClock.elapsedRealtime() - startedAt,
+                        duration));
+            }
+        }
+
+        @NonNull
+        public String getStreamUrl() {
+            return streamUrl;
+        }
+
+        /**
+         * @return the time from the beginning of the trace until the stream started playing,
+         * in milliseconds
+         */
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * @return one line per recorded phase, in the order they happened
+         */
+        @NonNull
+        @Override
+        public String toString() {
+            final List<Map.Entry<Phase, Record>> entries = new ArrayList<>(records.entrySet());
+            entries.sort((a, b) -> Long.compare(a.getValue().at, b.getValue().at));
+
+            final StringBuilder builder = new StringBuilder()
+                    .append("total ").append(totalMillis).append(" ms");
+            for (final Map.Entry<Phase, Record> entry : entries) {
+                builder.append('\n').append(entry.getKey().getLabel())
+                        .append(' ').append(entry.getValue());
+            }
+            return builder.toString();
+        }
+    }
+
+    private static final class Record {
+        /**
+         * When the phase ended, since the beginning of the trace.
+         */
+        private final long at;
+        /**
+         * How long the phase lasted, or {@link C#TIME_UNSET} if unknown.
+         */
+        private final long duration;
+
+        Record(final long at, final long duration) {
+            this.at = at;
+            this.duration = duration;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return duration == C.TIME_UNSET ? String.valueOf(at) : at + " (" + duration + ")";
+        }
+    }
+}
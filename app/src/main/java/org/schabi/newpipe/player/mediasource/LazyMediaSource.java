@@ -0,0 +1,177 @@
+package org.schabi.newpipe.player.mediasource;
+
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.MediaSourceEventListener;
+import com.google.android.exoplayer2.source.SampleStream;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+
+/**
+ * Wraps a source whose tracks are known without loading anything, such as a
+ * {@link com.google.android.exoplayer2.source.SingleSampleMediaSource} of subtitles, so that
+ * its media is only loaded once one of its tracks is selected.
+ * <p>
+ * Until then the periods report that they have nothing left to load, so the player never asks
+ * them to continue loading.
+ * </p>
+ */
+public class LazyMediaSource implements MediaSource {
+    private final MediaSource source;
+
+    public LazyMediaSource(@NonNull final MediaSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public void prepareSource(final MediaSourceCaller mediaSourceCaller,
+                              @Nullable final TransferListener mediaTransferListener) {
+        source.prepareSource(mediaSourceCaller, mediaTransferListener);
+    }
+
+    @Override
+    public void maybeThrowSourceInfoRefreshError() throws IOException {
+        source.maybeThrowSourceInfoRefreshError();
+    }
+
+    @Override
+    public void enable(final MediaSourceCaller caller) {
+        source.enable(caller);
+    }
+
+    @Override
+    public MediaPeriod createPeriod(final MediaPeriodId id, final Allocator allocator,
+                                    final long startPositionUs) {
+        return new LazyMediaPeriod(source.createPeriod(id, allocator, startPositionUs));
+    }
+
+    @Override
+    public void releasePeriod(final MediaPeriod mediaPeriod) {
+        source.releasePeriod(((LazyMediaPeriod) mediaPeriod).period);
+    }
+
+    @Override
+    public void disable(final MediaSourceCaller caller) {
+        source.disable(caller);
+    }
+
+    @Override
+    public void releaseSource(final MediaSourceCaller mediaSourceCaller) {
+        source.releaseSource(mediaSourceCaller);
+    }
+
+    @Override
+    public void addEventListener(final Handler handler,
+                                 final MediaSourceEventListener eventListener) {
+        source.addEventListener(handler, eventListener);
+    }
+
+    @Override
+    public void removeEventListener(final MediaSourceEventListener eventListener) {
+        source.removeEventListener(eventListener);
+    }
+
+    private static final class LazyMediaPeriod implements MediaPeriod {
+        private final MediaPeriod period;
+        private boolean isSelected = false;
+
+        LazyMediaPeriod(@NonNull final MediaPeriod period) {
+            this.period = period;
+        }
+
+        @Override
+        public void prepare(final Callback callback, final long positionUs) {
+            period.prepare(new Callback() {
+                @Override
+                public void onPrepared(final MediaPeriod mediaPeriod) {
+                    callback.onPrepared(LazyMediaPeriod.this);
+                }
+
+                @Override
+                public void onContinueLoadingRequested(final MediaPeriod source) {
+                    callback.onContinueLoadingRequested(LazyMediaPeriod.this);
+                }
+            }, positionUs);
+        }
+
+        @Override
+        public void maybeThrowPrepareError() throws IOException {
+            period.maybeThrowPrepareError();
+        }
+
+        @Override
+        public TrackGroupArray getTrackGroups() {
+            return period.getTrackGroups();
+        }
+
+        @Override
+        public long selectTracks(final TrackSelection[] selections,
+                                 final boolean[] mayRetainStreamFlags,
+                                 final SampleStream[] streams,
+                                 final boolean[] streamResetFlags,
+                                 final long positionUs) {
+            final long position = period.selectTracks(selections, mayRetainStreamFlags, streams,
+                    streamResetFlags, positionUs);
+
+            boolean hasStream = false;
+            for (final SampleStream stream : streams) {
+                hasStream |= stream != null;
+            }
+            // a track deselected later keeps what it loaded, report the real state from now on
+            isSelected |= hasStream;
+            return position;
+        }
+
+        @Override
+        public void discardBuffer(final long positionUs, final boolean toKeyframe) {
+            period.discardBuffer(positionUs, toKeyframe);
+        }
+
+        @Override
+        public long readDiscontinuity() {
+            return period.readDiscontinuity();
+        }
+
+        @Override
+        public long seekToUs(final long positionUs) {
+            return period.seekToUs(positionUs);
+        }
+
+        @Override
+        public long getAdjustedSeekPositionUs(final long positionUs,
+                                              final SeekParameters seekParameters) {
+            return period.getAdjustedSeekPositionUs(positionUs, seekParameters);
+        }
+
+        @Override
+        public long getBufferedPositionUs() {
+            return isSelected ? period.getBufferedPositionUs() : C.TIME_END_OF_SOURCE;
+        }
+
+        @Override
+        public long getNextLoadPositionUs() {
+            return isSelected ? period.getNextLoadPositionUs() : C.TIME_END_OF_SOURCE;
+        }
+
+        @Override
+        public boolean continueLoading(final long positionUs) {
+            return isSelected && period.continueLoading(positionUs);
+        }
+
+        @Override
+        public void reevaluateBuffer(final long positionUs) {
+            period.reevaluateBuffer(positionUs);
+        }
+    }
+}
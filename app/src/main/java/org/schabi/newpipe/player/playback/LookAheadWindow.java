@@ -0,0 +1,135 @@
+package org.schabi.newpipe.player.playback;
+
+import com.google.android.exoplayer2.Player;
+
+/**
+ * Decides how many streams around the current one {@link MediaSourceManager} should resolve.
+ * <p>
+ * The window grows when the user is skipping through the queue, when stream extraction is slow,
+ * when the queue is shuffled and when the network is not metered, so the next stream is usually
+ * resolved before it is requested. It never goes below one stream ahead and one behind, which
+ * is what was always loaded before. Streams behind the current one are only cached for going
+ * back, so that side of the window stays at {@link #MINIMUM_SIZE}.
+ * </p>
+ * <p>
+ * The times are given by the caller, as in {@code SystemClock.elapsedRealtime()}.
+ * </p>
+ */
+final class LookAheadWindow {
+    static final int MINIMUM_SIZE = 1;
+    static final int MAXIMUM_SIZE = 5;
+
+    /**
+     * A stream played for less than this is considered skipped.
+     */
+    private static final long SKIP_THRESHOLD_MILLIS = 15_000;
+    /**
+     * How many of the last index changes are used to compute the skip rate.
+     */
+    private static final int SKIP_HISTORY_SIZE = 8;
+    /**
+     * Loads finishing faster than this were served from the info cache, they say nothing about
+     * how long an extraction takes.
+     */
+    private static final long CACHED_LOAD_MILLIS = 50;
+    private static final long SLOW_EXTRACTION_MILLIS = 2_000;
+    private static final long VERY_SLOW_EXTRACTION_MILLIS = 5_000;
+
+    private final boolean[] skipHistory = new boolean[SKIP_HISTORY_SIZE];
+    private int skipHistoryCount = 0;
+    private int skipHistoryPosition = 0;
+    private long currentSelectedAt;
+
+    /**
+     * Exponential moving average of the extraction latency, -1 until the first sample.
+     */
+    private long averageExtractionMillis = -1;
+
+    /**
+     * @param nowMillis the current time, in milliseconds
+     */
+    LookAheadWindow(final long nowMillis) {
+        currentSelectedAt = nowMillis;
+    }
+
+    /**
+     * Records that a different stream became the current one.
+     *
+     * @param nowMillis the current time, in milliseconds
+     */
+    void onIndexChanged(final long nowMillis) {
+        skipHistory[skipHistoryPosition] = nowMillis - currentSelectedAt < SKIP_THRESHOLD_MILLIS;
+        skipHistoryPosition = (skipHistoryPosition + 1) % SKIP_HISTORY_SIZE;
+        skipHistoryCount = Math.min(skipHistoryCount + 1, SKIP_HISTORY_SIZE);
+        currentSelectedAt = nowMillis;
+    }
+
+    /**
+     * Records how long it took to resolve a stream.
+     *
+     * @param elapsedMillis time between the load request and the resolved media source
+     */
+    void onExtractionFinished(final long elapsedMillis) {
+        if (elapsedMillis < CACHED_LOAD_MILLIS) {
+            return;
+        }
+
+        if (averageExtractionMillis < 0) {
+            averageExtractionMillis = elapsedMillis;
+        } else {
+            averageExtractionMillis = (averageExtractionMillis * 3 + elapsedMillis) / 4;
+        }
+    }
+
+    /**
+     * @return the fraction of the recent index changes that were skips, from 0 to 1
+     */
+    float getSkipRate() {
+        if (skipHistoryCount == 0) {
+            return 0;
+        }
+
+        int skips = 0;
+        for (int i = 0; i < skipHistoryCount; i++) {
+            if (skipHistory[i]) {
+                skips++;
+            }
+        }
+        return (float) skips / skipHistoryCount;
+    }
+
+    /**
+     * @param isMetered  whether the current network is metered
+     * @param isShuffled whether the play queue is shuffled
+     * @param repeatMode the repeat mode of the player
+     * @return how many streams after the current one should be resolved
+     */
+    int getAheadSize(final boolean isMetered, final boolean isShuffled, final int repeatMode) {
+        // the next stream only plays if the user skips, no point in preparing more
+        if (repeatMode == Player.REPEAT_MODE_ONE) {
+            return MINIMUM_SIZE;
+        }
+
+        int size = MINIMUM_SIZE;
+
+        final float skipRate = getSkipRate();
+        if (skipRate >= 0.5f) {
+            size += isMetered ? 1 : 3;
+        } else if (skipRate >= 0.25f) {
+            size += isMetered ? 0 : 1;
+        }
+
+        if (averageExtractionMillis >= VERY_SLOW_EXTRACTION_MILLIS) {
+            size += 2;
+        } else if (averageExtractionMillis >= SLOW_EXTRACTION_MILLIS) {
+            size += 1;
+        }
+
+        // shuffled streams are unrelated to each other, users tend to skip more
+        if (isShuffled && !isMetered) {
+            size += 1;
+        }
+
+        return Math.min(size, MAXIMUM_SIZE);
+    }
+}
@@ -1,16 +1,19 @@
 package org.schabi.newpipe.player.playback;
 
+import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.collection.ArraySet;
+import androidx.collection.ArrayMap;
 
 import com.google.android.exoplayer2.source.MediaSource;
 
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
+import org.schabi.newpipe.player.helper.StartupTracer;
 import org.schabi.newpipe.player.mediasource.FailedMediaSource;
 import org.schabi.newpipe.player.mediasource.LoadedMediaSource;
 import org.schabi.newpipe.player.mediasource.ManagedMediaSource;
@@ -22,10 +25,16 @@ import org.schabi.newpipe.player.playqueue.events.MoveEvent;
 import org.schabi.newpipe.player.playqueue.events.PlayQueueEvent;
 import org.schabi.newpipe.player.playqueue.events.RemoveEvent;
 import org.schabi.newpipe.player.playqueue.events.ReorderEvent;
+import org.schabi.newpipe.player.playqueue.events.SelectEvent;
+import org.schabi.newpipe.util.ListHelper;
 import org.schabi.newpipe.util.ServiceHelper;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -33,12 +42,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.Single;
-import io.reactivex.rxjava3.disposables.CompositeDisposable;
 import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.internal.subscriptions.EmptySubscription;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
+import static com.google.android.exoplayer2.Player.REPEAT_MODE_ALL;
 import static org.schabi.newpipe.player.mediasource.FailedMediaSource.MediaSourceResolutionException;
 import static org.schabi.newpipe.player.mediasource.FailedMediaSource.StreamInfoLoadException;
 import static org.schabi.newpipe.player.playqueue.PlayQueue.DEBUG;
@@ -48,27 +57,17 @@ public class MediaSourceManager {
     private final String TAG = "MediaSourceManager@" + hashCode();
 
     /**
-     * Determines how many streams before and after the current stream should be loaded.
-     * The default value (1) ensures seamless playback under typical network settings.
-     * <p>
-     * The streams after the current will be loaded into the playlist timeline while the
-     * streams before will only be cached for future usage.
-     * </p>
-     *
-     * @see #onMediaSourceReceived(PlayQueueItem, ManagedMediaSource)
-     */
-    private static final int WINDOW_SIZE = 1;
-
-    /**
-     * Determines the maximum number of disposables allowed in the {@link #loaderReactor}.
-     * Once exceeded, new calls to {@link #loadImmediate()} will evict all disposables in the
-     * {@link #loaderReactor} in order to load a new set of items.
+     * Determines the maximum number of loaders allowed in the {@link #loaderReactor}.
+     * Once exceeded, new calls to {@link #loadImmediate()} will evict the loaders of the items
+     * farthest from the current one, until the limit is respected again.
      *
      * @see #loadImmediate()
      * @see #maybeLoadItem(PlayQueueItem)
      */
-    private static final int MAXIMUM_LOADER_SIZE = WINDOW_SIZE * 2 + 1;
+    private static final int MAXIMUM_LOADER_SIZE = LookAheadWindow.MAXIMUM_SIZE * 2 + 1;
 
+    @NonNull
+    private final Context context;
     @NonNull
     private final PlaybackListener playbackListener;
     @NonNull
@@ -112,10 +111,24 @@ public class MediaSourceManager {
     @NonNull
     private Subscription playQueueReactor;
 
+    /**
+     * The loaders currently running, with the time (as in {@link SystemClock#elapsedRealtime()})
+     * each one was started at.
+     */
     @NonNull
-    private final CompositeDisposable loaderReactor;
+    private final Map<PlayQueueItem, Loader> loaderReactor;
+
+    /**
+     * Determines how many streams before and after the current stream should be loaded.
+     * <p>
+     * The streams after the current will be loaded into the playlist timeline while the
+     * streams before will only be cached for future usage.
+     * </p>
+     *
+     * @see #onMediaSourceReceived(PlayQueueItem, ManagedMediaSource)
+     */
     @NonNull
-    private final Set<PlayQueueItem> loadingItems;
+    private final LookAheadWindow window;
 
     @NonNull
     private final AtomicBoolean isBlocked;
@@ -125,14 +138,16 @@ public class MediaSourceManager {
 
     private final Handler removeMediaSourceHandler = new Handler();
 
-    public MediaSourceManager(@NonNull final PlaybackListener listener,
+    public MediaSourceManager(@NonNull final Context context,
+                              @NonNull final PlaybackListener listener,
                               @NonNull final PlayQueue playQueue) {
-        this(listener, playQueue, 400L,
+        this(context, listener, playQueue, 400L,
                 /*playbackNearEndGapMillis=*/TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS),
                 /*progressUpdateIntervalMillis*/TimeUnit.MILLISECONDS.convert(2, TimeUnit.SECONDS));
     }
 
-    private MediaSourceManager(@NonNull final PlaybackListener listener,
+    private MediaSourceManager(@NonNull final Context context,
+                               @NonNull final PlaybackListener listener,
                                @NonNull final PlayQueue playQueue,
                                final long loadDebounceMillis,
                                final long playbackNearEndGapMillis,
@@ -146,6 +161,7 @@ public class MediaSourceManager {
                     + " ms] for them to be useful.");
         }
 
+        this.context = context.getApplicationContext();
         this.playbackListener = listener;
         this.playQueue = playQueue;
 
@@ -158,14 +174,13 @@ public class MediaSourceManager {
         this.debouncedLoader = getDebouncedLoader();
 
         this.playQueueReactor = EmptySubscription.INSTANCE;
-        this.loaderReactor = new CompositeDisposable();
+        this.loaderReactor = new ArrayMap<>();
+        this.window = new LookAheadWindow(SystemClock.elapsedRealtime());
 
         this.isBlocked = new AtomicBoolean(false);
 
         this.playlist = new ManagedMediaSourcePlaylist();
 
-        this.loadingItems = Collections.synchronizedSet(new ArraySet<>());
-
         playQueue.getBroadcastReceiver()
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(getReactor());
@@ -187,7 +202,10 @@ public class MediaSourceManager {
         debouncedLoader.dispose();
 
         playQueueReactor.cancel();
-        loaderReactor.dispose();
+        for (final Loader loader : loaderReactor.values()) {
+            loader.disposable.dispose();
+        }
+        loaderReactor.clear();
     }
 
     /*//////////////////////////////////////////////////////////////////////////
@@ -226,11 +244,17 @@ public class MediaSourceManager {
         switch (event.type()) {
             case INIT:
             case ERROR:
+                maybeBeginTrace();
                 maybeBlock();
             case APPEND:
                 populateSources();
                 break;
             case SELECT:
+                final SelectEvent selectEvent = (SelectEvent) event;
+                if (selectEvent.getOldIndex() != selectEvent.getNewIndex()) {
+                    window.onIndexChanged(SystemClock.elapsedRealtime());
+                    maybeBeginTrace();
+                }
                 maybeRenewCurrentIndex();
                 break;
             case REMOVE:
@@ -282,7 +306,10 @@ public class MediaSourceManager {
     //////////////////////////////////////////////////////////////////////////*/
 
     private boolean isPlayQueueReady() {
-        final boolean isWindowLoaded = playQueue.size() - playQueue.getIndex() > WINDOW_SIZE;
+        // Only the minimum window is required, larger windows are just a speedup and should
+        // never block the playback while the queue fetches more items
+        final boolean isWindowLoaded
+                = playQueue.size() - playQueue.getIndex() > LookAheadWindow.MINIMUM_SIZE;
         return playQueue.isComplete() || isWindowLoaded;
     }
 
@@ -373,17 +400,31 @@ public class MediaSourceManager {
         debouncedSignal.onNext(System.currentTimeMillis());
     }
 
+    /**
+     * Begins tracing the time until the current item starts playing, see {@link StartupTracer}.
+     */
+    private void maybeBeginTrace() {
+        final PlayQueueItem item = playQueue.getItem();
+        if (item != null) {
+            StartupTracer.getInstance().begin(item.getUrl());
+        }
+    }
+
     private void loadImmediate() {
         if (DEBUG) {
             Log.d(TAG, "MediaSource - loadImmediate() called");
         }
-        final ItemsToLoad itemsToLoad = getItemsToLoad(playQueue);
+        final int repeatMode = playbackListener.getRepeatMode();
+        final int aheadSize = window.getAheadSize(ListHelper.isMeteredNetwork(context),
+                playQueue.isShuffled(), repeatMode);
+        final ItemsToLoad itemsToLoad = getItemsToLoad(playQueue, aheadSize,
+                LookAheadWindow.MINIMUM_SIZE, repeatMode == REPEAT_MODE_ALL);
         if (itemsToLoad == null) {
             return;
         }
 
-        // Evict the previous items being loaded to free up memory, before start loading new ones
-        maybeClearLoaders();
+        // Evict the farthest items being loaded to free up memory, before start loading new ones
+        maybeEvictLoaders(itemsToLoad);
 
         maybeLoadItem(itemsToLoad.center);
         for (final PlayQueueItem item : itemsToLoad.neighbors) {
@@ -399,18 +440,18 @@ public class MediaSourceManager {
             return;
         }
 
-        if (!loadingItems.contains(item) && isCorrectionNeeded(item)) {
+        if (!loaderReactor.containsKey(item) && isCorrectionNeeded(item)) {
             if (DEBUG) {
                 Log.d(TAG, "MediaSource - Loading=[" + item.getTitle() + "] "
                         + "with url=[" + item.getUrl() + "]");
             }
 
-            loadingItems.add(item);
+            final long startedAt = SystemClock.elapsedRealtime();
             final Disposable loader = getLoadedMediaSource(item)
                     .observeOn(AndroidSchedulers.mainThread())
                     /* No exception handling since getLoadedMediaSource guarantees nonnull return */
                     .subscribe(mediaSource -> onMediaSourceReceived(item, mediaSource));
-            loaderReactor.add(loader);
+            loaderReactor.put(item, new Loader(loader, startedAt));
         }
     }
 
@@ -440,7 +481,12 @@ public class MediaSourceManager {
                     + "] with url=[" + item.getUrl() + "]");
         }
 
-        loadingItems.remove(item);
+        final Loader loader = loaderReactor.remove(item);
+        if (loader != null && mediaSource instanceof LoadedMediaSource) {
+            window.onExtractionFinished(SystemClock.elapsedRealtime() - loader.startedAt);
+            StartupTracer.getInstance().span(item.getUrl(), StartupTracer.Phase.SOURCE_LOAD,
+                    loader.startedAt);
+        }
 
         final int itemIndex = playQueue.indexOf(item);
         // Only update the playlist timeline for items at the current index or after.
@@ -507,17 +553,53 @@ public class MediaSourceManager {
         playlist.invalidate(currentIndex, removeMediaSourceHandler, this::loadImmediate);
     }
 
-    private void maybeClearLoaders() {
+    /**
+     * Disposes the loaders of the items that are no longer part of the window, starting from
+     * the farthest from the current index, until there is room for the items to load. Loaders
+     * of the items inside the window are kept, so their progress is not lost.
+     *
+     * @param itemsToLoad the items that are about to be loaded
+     */
+    private void maybeEvictLoaders(@NonNull final ItemsToLoad itemsToLoad) {
         if (DEBUG) {
-            Log.d(TAG, "MediaSource - maybeClearLoaders() called.");
+            Log.d(TAG, "MediaSource - maybeEvictLoaders() called.");
+        }
+
+        int required = itemsToLoad.neighbors.size() + 1;
+        for (final PlayQueueItem item : loaderReactor.keySet()) {
+            if (item.equals(itemsToLoad.center) || itemsToLoad.neighbors.contains(item)) {
+                required--;
+            }
+        }
+        if (loaderReactor.size() + required <= MAXIMUM_LOADER_SIZE) {
+            return;
         }
-        if (!loadingItems.contains(playQueue.getItem())
-                && loaderReactor.size() > MAXIMUM_LOADER_SIZE) {
-            loaderReactor.clear();
-            loadingItems.clear();
+
+        final int currentIndex = playQueue.getIndex();
+        final PriorityQueue<PlayQueueItem> evictable = new PriorityQueue<>(
+                Math.max(1, loaderReactor.size()),
+                (a, b) -> Integer.compare(distanceOf(b, currentIndex),
+                        distanceOf(a, currentIndex)));
+        for (final PlayQueueItem item : loaderReactor.keySet()) {
+            if (!item.equals(itemsToLoad.center) && !itemsToLoad.neighbors.contains(item)) {
+                evictable.add(item);
+            }
+        }
+
+        while (!evictable.isEmpty() && loaderReactor.size() + required > MAXIMUM_LOADER_SIZE) {
+            final Loader loader = loaderReactor.remove(evictable.poll());
+            if (loader != null) {
+                loader.disposable.dispose();
+            }
         }
     }
 
+    private int distanceOf(@NonNull final PlayQueueItem item, final int currentIndex) {
+        final int index = playQueue.indexOf(item);
+        // items removed from the queue are the first to go
+        return index < 0 ? Integer.MAX_VALUE : Math.abs(index - currentIndex);
+    }
+
     /*//////////////////////////////////////////////////////////////////////////
     // MediaSource Playlist Helpers
     //////////////////////////////////////////////////////////////////////////*/
@@ -543,7 +625,10 @@ public class MediaSourceManager {
     //////////////////////////////////////////////////////////////////////////*/
 
     @Nullable
-    private static ItemsToLoad getItemsToLoad(@NonNull final PlayQueue playQueue) {
+    private static ItemsToLoad getItemsToLoad(@NonNull final PlayQueue playQueue,
+                                              final int aheadSize,
+                                              final int behindSize,
+                                              final boolean roundRobin) {
         // The current item has higher priority
         final int currentIndex = playQueue.getIndex();
         final PlayQueueItem currentItem = playQueue.getItem(currentIndex);
@@ -551,24 +636,29 @@ public class MediaSourceManager {
             return null;
         }
 
-        // The rest are just for seamless playback
+        // The rest are just for seamless playback, ordered by priority: the closest first and,
+        // at the same distance, the one ahead first.
         // Although timeline is not updated prior to the current index, these sources are still
         // loaded into the cache for faster retrieval at a potentially later time.
-        final int leftBound = Math.max(0, currentIndex - MediaSourceManager.WINDOW_SIZE);
-        final int rightLimit = currentIndex + MediaSourceManager.WINDOW_SIZE + 1;
-        final int rightBound = Math.min(playQueue.size(), rightLimit);
-        final Set<PlayQueueItem> neighbors = new ArraySet<>(
-                playQueue.getStreams().subList(leftBound, rightBound));
-
-        // Do a round robin
-        final int excess = rightLimit - playQueue.size();
-        if (excess >= 0) {
-            neighbors.addAll(playQueue.getStreams()
-                    .subList(0, Math.min(playQueue.size(), excess)));
+        final List<PlayQueueItem> streams = playQueue.getStreams();
+        final int size = streams.size();
+        final Set<PlayQueueItem> neighbors = new LinkedHashSet<>();
+        for (int distance = 1; distance <= Math.max(aheadSize, behindSize); distance++) {
+            if (distance <= aheadSize) {
+                final int index = currentIndex + distance;
+                if (index < size) {
+                    neighbors.add(streams.get(index));
+                } else if (roundRobin) {
+                    neighbors.add(streams.get(index % size));
+                }
+            }
+            if (distance <= behindSize && currentIndex - distance >= 0) {
+                neighbors.add(streams.get(currentIndex - distance));
+            }
         }
         neighbors.remove(currentItem);
 
-        return new ItemsToLoad(currentItem, neighbors);
+        return new ItemsToLoad(currentItem, new ArrayList<>(neighbors));
     }
 
     private static class ItemsToLoad {
@@ -583,4 +673,15 @@ public class MediaSourceManager {
             this.neighbors = neighbors;
         }
     }
+
+    private static class Loader {
+        @NonNull
+        private final Disposable disposable;
+        private final long startedAt;
+
+        Loader(@NonNull final Disposable disposable, final long startedAt) {
+            this.disposable = disposable;
+            this.startedAt = startedAt;
+        }
+    }
 }
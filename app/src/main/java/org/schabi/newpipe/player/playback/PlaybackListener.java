@@ -22,6 +22,17 @@ public interface PlaybackListener {
      */
     boolean isApproachingPlaybackEdge(long timeToEndMillis);
 
+    /**
+     * Called to know how the play queue is going to be traversed, so that the streams
+     * that will be played next can be loaded in advance.
+     * <p>
+     * May be called at any time.
+     * </p>
+     *
+     * @return the repeat mode of the player, one of {@code Player.REPEAT_MODE_*}
+     */
+    int getRepeatMode();
+
     /**
      * Called when the stream at the current queue index is not ready yet.
      * Signals to the listener to block the player from playing anything and notify the source
@@ -128,6 +128,15 @@ abstract class AbstractInfoPlayQueue<T extends ListInfo, U extends InfoItem> ext
         fetchReactor = null;
     }
 
+    @NonNull
+    @Override
+    public synchronized PlayQueue copy() {
+        final AbstractInfoPlayQueue<?, ?> copy = (AbstractInfoPlayQueue<?, ?>) super.copy();
+        // a fetch in progress appends to this play queue only, the copy fetches on its own
+        copy.fetchReactor = null;
+        return copy;
+    }
+
     private static List<PlayQueueItem> extractListItems(final List<StreamInfoItem> infoItems) {
         final List<PlayQueueItem> result = new ArrayList<>();
         for (final InfoItem stream : infoItems) {
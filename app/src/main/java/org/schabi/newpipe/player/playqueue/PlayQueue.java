@@ -17,7 +17,6 @@ import org.schabi.newpipe.player.playqueue.events.SelectEvent;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -35,18 +34,19 @@ import io.reactivex.rxjava3.subjects.BehaviorSubject;
  * </p>
  * <p>
  * This class can be serialized for passing intents, but in order to start the
- * message bus, it must be initialized.
+ * message bus, it must be initialized. Within the process, {@link #copy()} is a cheaper way to
+ * hand a play queue over to another player.
  * </p>
  */
-public abstract class PlayQueue implements Serializable {
+public abstract class PlayQueue implements Serializable, Cloneable {
     public static final boolean DEBUG = MainActivity.DEBUG;
 
-    private ArrayList<PlayQueueItem> backup;
-    private ArrayList<PlayQueueItem> streams;
+    @NonNull
+    private PlayQueueItemList streams;
 
     @NonNull
-    private final AtomicInteger queueIndex;
-    private final ArrayList<PlayQueueItem> history;
+    private AtomicInteger queueIndex;
+    private ArrayList<PlayQueueItem> history;
 
     private transient BehaviorSubject<PlayQueueEvent> eventBroadcast;
     private transient Flowable<PlayQueueEvent> broadcastReceiver;
@@ -54,8 +54,7 @@ public abstract class PlayQueue implements Serializable {
     private transient boolean disposed;
 
     PlayQueue(final int index, final List<PlayQueueItem> startWith) {
-        streams = new ArrayList<>();
-        streams.addAll(startWith);
+        streams = new PlayQueueItemList(startWith);
         history = new ArrayList<>();
         if (streams.size() > index) {
             history.add(streams.get(index));
@@ -96,6 +95,38 @@ public abstract class PlayQueue implements Serializable {
         disposed = true;
     }
 
+    /**
+     * Copies the play queue without serializing it, in linear time. The copy has its own items,
+     * see {@link PlayQueueItemList#copy()}, so the player receiving it can set their recovery
+     * positions without changing the ones of this play queue.
+     * <p>
+     * Like a deserialized play queue, the copy must be initialized to start its message bus.
+     * </p>
+     *
+     * @return a copy of the play queue, not initialized
+     */
+    @NonNull
+    public synchronized PlayQueue copy() {
+        final PlayQueue copy;
+        try {
+            copy = (PlayQueue) super.clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new IllegalStateException("PlayQueue is Cloneable", e);
+        }
+
+        copy.streams = streams.copy();
+        copy.queueIndex = new AtomicInteger(getIndex());
+        copy.history = new ArrayList<>(history.size());
+        for (final PlayQueueItem item : history) {
+            final int index = copy.streams.indexOf(item);
+            copy.history.add(index != -1 ? copy.streams.get(index) : new PlayQueueItem(item));
+        }
+        copy.eventBroadcast = null;
+        copy.broadcastReceiver = null;
+        copy.disposed = false;
+        return copy;
+    }
+
     /**
      * Checks if the queue is complete.
      * <p>
@@ -173,15 +204,12 @@ public abstract class PlayQueue implements Serializable {
     }
 
     /**
-     * Returns the index of the given item using referential equality.
-     * May be null despite play queue contains identical item.
+     * Returns the index of the first item with the same url as the given one, in constant time.
      *
      * @param item the item to find the index of
-     * @return the index of the given item
+     * @return the index of the given item, or -1 if it is not in the queue
      */
-    public int indexOf(@NonNull final PlayQueueItem item) {
-        // referential equality, can't think of a better way to do this
-        // todo: better than this
+    public synchronized int indexOf(@NonNull final PlayQueueItem item) {
         return streams.indexOf(item);
     }
 
@@ -207,7 +235,7 @@ public abstract class PlayQueue implements Serializable {
      * @return whether the play queue is shuffled
      */
     public boolean isShuffled() {
-        return backup != null;
+        return streams.isShuffled();
     }
 
     /**
@@ -215,7 +243,7 @@ public abstract class PlayQueue implements Serializable {
      */
     @NonNull
     public List<PlayQueueItem> getStreams() {
-        return Collections.unmodifiableList(streams);
+        return streams.asList();
     }
 
     /*//////////////////////////////////////////////////////////////////////////
@@ -268,19 +296,14 @@ public abstract class PlayQueue implements Serializable {
      * @param items {@link PlayQueueItem}s to append
      */
     public synchronized void append(@NonNull final List<PlayQueueItem> items) {
-        final List<PlayQueueItem> itemList = new ArrayList<>(items);
-
-        if (isShuffled()) {
-            backup.addAll(itemList);
-            Collections.shuffle(itemList);
-        }
         if (!streams.isEmpty() && streams.get(streams.size() - 1).isAutoQueued()
-                && !itemList.get(0).isAutoQueued()) {
+                && !items.get(0).isAutoQueued()) {
             streams.remove(streams.size() - 1);
         }
-        streams.addAll(itemList);
+        // shuffled among themselves if the queue is shuffled
+        streams.addAll(items);
 
-        broadcast(new AppendEvent(itemList.size()));
+        broadcast(new AppendEvent(items.size()));
     }
 
     /**
@@ -333,10 +356,6 @@ public abstract class PlayQueue implements Serializable {
             queueIndex.set(0);
         }
 
-        if (backup != null) {
-            backup.remove(getItem(removeIndex));
-        }
-
         history.remove(streams.remove(removeIndex));
         if (streams.size() > queueIndex.get()) {
             history.add(streams.get(queueIndex.get()));
@@ -373,9 +392,8 @@ public abstract class PlayQueue implements Serializable {
             queueIndex.incrementAndGet();
         }
 
-        final PlayQueueItem playQueueItem = streams.remove(source);
-        playQueueItem.setAutoQueued(false);
-        streams.add(target, playQueueItem);
+        streams.get(source).setAutoQueued(false);
+        streams.move(source, target);
         broadcast(new MoveEvent(source, target));
     }
 
@@ -412,7 +430,7 @@ public abstract class PlayQueue implements Serializable {
     /**
      * Shuffles the current play queue.
      * <p>
-     * This method first backs up the existing play queue and item being played.
+     * The order of the existing play queue is remembered, see {@link PlayQueueItemList}.
      * Then a newly shuffled play queue will be generated along with currently
      * playing item placed at the beginning of the queue.
      * </p>
@@ -421,17 +439,8 @@ public abstract class PlayQueue implements Serializable {
      * </p>
      */
     public synchronized void shuffle() {
-        if (backup == null) {
-            backup = new ArrayList<>(streams);
-        }
         final int originIndex = getIndex();
-        final PlayQueueItem current = getItem();
-        Collections.shuffle(streams);
-
-        final int newIndex = streams.indexOf(current);
-        if (newIndex != -1) {
-            streams.add(0, streams.remove(newIndex));
-        }
+        streams.shuffle(originIndex);
         queueIndex.set(0);
         if (streams.size() > 0) {
             history.add(streams.get(0));
@@ -441,27 +450,25 @@ public abstract class PlayQueue implements Serializable {
     }
 
     /**
-     * Unshuffles the current play queue if a backup play queue exists.
+     * Unshuffles the current play queue if it is shuffled.
      * <p>
      * This method undoes shuffling and index will be set to the previously playing item if found,
      * otherwise, the index will reset to 0.
      * </p>
      * <p>
-     * Will emit a {@link ReorderEvent} if a backup exists.
+     * Will emit a {@link ReorderEvent} if the play queue is shuffled.
      * </p>
      */
     public synchronized void unshuffle() {
-        if (backup == null) {
+        if (!streams.isShuffled()) {
             return;
         }
         final int originIndex = getIndex();
         final PlayQueueItem current = getItem();
 
-        streams.clear();
-        streams = backup;
-        backup = null;
+        streams.unshuffle();
 
-        final int newIndex = streams.indexOf(current);
+        final int newIndex = current == null ? -1 : streams.indexOf(current);
         if (newIndex != -1) {
             queueIndex.set(newIndex);
         } else {
@@ -49,6 +49,21 @@ public class PlayQueueItem implements Serializable {
                 item.getThumbnailUrl(), item.getUploaderName(), item.getStreamType());
     }
 
+    /**
+     * Copies an item along with its state, so that a copy of a play queue can change the
+     * state of its items without changing the original ones.
+     *
+     * @param item the item to copy
+     */
+    PlayQueueItem(@NonNull final PlayQueueItem item) {
+        this(item.title, item.url, item.serviceId, item.duration, item.thumbnailUrl,
+                item.uploader, item.streamType);
+
+        this.isAutoQueued = item.isAutoQueued;
+        this.recoveryPosition = item.recoveryPosition;
+        this.error = item.error;
+    }
+
     private PlayQueueItem(@Nullable final String name, @Nullable final String url,
                           final int serviceId, final long duration,
                           @Nullable final String thumbnailUrl, @Nullable final String uploader,
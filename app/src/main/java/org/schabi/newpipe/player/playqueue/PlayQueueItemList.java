@@ -0,0 +1,332 @@
+package org.schabi.newpipe.player.playqueue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The items of a {@link PlayQueue}, indexed so that {@link #indexOf(PlayQueueItem)} does not
+ * have to scan the whole queue.
+ * <p>
+ * The index maps every item to its first position in the list, items being equal if they have
+ * the same url. It is updated along with the positions which change: appending only indexes
+ * the new items, while moving or removing reindexes the items between the changed positions.
+ * Shuffling and unshuffling change every position, so they only mark the index as stale and
+ * it is rebuilt by the next lookup.
+ * </p>
+ * <p>
+ * Shuffling does not keep a copy of the queue to restore it later. Instead, every item gets a
+ * rank, its position in the unshuffled queue, which follows it when the items are shuffled,
+ * moved or removed. Unshuffling sorts the items back by rank in linear time.
+ * </p>
+ * <p>
+ * A list can be {@link #copy() copied} without serializing it. The copy has its own items, so
+ * that the state of an item (recovery position, error) is not shared between the lists.
+ * </p>
+ */
+/* package-private */ final class PlayQueueItemList implements Serializable {
+    private static final Random RANDOM = new Random();
+
+    @NonNull
+    private final ArrayList<PlayQueueItem> items;
+    /**
+     * Not serialized, a deserialized list rebuilds it when it is first needed, see
+     * {@link #readObject(ObjectInputStream)}.
+     */
+    @NonNull
+    private transient HashMap<PlayQueueItem, Integer> firstIndexes;
+    /**
+     * Whether {@link #firstIndexes} no longer matches the positions of the items, see
+     * {@link #indexOf(PlayQueueItem)}.
+     */
+    private transient boolean isIndexStale = false;
+
+    /**
+     * The rank of each item, in the same order as {@link #items}, or {@code null} when the
+     * list is not shuffled.
+     */
+    @Nullable
+    private int[] ranks;
+    private int nextRank;
+
+    PlayQueueItemList(@NonNull final List<PlayQueueItem> startWith) {
+        items = new ArrayList<>(startWith);
+        firstIndexes = new HashMap<>(Math.max(16, items.size() * 2));
+        index(0, items.size());
+    }
+
+    private PlayQueueItemList(@NonNull final ArrayList<PlayQueueItem> items,
+                              @Nullable final int[] ranks, final int nextRank) {
+        this.items = items;
+        this.ranks = ranks;
+        this.nextRank = nextRank;
+        // built by the first lookup, not every copy needs it
+        firstIndexes = new HashMap<>();
+        isIndexStale = true;
+    }
+
+    private void readObject(@NonNull final ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        firstIndexes = new HashMap<>();
+        isIndexStale = true;
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Readonly ops
+    //////////////////////////////////////////////////////////////////////////*/
+
+    @NonNull
+    PlayQueueItem get(final int index) {
+        return items.get(index);
+    }
+
+    int size() {
+        return items.size();
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * Rebuilds the index if it is stale, so even if it only reads the list it must be guarded
+     * like the write operations.
+     *
+     * @param item the item to find
+     * @return the first index of an item with the same url, or -1 if there is none
+     */
+    int indexOf(@NonNull final PlayQueueItem item) {
+        if (isIndexStale) {
+            firstIndexes.clear();
+            isIndexStale = false;
+            index(0, items.size());
+        }
+
+        final Integer index = firstIndexes.get(item);
+        return index == null ? -1 : index;
+    }
+
+    boolean isShuffled() {
+        return ranks != null;
+    }
+
+    /**
+     * @return an immutable view of the items
+     */
+    @NonNull
+    List<PlayQueueItem> asList() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Copies the list and its items, in linear time.
+     *
+     * @return a list with copies of the items, in the same order and with the same ranks
+     */
+    @NonNull
+    PlayQueueItemList copy() {
+        final ArrayList<PlayQueueItem> itemCopies = new ArrayList<>(items.size());
+        for (final PlayQueueItem item : items) {
+            itemCopies.add(new PlayQueueItem(item));
+        }
+        return new PlayQueueItemList(itemCopies, ranks == null ? null : ranks.clone(), nextRank);
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Write ops
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * Appends the items at the end of the list. If the list is shuffled, they are shuffled
+     * among themselves first and they are restored after the current items when unshuffling.
+     *
+     * @param newItems the items to append
+     */
+    void addAll(@NonNull final List<PlayQueueItem> newItems) {
+        final int start = items.size();
+        items.addAll(newItems);
+
+        if (ranks != null) {
+            ranks = ensureCapacity(ranks, items.size());
+            for (int i = start; i < items.size(); i++) {
+                ranks[i] = nextRank++;
+            }
+            shuffleRange(start, items.size());
+        }
+        index(start, items.size());
+    }
+
+    /**
+     * @param index the index of the item to remove
+     * @return the removed item
+     */
+    @NonNull
+    PlayQueueItem remove(final int index) {
+        final int size = items.size();
+        unindex(index, size);
+
+        final PlayQueueItem item = items.remove(index);
+        if (ranks != null) {
+            System.arraycopy(ranks, index + 1, ranks, index, size - index - 1);
+        }
+
+        index(index, size - 1);
+        return item;
+    }
+
+    /**
+     * @param source the index of the item to move
+     * @param target the new index of the item
+     */
+    void move(final int source, final int target) {
+        final int from = Math.min(source, target);
+        final int to = Math.max(source, target) + 1;
+        unindex(from, to);
+
+        items.add(target, items.remove(source));
+        if (ranks != null) {
+            final int rank = ranks[source];
+            if (source < target) {
+                System.arraycopy(ranks, source + 1, ranks, source, target - source);
+            } else {
+                System.arraycopy(ranks, target, ranks, target + 1, source - target);
+            }
+            ranks[target] = rank;
+        }
+
+        index(from, to);
+    }
+
+    /**
+     * Shuffles the items, placing the given one first. Shuffling an already shuffled list
+     * keeps the ranks of the first shuffle, so unshuffling always restores the original order.
+     *
+     * @param first the index of the item to place first, ignored if out of bounds
+     */
+    void shuffle(final int first) {
+        final int size = items.size();
+        if (ranks == null) {
+            ranks = new int[size];
+            for (int i = 0; i < size; i++) {
+                ranks[i] = i;
+            }
+            nextRank = size;
+        }
+
+        if (first > 0 && first < size) {
+            swap(0, first);
+        }
+        shuffleRange(first >= 0 && first < size ? 1 : 0, size);
+        isIndexStale = true;
+    }
+
+    /**
+     * Restores the order the items had before being shuffled, does nothing if the list is not
+     * shuffled.
+     */
+    void unshuffle() {
+        if (ranks == null) {
+            return;
+        }
+
+        // the ranks are distinct and below nextRank, a bucket per rank sorts them in linear time
+        final PlayQueueItem[] byRank = new PlayQueueItem[nextRank];
+        for (int i = 0; i < items.size(); i++) {
+            byRank[ranks[i]] = items.get(i);
+        }
+
+        items.clear();
+        for (final PlayQueueItem item : byRank) {
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        ranks = null;
+        nextRank = 0;
+        isIndexStale = true;
+    }
+
+    /*//////////////////////////////////////////////////////////////////////////
+    // Utils
+    //////////////////////////////////////////////////////////////////////////*/
+
+    /**
+     * Fisher-Yates shuffle of the items, and their ranks, in the range. Does not update the
+     * index.
+     *
+     * @param from the first index of the range
+     * @param to   the index after the last one of the range
+     */
+    private void shuffleRange(final int from, final int to) {
+        for (int i = to - 1; i > from; i--) {
+            swap(i, from + RANDOM.nextInt(i - from + 1));
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        items.set(i, items.set(j, items.get(i)));
+        if (ranks != null) {
+            final int rank = ranks[i];
+            ranks[i] = ranks[j];
+            ranks[j] = rank;
+        }
+    }
+
+    /**
+     * Forgets the indexes pointing in the range, to be called before changing the positions in
+     * it. The items in the range whose first position is before it keep their index. Does
+     * nothing if the index is stale, it is rebuilt anyway.
+     *
+     * @param from the first index of the range
+     * @param to   the index after the last one of the range
+     */
+    private void unindex(final int from, final int to) {
+        if (isIndexStale) {
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            final PlayQueueItem item = items.get(i);
+            final Integer index = firstIndexes.get(item);
+            if (index != null && index >= from) {
+                firstIndexes.remove(item);
+            }
+        }
+    }
+
+    /**
+     * Indexes the items in the range which have no index yet, to be called after changing the
+     * positions in it, see {@link #unindex(int, int)}.
+     *
+     * @param from the first index of the range
+     * @param to   the index after the last one of the range
+     */
+    private void index(final int from, final int to) {
+        if (isIndexStale) {
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            final PlayQueueItem item = items.get(i);
+            if (!firstIndexes.containsKey(item)) {
+                firstIndexes.put(item, i);
+            }
+        }
+    }
+
+    @NonNull
+    private static int[] ensureCapacity(@NonNull final int[] array, final int capacity) {
+        if (array.length >= capacity) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(capacity, array.length * 3 / 2));
+    }
+}
@@ -1,6 +1,7 @@
 package org.schabi.newpipe.player.resolver;
 
 import android.content.Context;
+import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -10,6 +11,7 @@ import com.google.android.exoplayer2.source.MediaSource;
 import org.schabi.newpipe.extractor.MediaFormat;
 import org.schabi.newpipe.extractor.stream.AudioStream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
+import org.schabi.newpipe.player.helper.DownloadedStreamIndex;
 import org.schabi.newpipe.player.helper.PlayerDataSource;
 import org.schabi.newpipe.player.helper.PlayerHelper;
 import org.schabi.newpipe.util.ListHelper;
@@ -41,6 +43,12 @@ public class AudioPlaybackResolver implements PlaybackResolver {
 
         final AudioStream audio = info.getAudioStreams().get(index);
         final MediaSourceTag tag = new MediaSourceTag(info);
+
+        final Uri downloaded = DownloadedStreamIndex.getInstance(context).findAudio(info, audio);
+        if (downloaded != null) {
+            return buildLocalMediaSource(dataSource, downloaded, tag);
+        }
+
         return buildMediaSource(dataSource, audio.getUrl(), PlayerHelper.cacheKeyOf(info, audio),
                 MediaFormat.getSuffixById(audio.getFormatId()), tag);
     }
@@ -55,6 +55,22 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
         }
     }
 
+    /**
+     * Builds a source playing a downloaded file instead of the network.
+     *
+     * @param dataSource the data source of the player
+     * @param uri        the file, see {@link
+     *                   org.schabi.newpipe.player.helper.DownloadedStreamIndex}
+     * @param metadata   the tag of the source
+     * @return the source
+     */
+    @NonNull
+    default MediaSource buildLocalMediaSource(@NonNull final PlayerDataSource dataSource,
+                                              @NonNull final Uri uri,
+                                              @NonNull final MediaSourceTag metadata) {
+        return dataSource.getLocalMediaSourceFactory().setTag(metadata).createMediaSource(uri);
+    }
+
     @NonNull
     default MediaSource buildMediaSource(@NonNull final PlayerDataSource dataSource,
                                          @NonNull final String sourceUrl,
@@ -76,6 +92,9 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
                 return dataSource.getHlsMediaSourceFactory().setTag(metadata)
                         .createMediaSource(uri);
             case C.TYPE_OTHER:
+                // progressive sources are cached by key, they can be prefetched
+                dataSource.getPrefetcher().register(metadata.getMetadata().getUrl(), sourceUrl,
+                        cacheKey);
                 return dataSource.getExtractorMediaSourceFactory(cacheKey).setTag(metadata)
                         .createMediaSource(uri);
             default:
@@ -2,6 +2,7 @@ package org.schabi.newpipe.player.resolver;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -9,44 +10,80 @@ import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.MergingMediaSource;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
 
 import org.schabi.newpipe.extractor.MediaFormat;
 import org.schabi.newpipe.extractor.stream.AudioStream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
+import org.schabi.newpipe.player.helper.DownloadedStreamIndex;
 import org.schabi.newpipe.player.helper.PlayerDataSource;
 import org.schabi.newpipe.player.helper.PlayerHelper;
+import org.schabi.newpipe.player.helper.StartupTracer;
+import org.schabi.newpipe.player.mediasource.LazyMediaSource;
 import org.schabi.newpipe.util.ListHelper;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.google.android.exoplayer2.C.SELECTION_FLAG_AUTOSELECT;
 import static com.google.android.exoplayer2.C.TIME_UNSET;
 
 public class VideoPlaybackResolver implements PlaybackResolver {
+    /**
+     * Fraction of the estimated bandwidth a stream may use in adaptive mode, the rest is
+     * headroom for the bandwidth changes.
+     */
+    private static final float BANDWIDTH_FRACTION = 0.7f;
+    /**
+     * How much the budget has to exceed the next resolution for the limit to be raised.
+     */
+    private static final float RAISE_MARGIN = 1.25f;
+    /**
+     * The limit is not raised sooner than this after being changed, so that the bandwidth
+     * estimate has the time to reflect the new resolution.
+     */
+    private static final long RAISE_INTERVAL_MILLIS = 60_000;
+    private static final Pattern RESOLUTION_PATTERN = Pattern.compile("(\\d+)p(\\d+)?");
+
     @NonNull
     private final Context context;
     @NonNull
     private final PlayerDataSource dataSource;
     @NonNull
     private final QualityResolver qualityResolver;
+    @NonNull
+    private final BandwidthMeter bandwidthMeter;
 
     @Nullable
     private String playbackQuality;
 
+    /**
+     * The highest resolution the adaptive mode may pick, lowered when the playback keeps
+     * stalling and raised again step by step when the connection gets better. Null if not
+     * limited.
+     */
+    @Nullable
+    private String adaptiveQualityLimit;
+    private long adaptiveQualityLimitedAt;
+
     public VideoPlaybackResolver(@NonNull final Context context,
                                  @NonNull final PlayerDataSource dataSource,
-                                 @NonNull final QualityResolver qualityResolver) {
+                                 @NonNull final QualityResolver qualityResolver,
+                                 @NonNull final BandwidthMeter bandwidthMeter) {
         this.context = context;
         this.dataSource = dataSource;
         this.qualityResolver = qualityResolver;
+        this.bandwidthMeter = bandwidthMeter;
     }
 
     @Override
     @Nullable
     public MediaSource resolve(@NonNull final StreamInfo info) {
+        final long startedAt = SystemClock.elapsedRealtime();
         final MediaSource liveSource = maybeBuildLiveMediaSource(dataSource, info);
         if (liveSource != null) {
             return liveSource;
@@ -61,14 +98,22 @@ public class VideoPlaybackResolver implements PlaybackResolver {
         if (videos.isEmpty()) {
             index = -1;
         } else if (playbackQuality == null) {
-            index = qualityResolver.getDefaultResolutionIndex(videos);
+            final int defaultIndex = qualityResolver.getDefaultResolutionIndex(videos);
+            index = PlayerHelper.isAdaptiveQualityEnabled(context)
+                    ? getAdaptiveResolutionIndex(videos, defaultIndex, info.getAudioStreams())
+                    : defaultIndex;
         } else {
             index = qualityResolver.getOverrideResolutionIndex(videos, getPlaybackQuality());
         }
         final MediaSourceTag tag = new MediaSourceTag(info, videos, index);
         @Nullable final VideoStream video = tag.getSelectedVideoStream();
 
-        if (video != null) {
+        // Play the downloaded file if there is one, it carries the audio too
+        final Uri downloaded = video == null
+                ? null : DownloadedStreamIndex.getInstance(context).findVideo(info, video);
+        if (downloaded != null) {
+            mediaSources.add(buildLocalMediaSource(dataSource, downloaded, tag));
+        } else if (video != null) {
             final MediaSource streamSource = buildMediaSource(dataSource, video.getUrl(),
                     PlayerHelper.cacheKeyOf(info, video),
                     MediaFormat.getSuffixById(video.getFormatId()), tag);
@@ -81,7 +126,7 @@ public class VideoPlaybackResolver implements PlaybackResolver {
                 ListHelper.getDefaultAudioFormat(context, audioStreams));
         // Use the audio stream if there is no video stream, or
         // Merge with audio stream in case if video does not contain audio
-        if (audio != null && (video == null || video.isVideoOnly)) {
+        if (audio != null && downloaded == null && (video == null || video.isVideoOnly)) {
             final MediaSource audioSource = buildMediaSource(dataSource, audio.getUrl(),
                     PlayerHelper.cacheKeyOf(info, audio),
                     MediaFormat.getSuffixById(audio.getFormatId()), tag);
@@ -94,7 +139,7 @@ public class VideoPlaybackResolver implements PlaybackResolver {
         }
         // Below are auxiliary media sources
 
-        // Create subtitle sources
+        // Create subtitle sources, only the selected ones are loaded
         if (info.getSubtitles() != null) {
             for (final SubtitlesStream subtitle : info.getSubtitles()) {
                 final String mimeType = PlayerHelper.subtitleMimeTypesOf(subtitle.getFormat());
@@ -107,10 +152,12 @@ public class VideoPlaybackResolver implements PlaybackResolver {
                         PlayerHelper.captionLanguageOf(context, subtitle));
                 final MediaSource textSource = dataSource.getSampleMediaSourceFactory()
                         .createMediaSource(Uri.parse(subtitle.getUrl()), textFormat, TIME_UNSET);
-                mediaSources.add(textSource);
+                mediaSources.add(new LazyMediaSource(textSource));
             }
         }
 
+        StartupTracer.getInstance().span(info.getUrl(), StartupTracer.Phase.RESOLUTION,
+                startedAt);
         if (mediaSources.size() == 1) {
             return mediaSources.get(0);
         } else {
@@ -128,6 +175,170 @@ public class VideoPlaybackResolver implements PlaybackResolver {
         this.playbackQuality = playbackQuality;
     }
 
+    /**
+     * Lowers the resolution the adaptive mode may pick below the one of the given source, to
+     * be called when the playback keeps stalling. The source has to be resolved again for the
+     * change to take effect.
+     *
+     * @param tag the tag of the source currently played
+     * @return false if there is no lower resolution or the quality was chosen by the user
+     */
+    public boolean lowerAdaptiveQuality(@NonNull final MediaSourceTag tag) {
+        final VideoStream current = tag.getSelectedVideoStream();
+        if (playbackQuality != null || current == null
+                || !PlayerHelper.isAdaptiveQualityEnabled(context)) {
+            return false;
+        }
+
+        // the list is sorted from the highest resolution to the lowest
+        final List<VideoStream> videos = tag.getSortedAvailableVideoStreams();
+        for (int i = tag.getSelectedVideoStreamIndex() + 1; i < videos.size(); i++) {
+            final VideoStream lower = videos.get(i);
+            if (isSameGroup(current, lower)
+                    && estimateBitrate(lower.getResolution())
+                    < estimateBitrate(current.getResolution())) {
+                adaptiveQualityLimit = lower.getResolution();
+                adaptiveQualityLimitedAt = SystemClock.elapsedRealtime();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the limit set by {@link #lowerAdaptiveQuality(MediaSourceTag)}, to be called
+     * when a new queue is played.
+     */
+    public void resetAdaptiveQuality() {
+        adaptiveQualityLimit = null;
+    }
+
+    /**
+     * Picks, among the streams with the same format (and so codec) of the default one, the
+     * highest resolution fitting in the estimated bandwidth. The default resolution is never
+     * exceeded, if nothing fits the lowest resolution is picked.
+     *
+     * @param videos       the video streams, sorted as shown to the user
+     * @param defaultIndex the index of the resolution chosen by the user settings
+     * @param audioStreams the audio streams, to subtract their bitrate from the budget
+     * @return the index of the video stream to play
+     */
+    private int getAdaptiveResolutionIndex(@NonNull final List<VideoStream> videos,
+                                           final int defaultIndex,
+                                           @NonNull final List<AudioStream> audioStreams) {
+        if (defaultIndex < 0 || defaultIndex >= videos.size()) {
+            return defaultIndex;
+        }
+        final VideoStream defaultVideo = videos.get(defaultIndex);
+
+        long budget = (long) (bandwidthMeter.getBitrateEstimate() * BANDWIDTH_FRACTION);
+        final int audioIndex = ListHelper.getDefaultAudioFormat(context, audioStreams);
+        if (defaultVideo.isVideoOnly && audioIndex >= 0 && audioIndex < audioStreams.size()) {
+            budget -= Math.max(0, audioStreams.get(audioIndex).getAverageBitrate()) * 1000L;
+        }
+        raiseAdaptiveQualityLimit(videos, defaultIndex, budget);
+        final long limit = adaptiveQualityLimit == null
+                ? Long.MAX_VALUE : estimateBitrate(adaptiveQualityLimit);
+
+        int lowestIndex = defaultIndex;
+        for (int i = defaultIndex; i < videos.size(); i++) {
+            final VideoStream video = videos.get(i);
+            if (!isSameGroup(defaultVideo, video)) {
+                continue;
+            }
+
+            final long bitrate = estimateBitrate(video.getResolution());
+            if (bitrate <= limit && bitrate <= budget) {
+                return i;
+            }
+            lowestIndex = i;
+        }
+        return lowestIndex;
+    }
+
+    /**
+     * Raises the limit to the next resolution when the budget comfortably exceeds it and the
+     * limit was not changed for a while. The limit is removed once it reaches the default
+     * resolution.
+     *
+     * @param videos       the video streams, sorted as shown to the user
+     * @param defaultIndex the index of the resolution chosen by the user settings
+     * @param budget       the bitrate available for the video, in bits per second
+     */
+    private void raiseAdaptiveQualityLimit(@NonNull final List<VideoStream> videos,
+                                           final int defaultIndex,
+                                           final long budget) {
+        final long now = SystemClock.elapsedRealtime();
+        if (adaptiveQualityLimit == null
+                || now - adaptiveQualityLimitedAt < RAISE_INTERVAL_MILLIS) {
+            return;
+        }
+        final VideoStream defaultVideo = videos.get(defaultIndex);
+        final long limit = estimateBitrate(adaptiveQualityLimit);
+
+        // the list is sorted from the highest resolution to the lowest
+        int nextIndex = -1;
+        for (int i = defaultIndex; i < videos.size(); i++) {
+            final VideoStream video = videos.get(i);
+            if (isSameGroup(defaultVideo, video)
+                    && estimateBitrate(video.getResolution()) > limit) {
+                nextIndex = i;
+            }
+        }
+
+        if (nextIndex < 0) {
+            adaptiveQualityLimit = null;
+        } else if (budget >= estimateBitrate(videos.get(nextIndex).getResolution())
+                * RAISE_MARGIN) {
+            adaptiveQualityLimit = nextIndex == defaultIndex
+                    ? null : videos.get(nextIndex).getResolution();
+            adaptiveQualityLimitedAt = now;
+        }
+    }
+
+    private static boolean isSameGroup(@NonNull final VideoStream a,
+                                       @NonNull final VideoStream b) {
+        return a.getFormat() == b.getFormat() && a.isVideoOnly == b.isVideoOnly;
+    }
+
+    /**
+     * Estimates the bitrate of a video from its resolution, as the streams carry no bitrate.
+     * The values are the usual ones of the streaming services, on the high side.
+     *
+     * @param resolution the resolution, like "720p" or "1080p60"
+     * @return the estimated bitrate in bits per second
+     */
+    private static long estimateBitrate(@NonNull final String resolution) {
+        final Matcher matcher = RESOLUTION_PATTERN.matcher(resolution);
+        if (!matcher.find()) {
+            return Long.MAX_VALUE;
+        }
+
+        final int height = Integer.parseInt(matcher.group(1));
+        final long kbps;
+        if (height <= 144) {
+            kbps = 150;
+        } else if (height <= 240) {
+            kbps = 300;
+        } else if (height <= 360) {
+            kbps = 700;
+        } else if (height <= 480) {
+            kbps = 1_200;
+        } else if (height <= 720) {
+            kbps = 2_500;
+        } else if (height <= 1080) {
+            kbps = 4_500;
+        } else if (height <= 1440) {
+            kbps = 9_000;
+        } else {
+            kbps = 18_000;
+        }
+
+        final boolean highFrameRate = matcher.group(2) != null
+                && Integer.parseInt(matcher.group(2)) > 30;
+        return (highFrameRate ? kbps * 3 / 2 : kbps) * 1000;
+    }
+
     public interface QualityResolver {
         int getDefaultResolutionIndex(List<VideoStream> sortedVideos);
 
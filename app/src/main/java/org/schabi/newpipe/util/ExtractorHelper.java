@@ -59,6 +59,7 @@ import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.StreamInfoItem;
 import org.schabi.newpipe.extractor.suggestion.SuggestionExtractor;
 import org.schabi.newpipe.ktx.ExceptionUtils;
+import org.schabi.newpipe.player.helper.StartupTracer;
 import org.schabi.newpipe.report.ErrorActivity;
 import org.schabi.newpipe.report.ErrorInfo;
 import org.schabi.newpipe.report.UserAction;
@@ -125,8 +126,10 @@ public final class ExtractorHelper {
     public static Single<StreamInfo> getStreamInfo(final int serviceId, final String url,
                                                    final boolean forceLoad) {
         checkServiceId(serviceId);
-        return checkCache(forceLoad, serviceId, url, InfoItem.InfoType.STREAM,
-                Single.fromCallable(() -> StreamInfo.getInfo(NewPipe.getService(serviceId), url)));
+        return StartupTracer.getInstance().traceExtraction(url,
+                checkCache(forceLoad, serviceId, url, InfoItem.InfoType.STREAM,
+                        Single.fromCallable(() ->
+                                StreamInfo.getInfo(NewPipe.getService(serviceId), url))));
     }
 
     public static Single<ChannelInfo> getChannelInfo(final int serviceId, final String url,
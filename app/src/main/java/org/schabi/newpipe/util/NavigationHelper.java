@@ -76,10 +76,7 @@ public final class NavigationHelper {
         final Intent intent = new Intent(context, targetClazz);
 
         if (playQueue != null) {
-            final String cacheKey = SerializedCache.getInstance().put(playQueue, PlayQueue.class);
-            if (cacheKey != null) {
-                intent.putExtra(Player.PLAY_QUEUE_KEY, cacheKey);
-            }
+            putPlayQueue(intent, playQueue);
         }
         intent.putExtra(Player.RESUME_PLAYBACK, resumePlayback);
         intent.putExtra(Player.PLAYER_TYPE, MainPlayer.PlayerType.VIDEO.ordinal());
@@ -489,14 +486,25 @@ public final class NavigationHelper {
         intent.putExtra(VideoDetailFragment.KEY_SWITCHING_PLAYERS, switchingPlayers);
 
         if (playQueue != null) {
-            final String cacheKey = SerializedCache.getInstance().put(playQueue, PlayQueue.class);
-            if (cacheKey != null) {
-                intent.putExtra(Player.PLAY_QUEUE_KEY, cacheKey);
-            }
+            putPlayQueue(intent, playQueue);
         }
         context.startActivity(intent);
     }
 
+    /**
+     * Hands the play queue over to the target of the intent. The players and the activities
+     * run in the app process, which holds the cache, so instead of serializing the play queue
+     * a copy of it is passed, see {@link PlayQueue#copy()}.
+     *
+     * @param intent    the intent opening a player or the video detail
+     * @param playQueue the play queue to pass
+     */
+    private static void putPlayQueue(@NonNull final Intent intent,
+                                     @NonNull final PlayQueue playQueue) {
+        intent.putExtra(Player.PLAY_QUEUE_KEY, SerializedCache.getInstance()
+                .putWithoutCopy(playQueue.copy(), PlayQueue.class));
+    }
+
     public static void openMainActivity(final Context context) {
         final Intent mIntent = new Intent(context, MainActivity.class);
         mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -75,6 +75,30 @@ public final class SerializedCache {
         return false;
     }
 
+    /**
+     * Like {@link #put(Serializable, Class)}, but stores the item as is instead of a serialized
+     * copy of it. Only for items which the caller does not change anymore, like a copy made
+     * for the purpose, e.g. {@link org.schabi.newpipe.player.playqueue.PlayQueue#copy()}.
+     *
+     * @param item the item to store
+     * @param type the type of the item
+     * @param <T>  the type of the item
+     * @return the key of the item
+     */
+    @NonNull
+    public <T extends Serializable> String putWithoutCopy(@NonNull final T item,
+                                                          @NonNull final Class<T> type) {
+        final String key = UUID.randomUUID().toString();
+        if (DEBUG) {
+            Log.d(TAG, "putWithoutCopy() called with: key = [" + key + "], "
+                    + "item = [" + item + "]");
+        }
+        synchronized (LRU_CACHE) {
+            LRU_CACHE.put(key, new CacheData<>(item, type));
+        }
+        return key;
+    }
+
     public void clear() {
         if (DEBUG) {
             Log.d(TAG, "clear() called");
@@ -1,6 +1,7 @@
 package org.schabi.newpipe.util;
 
 import android.content.Context;
+import android.net.Uri;
 import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -10,6 +11,8 @@ import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import androidx.collection.LruCache;
+
 import org.schabi.newpipe.DownloaderImpl;
 import org.schabi.newpipe.R;
 import org.schabi.newpipe.extractor.stream.AudioStream;
@@ -18,13 +21,15 @@ import org.schabi.newpipe.extractor.stream.SubtitlesStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
-import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import us.shandian.giga.util.Utility;
 
@@ -179,6 +184,10 @@ public class StreamItemAdapter<T extends Stream, U extends Stream> extends BaseA
     public static class StreamSizeWrapper<T extends Stream> implements Serializable {
         private static final StreamSizeWrapper<Stream> EMPTY = new StreamSizeWrapper<>(
                 Collections.emptyList(), null);
+        private static final int MAX_PARALLEL_REQUESTS = 6;
+        private static final long UPDATE_INTERVAL_MILLIS = 250;
+        private static final long MAX_CACHE_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(6);
+        private static final LruCache<String, CachedSize> SIZE_CACHE = new LruCache<>(256);
         private final List<T> streamsList;
         private final long[] streamSizes;
         private final String unknownSize;
@@ -196,32 +205,67 @@ public class StreamItemAdapter<T extends Stream, U extends Stream> extends BaseA
 
         /**
          * Helper method to fetch the sizes of all the streams in a wrapper.
+         * The sizes are requested in parallel and cached per stream url, so
+         * opening the same streams again does not need any request.
          *
          * @param <X> the stream type's class extending {@link Stream}
          * @param streamsWrapper the wrapper
-         * @return a {@link Single} that returns a boolean indicating if any elements were changed
+         * @return an {@link Observable} that emits every time some sizes were changed
          */
-        public static <X extends Stream> Single<Boolean> fetchSizeForWrapper(
+        public static <X extends Stream> Observable<Boolean> fetchSizeForWrapper(
                 final StreamSizeWrapper<X> streamsWrapper) {
-            final Callable<Boolean> fetchAndSet = () -> {
-                boolean hasChanged = false;
-                for (final X stream : streamsWrapper.getStreamsList()) {
-                    if (streamsWrapper.getSizeInBytes(stream) > -2) {
-                        continue;
-                    }
+            final List<X> pending = new ArrayList<>();
+            boolean hasCached = false;
+
+            for (final X stream : streamsWrapper.getStreamsList()) {
+                if (streamsWrapper.getSizeInBytes(stream) > -2) {
+                    continue;
+                }
 
-                    final long contentLength = DownloaderImpl.getInstance().getContentLength(
-                            stream.getUrl());
-                    streamsWrapper.setSize(stream, contentLength);
-                    hasChanged = true;
+                final long cachedSize = getCachedSize(stream.getUrl());
+                if (cachedSize > -2) {
+                    streamsWrapper.setSize(stream, cachedSize);
+                    hasCached = true;
+                } else {
+                    pending.add(stream);
                 }
-                return hasChanged;
-            };
+            }
+
+            final Observable<Boolean> fetched = Observable.fromIterable(pending)
+                    .flatMapMaybe(stream -> Maybe.fromCallable(() -> {
+                        final long contentLength = DownloaderImpl.getInstance()
+                                .getContentLength(stream.getUrl());
+                        putCachedSize(stream.getUrl(), contentLength);
+                        streamsWrapper.setSize(stream, contentLength);
+                        return true;
+                    })
+                            .subscribeOn(Schedulers.io())
+                            .onErrorComplete(), false, MAX_PARALLEL_REQUESTS)
+                    // avoid refreshing the spinner for every single size
+                    .throttleLatest(UPDATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS, true);
+
+            return (hasCached ? fetched.startWithItem(true) : fetched)
+                    .observeOn(AndroidSchedulers.mainThread());
+        }
+
+        private static long getCachedSize(final String url) {
+            synchronized (SIZE_CACHE) {
+                final CachedSize cached = SIZE_CACHE.get(url);
+                if (cached == null) {
+                    return -2;
+                }
+                if (cached.isExpired()) {
+                    SIZE_CACHE.remove(url);
+                    return -2;
+                }
+                return cached.size;
+            }
+        }
 
-            return Single.fromCallable(fetchAndSet)
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .onErrorReturnItem(true);
+        private static void putCachedSize(final String url, final long size) {
+            synchronized (SIZE_CACHE) {
+                SIZE_CACHE.put(url, new CachedSize(url, size));
+            }
         }
 
         public static <X extends Stream> StreamSizeWrapper<X> empty() {
@@ -263,5 +307,30 @@ public class StreamItemAdapter<T extends Stream, U extends Stream> extends BaseA
         public void setSize(final T stream, final long sizeInBytes) {
             streamSizes[streamsList.indexOf(stream)] = sizeInBytes;
         }
+
+        private static final class CachedSize {
+            private final long size;
+            private final long expireTimestamp;
+
+            CachedSize(final String url, final long size) {
+                this.size = size;
+
+                // streaming urls usually carry their own expiration date (in seconds)
+                long expiration = System.currentTimeMillis() + MAX_CACHE_LIFETIME_MILLIS;
+                try {
+                    final String expire = Uri.parse(url).getQueryParameter("expire");
+                    if (expire != null) {
+                        expiration = Math.min(expiration, Long.parseLong(expire) * 1000);
+                    }
+                } catch (final NumberFormatException | UnsupportedOperationException e) {
+                    // use the default lifetime
+                }
+                this.expireTimestamp = expiration;
+            }
+
+            private boolean isExpired() {
+                return System.currentTimeMillis() > expireTimestamp;
+            }
+        }
     }
 }
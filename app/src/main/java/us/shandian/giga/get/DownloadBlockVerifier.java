@@ -0,0 +1,147 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import us.shandian.giga.util.BufferPool;
+import us.shandian.giga.util.RollingChecksum;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Checks the downloaded blocks against the checksums saved along the mission state, used
+ * after an unclean shutdown where the file could contain torn writes. Only the corrupted
+ * blocks are marked to be downloaded again.
+ */
+public class DownloadBlockVerifier extends Thread {
+    private static final String TAG = "DownloadBlockVerifier";
+    static final int mId = -4;
+
+    private final DownloadMission mMission;
+    private ExecutorService mPool;
+
+    DownloadBlockVerifier(@NonNull DownloadMission mission) {
+        mMission = mission;
+    }
+
+    @Override
+    public void run() {
+        int[] blocks;
+        int[] checksums;
+
+        synchronized (mMission.LOCK) {
+            blocks = mMission.blocks.clone();
+            checksums = mMission.blockChecksums.clone();
+        }
+
+        int workers = Math.max(1, Math.min(mMission.threadCount, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger nextBlock = new AtomicInteger(0);
+        List<Future<Void>> tasks = new ArrayList<>(workers);
+
+        mPool = Executors.newFixedThreadPool(workers);
+
+        try {
+            for (int i = 0; i < workers; i++) {
+                tasks.add(mPool.submit(() -> {
+                    verify(blocks, checksums, nextBlock);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> task : tasks) task.get();
+        } catch (Exception e) {
+            if (!mMission.running || isInterrupted()) return;
+
+            // can not verify, assume all blocks are fine and let the download continue
+            Log.e(TAG, "block verification failed", e);
+        } finally {
+            mPool.shutdownNow();
+        }
+
+        if (!mMission.running || isInterrupted()) return;
+
+        long lost = 0;
+        int corrupted = 0;
+
+        synchronized (mMission.LOCK) {
+            for (int i = 0; i < blocks.length; i++) {
+                if (blocks[i] != 0 || mMission.blocks[i] == 0) continue;
+
+                lost += mMission.blocks[i] < 0 ? getBlockLength(i) : mMission.blocks[i];
+                mMission.blocks[i] = 0;
+                mMission.blockChecksums[i] = RollingChecksum.INITIAL;
+                corrupted++;
+            }
+        }
+
+        Log.i(TAG, "verified " + mMission.storage.getName() + ", corrupted blocks: " + corrupted);
+
+        if (lost > 0) mMission.notifyProgress(-lost);
+
+        mMission.verifyBlocks = false;
+        mMission.running = false;
+        mMission.start();
+    }
+
+    /**
+     * Verifies the blocks taken from the shared counter, a corrupted block is reset to 0
+     */
+    private void verify(int[] blocks, int[] checksums, AtomicInteger nextBlock) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+
+        try (SharpStream f = mMission.storage.getStream()) {
+            int position;
+
+            while ((position = nextBlock.getAndIncrement()) < blocks.length) {
+                if (!mMission.running || isInterrupted()) return;
+
+                int done = blocks[position];
+                if (done == 0) continue;
+
+                int length = done < 0 ? getBlockLength(position) : done;
+                int checksum = RollingChecksum.INITIAL;
+                int read = 0;
+
+                f.seek(mMission.offsets[mMission.current] + (long) position * DownloadMission.BLOCK_SIZE);
+
+                while (read < length) {
+                    int len = f.read(buffer, 0, Math.min(buffer.length, length - read));
+                    if (len < 1) break;
+
+                    checksum = RollingChecksum.update(checksum, buffer, 0, len);
+                    read += len;
+                }
+
+                if (read < length || checksum != checksums[position]) {
+                    if (DEBUG) Log.w(TAG, "corrupted block at position=" + position);
+                    blocks[position] = 0;
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private int getBlockLength(int position) {
+        long start = (long) position * DownloadMission.BLOCK_SIZE;
+        return (int) Math.min(DownloadMission.BLOCK_SIZE, mMission.length - start);
+    }
+
+    @Override
+    public void interrupt() {
+        super.interrupt();
+
+        if (mPool != null) mPool.shutdownNow();
+    }
+}
@@ -11,6 +11,13 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import us.shandian.giga.util.Utility;
 
@@ -23,8 +30,12 @@ public class DownloadInitializer extends Thread {
     private final static int RESERVE_SPACE_DEFAULT = 5 * 1024 * 1024;// 5 MiB
     private final static int RESERVE_SPACE_MAXIMUM = 150 * 1024 * 1024;// 150 MiB
 
+    private final static int MAXIMUM_PARALLEL_PROBES = 4;
+
     private final DownloadMission mMission;
     private HttpURLConnection mConn;
+    private ExecutorService mPool;
+    private int mHttpCode = 204;
 
     DownloadInitializer(@NonNull DownloadMission mission) {
         mMission = mission;
@@ -32,10 +43,81 @@ public class DownloadInitializer extends Thread {
     }
 
     private void dispose() {
+        HttpURLConnection conn = mConn;
+        if (conn != null) conn.disconnect();
+    }
+
+    /**
+     * Requests the first block of the current resource, a single request tells the length and
+     * if range requests are supported. The connection is kept in {@code mConn}.
+     *
+     * @return {@code true} if the server supports range requests, otherwise, {@code false}
+     */
+    private boolean probeFirstBlock() throws IOException, DownloadMission.HttpError {
+        mConn = mMission.openConnection(false, 0, DownloadMission.BLOCK_SIZE - 1);
+        mMission.establishConnection(mId, mConn);
+        mHttpCode = mConn.getResponseCode();
+
+        switch (mHttpCode) {
+            case 206:
+                mMission.length = getTotalLength(mConn.getHeaderField("Content-Range"));
+                return mMission.length > 0;
+            case 416:
+                // nothing to download, the resource is empty
+                mMission.length = 0;
+                return false;
+            default:
+                // the server ignored the range, the whole resource is in the response
+                mMission.length = Utility.getContentLength(mConn);
+                return false;
+        }
+    }
+
+    /**
+     * Requests in parallel the length of the resources after the first one
+     *
+     * @return the pending lengths, -1 if unknown
+     */
+    private List<Future<Long>> probeLengths() {
+        int count = mMission.urls.length - 1;
+        if (count < 1) return Collections.emptyList();
+
+        if (mPool == null) mPool = Executors.newFixedThreadPool(Math.min(count, MAXIMUM_PARALLEL_PROBES));
+
+        List<Future<Long>> probes = new ArrayList<>(count);
+
+        for (int i = 1; i <= count; i++) {
+            String url = mMission.urls[i];
+
+            probes.add(mPool.submit(() -> {
+                HttpURLConnection conn = mMission.openConnection(url, true, -1, -1);
+                try {
+                    mMission.establishConnection(mId, conn);
+                    return Utility.getContentLength(conn);
+                } finally {
+                    conn.disconnect();
+                }
+            }));
+        }
+
+        return probes;
+    }
+
+    /**
+     * Parses the total length of a Content-Range header, example: "bytes 0-1023/146515"
+     *
+     * @return the total length, -1 if unknown
+     */
+    private static long getTotalLength(String contentRange) {
+        if (contentRange == null) return -1;
+
+        int index = contentRange.lastIndexOf('/');
+        if (index < 0) return -1;
+
         try {
-            mConn.getInputStream().close();
-        } catch (Exception e) {
-            // nothing to do
+            return Long.parseLong(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;// the length is "*" (unknown)
         }
     }
 
@@ -44,157 +126,162 @@ public class DownloadInitializer extends Thread {
         if (mMission.current > 0) mMission.resetState(false, true, DownloadMission.ERROR_NOTHING);
 
         int retryCount = 0;
-        int httpCode = 204;
-
-        while (true) {
-            try {
-                if (mMission.blocks == null && mMission.current == 0) {
-                    // calculate the whole size of the mission
-                    long finalLength = 0;
-                    long lowestSize = Long.MAX_VALUE;
-
-                    for (int i = 0; i < mMission.urls.length && mMission.running; i++) {
-                        mConn = mMission.openConnection(mMission.urls[i], true, -1, -1);
-                        mMission.establishConnection(mId, mConn);
-                        dispose();
-
-                        if (Thread.interrupted()) return;
-                        long length = Utility.getContentLength(mConn);
-
-                        if (i == 0) {
-                            httpCode = mConn.getResponseCode();
-                            mMission.length = length;
-                        }
 
-                        if (length > 0) finalLength += length;
-                        if (length < lowestSize) lowestSize = length;
-                    }
+        try {
+            while (true) {
+                try {
+                    boolean rangeSupported;
 
-                    mMission.nearLength = finalLength;
+                    if (mMission.blocks == null && mMission.current == 0) {
+                        // calculate the whole size of the mission, the other resources are probed
+                        // concurrently with the first one
+                        List<Future<Long>> probes = probeLengths();
 
-                    // reserve space at the start of the file
-                    if (mMission.psAlgorithm != null && mMission.psAlgorithm.reserveSpace) {
-                        if (lowestSize < 1) {
-                            // the length is unknown use the default size
-                            mMission.offsets[0] = RESERVE_SPACE_DEFAULT;
-                        } else {
-                            // use the smallest resource size to download, otherwise, use the maximum
-                            mMission.offsets[0] = lowestSize < RESERVE_SPACE_MAXIMUM ? lowestSize : RESERVE_SPACE_MAXIMUM;
-                        }
-                    }
-                } else {
-                    // ask for the current resource length
-                    mConn = mMission.openConnection(true, -1, -1);
-                    mMission.establishConnection(mId, mConn);
-                    dispose();
+                        rangeSupported = probeFirstBlock();
 
-                    if (!mMission.running || Thread.interrupted()) return;
+                        long finalLength = Math.max(mMission.length, 0);
+                        long lowestSize = mMission.length;
 
-                    httpCode = mConn.getResponseCode();
-                    mMission.length = Utility.getContentLength(mConn);
-                }
+                        for (Future<Long> probe : probes) {
+                            long length = probe.get();
 
-                if (mMission.length == 0 || httpCode == 204) {
-                    mMission.notifyError(DownloadMission.ERROR_HTTP_NO_CONTENT, null);
-                    return;
-                }
+                            if (length > 0) finalLength += length;
+                            if (length < lowestSize) lowestSize = length;
+                        }
 
-                // check for dynamic generated content
-                if (mMission.length == -1 && mConn.getResponseCode() == 200) {
-                    mMission.blocks = new int[0];
-                    mMission.length = 0;
-                    mMission.unknownLength = true;
+                        mMission.nearLength = finalLength;
 
-                    if (DEBUG) {
-                        Log.d(TAG, "falling back (unknown length)");
+                        // reserve space at the start of the file
+                        if (mMission.psAlgorithm != null && mMission.psAlgorithm.reserveSpace) {
+                            if (lowestSize < 1) {
+                                // the length is unknown use the default size
+                                mMission.offsets[0] = RESERVE_SPACE_DEFAULT;
+                            } else {
+                                // use the smallest resource size to download, otherwise, use the maximum
+                                mMission.offsets[0] = lowestSize < RESERVE_SPACE_MAXIMUM ? lowestSize : RESERVE_SPACE_MAXIMUM;
+                            }
+                        }
+                    } else {
+                        // ask for the current resource length
+                        rangeSupported = probeFirstBlock();
                     }
-                } else {
-                    // Open again
-                    mConn = mMission.openConnection(true, mMission.length - 10, mMission.length);
-                    mMission.establishConnection(mId, mConn);
-                    dispose();
 
                     if (!mMission.running || Thread.interrupted()) return;
 
-                    synchronized (mMission.LOCK) {
-                        if (mConn.getResponseCode() == 206) {
+                    if (mMission.length == 0 || mHttpCode == 204) {
+                        mMission.notifyError(DownloadMission.ERROR_HTTP_NO_CONTENT, null);
+                        return;
+                    }
 
-                            if (mMission.threadCount > 1) {
-                                int count = (int) (mMission.length / DownloadMission.BLOCK_SIZE);
-                                if ((count * DownloadMission.BLOCK_SIZE) < mMission.length) count++;
+                    // check for dynamic generated content
+                    if (mMission.length == -1 && !rangeSupported) {
+                        mMission.blocks = new int[0];
+                        mMission.length = 0;
+                        mMission.unknownLength = true;
 
-                                mMission.blocks = new int[count];
+                        if (DEBUG) {
+                            Log.d(TAG, "falling back (unknown length)");
+                        }
+                    } else {
+                        synchronized (mMission.LOCK) {
+                            if (rangeSupported) {
+
+                                if (mMission.threadCount > 1) {
+                                    int count = (int) (mMission.length / DownloadMission.BLOCK_SIZE);
+                                    if ((count * DownloadMission.BLOCK_SIZE) < mMission.length) count++;
+
+                                    mMission.blocks = new int[count];
+                                    mMission.blockChecksums = new int[count];
+                                } else {
+                                    // if one thread is required don't calculate blocks, is useless
+                                    mMission.blocks = new int[0];
+                                    mMission.unknownLength = false;
+                                }
+
+                                if (DEBUG) {
+                                    Log.d(TAG, "http response code = " + mHttpCode);
+                                }
                             } else {
-                                // if one thread is required don't calculate blocks, is useless
+                                // Fallback to single thread
                                 mMission.blocks = new int[0];
                                 mMission.unknownLength = false;
-                            }
 
-                            if (DEBUG) {
-                                Log.d(TAG, "http response code = " + mConn.getResponseCode());
-                            }
-                        } else {
-                            // Fallback to single thread
-                            mMission.blocks = new int[0];
-                            mMission.unknownLength = false;
-
-                            if (DEBUG) {
-                                Log.d(TAG, "falling back due http response code = " + mConn.getResponseCode());
+                                if (DEBUG) {
+                                    Log.d(TAG, "falling back due http response code = " + mHttpCode);
+                                }
                             }
                         }
+
+                        if (!mMission.running || Thread.interrupted()) return;
                     }
 
-                    if (!mMission.running || Thread.interrupted()) return;
-                }
+                    try (SharpStream fs = mMission.storage.getStream()) {
+                        fs.setLength(mMission.offsets[mMission.current] + mMission.length);
+                        fs.seek(mMission.offsets[mMission.current]);
+                    }
 
-                try (SharpStream fs = mMission.storage.getStream()) {
-                    fs.setLength(mMission.offsets[mMission.current] + mMission.length);
-                    fs.seek(mMission.offsets[mMission.current]);
-                }
+                    if (!mMission.running || Thread.interrupted()) return;
 
-                if (!mMission.running || Thread.interrupted()) return;
+                    if (!mMission.unknownLength && mMission.recoveryInfo != null) {
+                        String entityTag = mConn.getHeaderField("ETAG");
+                        String lastModified = mConn.getHeaderField("Last-Modified");
+                        MissionRecoveryInfo recovery = mMission.recoveryInfo[mMission.current];
 
-                if (!mMission.unknownLength && mMission.recoveryInfo != null) {
-                    String entityTag = mConn.getHeaderField("ETAG");
-                    String lastModified = mConn.getHeaderField("Last-Modified");
-                    MissionRecoveryInfo recovery = mMission.recoveryInfo[mMission.current];
+                        if (!TextUtils.isEmpty(entityTag)) {
+                            recovery.setValidateCondition(entityTag);
+                        } else if (!TextUtils.isEmpty(lastModified)) {
+                            recovery.setValidateCondition(lastModified);// Note: this is less precise
+                        } else {
+                            recovery.setValidateCondition(null);
+                        }
+                    }
 
-                    if (!TextUtils.isEmpty(entityTag)) {
-                        recovery.setValidateCondition(entityTag);
-                    } else if (!TextUtils.isEmpty(lastModified)) {
-                        recovery.setValidateCondition(lastModified);// Note: this is less precise
+                    if (mMission.blocks.length > 0) {
+                        // the response body is the first block, let a download thread read it
+                        mMission.setSpeculativeConnection(mConn);
+                        mConn = null;
                     } else {
-                        recovery.setValidateCondition(null);
+                        dispose();
                     }
-                }
 
-                mMission.running = false;
-                break;
-            } catch (InterruptedIOException | ClosedByInterruptException e) {
-                return;
-            } catch (Exception e) {
-                if (!mMission.running || super.isInterrupted()) return;
-
-                if (e instanceof DownloadMission.HttpError && ((DownloadMission.HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
-                    // for youtube streams. The url has expired
-                    interrupt();
-                    mMission.doRecover(ERROR_HTTP_FORBIDDEN);
+                    mMission.running = false;
+                    break;
+                } catch (InterruptedIOException | ClosedByInterruptException | InterruptedException e) {
                     return;
-                }
+                } catch (Exception e) {
+                    dispose();
 
-                if (e instanceof IOException && e.getMessage().contains("Permission denied")) {
-                    mMission.notifyError(DownloadMission.ERROR_PERMISSION_DENIED, e);
-                    return;
-                }
+                    if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+                        e = (Exception) e.getCause();
+                    }
 
-                if (retryCount++ > mMission.maxRetry) {
-                    Log.e(TAG, "initializer failed", e);
-                    mMission.notifyError(e);
-                    return;
-                }
+                    if (!mMission.running || super.isInterrupted()) return;
+
+                    if (e instanceof DownloadMission.HttpError && ((DownloadMission.HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
+                        // for youtube streams. The url has expired
+                        interrupt();
+                        mMission.doRecover(ERROR_HTTP_FORBIDDEN);
+                        return;
+                    }
+
+                    if (e instanceof IOException && e.getMessage().contains("Permission denied")) {
+                        mMission.notifyError(DownloadMission.ERROR_PERMISSION_DENIED, e);
+                        return;
+                    }
+
+                    if (retryCount++ > mMission.maxRetry) {
+                        Log.e(TAG, "initializer failed", e);
+                        mMission.notifyError(e);
+                        return;
+                    }
 
-                Log.e(TAG, "initializer failed, retrying", e);
+                    Log.e(TAG, "initializer failed, retrying", e);
+                }
             }
+        } finally {
+            // the connection is null if was handed to the download threads
+            dispose();
+            if (mPool != null) mPool.shutdownNow();
         }
 
         mMission.start();
@@ -203,6 +290,7 @@ public class DownloadInitializer extends Thread {
     @Override
     public void interrupt() {
         super.interrupt();
-        if (mConn != null) dispose();
+        dispose();
+        if (mPool != null) mPool.shutdownNow();
     }
 }
@@ -13,6 +13,7 @@ import org.schabi.newpipe.DownloaderImpl;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.Serializable;
@@ -22,6 +23,7 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
 import java.util.Objects;
 
 import javax.net.ssl.SSLException;
@@ -29,6 +31,10 @@ import javax.net.ssl.SSLException;
 import us.shandian.giga.io.StoredFileHelper;
 import us.shandian.giga.postprocessing.Postprocessing;
 import us.shandian.giga.service.DownloadManagerService;
+import us.shandian.giga.util.BufferPool;
+import us.shandian.giga.util.Clock;
+import us.shandian.giga.util.RollingChecksum;
+import us.shandian.giga.util.SpeedLimiter;
 import us.shandian.giga.util.Utility;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
@@ -36,11 +42,19 @@ import static org.schabi.newpipe.BuildConfig.DEBUG;
 public class DownloadMission extends Mission {
     private static final long serialVersionUID = 6L;// last bump: 07 october 2019
 
-    static final int BUFFER_SIZE = 64 * 1024;
+    static final int BUFFER_SIZE = BufferPool.BUFFER_SIZE;
     static final int BLOCK_SIZE = 512 * 1024;
+    static final int PROGRESS_NOTIFICATION_INTERVAL = 1000;// 1 second
 
     private static final String TAG = "DownloadMission";
 
+    /**
+     * Version of the variants, see {@link #getVariant()}. The variants of other versions are
+     * ignored, so the previous downloads are no longer offered.
+     */
+    public static final int VARIANT_VERSION = 1;
+    private static final String VARIANT_SEPARATOR = ";";
+
     public static final int ERROR_NOTHING = -1;
     public static final int ERROR_PATH_CREATION = 1000;
     public static final int ERROR_FILE_CREATION = 1001;
@@ -120,11 +134,37 @@ public class DownloadMission extends Mission {
      */
     int[] blocks;
 
+    /**
+     * Rolling checksum of the bytes written in every block, see {@link RollingChecksum}.
+     * Used to detect torn writes after an unclean shutdown, see {@link DownloadBlockVerifier}
+     */
+    int[] blockChecksums;
+
+    /**
+     * Indicates if the last saved state was written while the download was running
+     */
+    public boolean savedWhileRunning;
+
+    /**
+     * Verify the downloaded blocks before resuming the download
+     */
+    public transient boolean verifyBlocks;
+
     /**
      * Download/File resume offset in fallback mode (if applicable) {@link DownloadRunnableFallback}
      */
     volatile long fallbackResumeOffset;
 
+    /**
+     * Indicates if the urls point to HLS playlists, see {@link DownloadRunnableSegmented}
+     */
+    public boolean segmented;
+
+    /**
+     * Media sequence number of the next segment to download (segmented missions only)
+     */
+    volatile long segmentResumeSequence;
+
     /**
      * Maximum of download threads running, chosen by the user
      */
@@ -135,18 +175,65 @@ public class DownloadMission extends Mission {
      */
     public MissionRecoveryInfo[] recoveryInfo;
 
+    /**
+     * Maximum download speed of this mission in bytes per second, 0 means unlimited
+     */
+    public long speedLimit;
+
+    /**
+     * Bandwidth limiter shared across all missions, chosen in the settings
+     */
+    public transient SpeedLimiter globalLimiter;
+
+    private transient SpeedLimiter limiter;
+
+    /**
+     * Clock of the limiter, the metrics and the progress, {@code null} for {@link Clock#SYSTEM}
+     */
+    transient Clock clock;
+
     private transient int finishCount;
     public transient volatile boolean running;
     public boolean enqueued;
 
+    /**
+     * Indicates if the mission is queued because there is not enough free space to finish it
+     */
+    public transient boolean waitingForStorage;
+
     public int errCode = ERROR_NOTHING;
     public Exception errObject = null;
 
     public transient Handler mHandler;
     private transient boolean[] blockAcquired;
 
+    /**
+     * Fresh urls of all resources, obtained in the last extraction done by {@link DownloadMissionRecover}
+     */
+    transient String[] recoveredUrls;
+    transient long recoveredUrlsTimestamp;
+
+    /**
+     * Incremented every time {@code urls[current]} is replaced by a fresh url
+     */
+    private transient int urlGeneration;
+    private transient boolean urlRefreshing;
+    private transient boolean urlRecovering;
+    private transient String urlPrefetched;
+
+    private transient MissionMetrics metrics;
+    private transient long progressNotified;
+    private transient HttpURLConnection speculativeConnection;
+
     private transient long writingToFileNext;
     private transient volatile boolean writingToFile;
+    private transient long checkpointSequence;
+    private transient long checkpointWritten;
+
+    /**
+     * Saves the state in background, if not set the state is saved in the calling thread
+     */
+    public transient MissionCheckpointWriter checkpointWriter;
 
     final Object LOCK = new Lock();
 
@@ -183,6 +270,7 @@ public class DownloadMission extends Mission {
                     Block block = new Block();
                     block.position = i;
                     block.done = blocks[i];
+                    block.checksum = blocks[i] == 0 ? RollingChecksum.INITIAL : blockChecksums[i];
 
                     blockAcquired[i] = true;
                     return block;
@@ -198,11 +286,13 @@ public class DownloadMission extends Mission {
      *
      * @param position the index of the block
      * @param done     amount of bytes downloaded
+     * @param checksum rolling checksum of the bytes downloaded
      */
-    void releaseBlock(int position, int done) {
+    void releaseBlock(int position, int done, int checksum) {
         synchronized (LOCK) {
             blockAcquired[position] = false;
             blocks[position] = done;
+            blockChecksums[position] = checksum;
         }
     }
 
@@ -241,6 +331,42 @@ public class DownloadMission extends Mission {
         return conn;
     }
 
+    /**
+     * Gets the amount of bytes to read from the network at once, honoring the speed limits
+     *
+     * @param bufferSize the size of the read buffer
+     * @return the maximum amount of bytes to read
+     */
+    int getReadChunkSize(int bufferSize) {
+        int size = bufferSize;
+        if (limiter != null) size = limiter.getChunkSize(size);
+        if (globalLimiter != null) size = globalLimiter.getChunkSize(size);
+        return size;
+    }
+
+    /**
+     * Pays the bytes read from the network, blocks the calling thread if the mission
+     * or the global speed limit is exceeded
+     *
+     * @param amount bytes read
+     * @throws InterruptedException if the mission was paused while waiting
+     */
+    void throttle(int amount) throws InterruptedException {
+        if (limiter != null) limiter.consume(amount);
+        if (globalLimiter != null) globalLimiter.consume(amount);
+    }
+
+    /**
+     * Changes the maximum download speed of this mission, applied immediately if running
+     *
+     * @param bytesPerSecond the speed limit, use 0 to remove it
+     */
+    public void setSpeedLimit(long bytesPerSecond) {
+        speedLimit = Math.max(bytesPerSecond, 0);
+        if (limiter != null) limiter.setRate(speedLimit);
+        writeThisToFileAsync();
+    }
+
     /**
      * @param threadId id of the calling thread
      * @param conn     Opens and establish the communication
@@ -274,6 +400,149 @@ public class DownloadMission extends Mission {
     }
 
 
+    /**
+     * Keeps the connection used by the initializer to probe the resource, the response body is
+     * the first block and is used by the download thread which acquires that block. Any previous
+     * connection is closed.
+     *
+     * @param conn a connection whose response is 206 for the range of the first block
+     */
+    synchronized void setSpeculativeConnection(@Nullable HttpURLConnection conn) {
+        if (speculativeConnection != null && speculativeConnection != conn) {
+            speculativeConnection.disconnect();
+        }
+        speculativeConnection = conn;
+    }
+
+    /**
+     * Takes the connection opened by the initializer for the first block, if any
+     */
+    @Nullable
+    synchronized HttpURLConnection takeSpeculativeConnection() {
+        HttpURLConnection conn = speculativeConnection;
+        speculativeConnection = null;
+        return conn;
+    }
+
+    /**
+     * Gets the performance counters of this mission, these are not saved with the mission
+     */
+    @NonNull
+    public synchronized MissionMetrics getMetrics() {
+        // can not be initialized in the declaration, transient fields are null after deserialization
+        if (metrics == null) metrics = new MissionMetrics(getClock());
+        return metrics;
+    }
+
+    private Clock getClock() {
+        return clock == null ? Clock.SYSTEM : clock;
+    }
+
+    /**
+     * Gets the generation of the current url, download threads must keep this value
+     * before opening a connection, required by {@link #awaitFreshUrl(int)}
+     */
+    synchronized int getUrlGeneration() {
+        return urlGeneration;
+    }
+
+    /**
+     * Called by a download thread when the current url has expired (HTTP 403). Only the first
+     * thread obtains a fresh url while the other threads wait, once available all threads
+     * continue downloading with the new url. If the url can not be refreshed (the resource
+     * has changed or is gone) the whole recovery procedure is executed.
+     *
+     * @param generation the url generation used by the failed connection
+     * @return {@code true} if the thread can retry with a fresh url, otherwise, {@code false}
+     * and the thread must exit
+     * @throws InterruptedException if the mission was paused while waiting
+     */
+    boolean awaitFreshUrl(int generation) throws InterruptedException {
+        synchronized (this) {
+            while (urlRefreshing && urlGeneration == generation && running && !urlRecovering) {
+                wait();
+            }
+
+            // another thread already refreshed the url
+            if (urlGeneration != generation) return running;
+            if (!running || urlRecovering) return false;
+
+            urlRefreshing = true;
+        }
+
+        String url = null;
+        try {
+            url = new DownloadMissionRecover(this, ERROR_HTTP_FORBIDDEN).refreshUrl();
+        } catch (Exception e) {
+            Log.w(TAG, "cannot refresh the url of " + storage.getName(), e);
+        } finally {
+            synchronized (this) {
+                urlRefreshing = false;
+                if (url != null && running) {
+                    urls[current] = url;
+                    urlGeneration++;
+                    getMetrics().onUrlRefresh();
+                } else {
+                    // the other threads must exit, the whole recovery is required
+                    urlRecovering = true;
+                }
+                notifyAll();
+            }
+        }
+
+        if (!running) return false;
+
+        if (url == null) {
+            doRecover(ERROR_HTTP_FORBIDDEN);
+            return false;
+        }
+
+        writeThisToFileAsync();
+        return true;
+    }
+
+    /**
+     * Obtains in background a fresh url if the current one expires soon, the download threads
+     * continue running and switch to the new url in the next request
+     */
+    void checkUrlExpiration() {
+        if (recoveryInfo == null || source == null) return;
+
+        synchronized (this) {
+            String url = urls[current];
+            if (urlRefreshing || url == null || url.equals(urlPrefetched)) return;
+
+            long expiration = DownloadMissionRecover.getUrlExpiration(url);
+            if (expiration < 0 || expiration - System.currentTimeMillis() > DownloadMissionRecover.EXPIRATION_MARGIN)
+                return;
+
+            // only one attempt per url
+            urlPrefetched = url;
+            urlRefreshing = true;
+        }
+
+        runAsync(-5, () -> {
+            String url = null;
+            try {
+                url = new DownloadMissionRecover(this, ERROR_HTTP_FORBIDDEN).refreshUrl();
+            } catch (Exception e) {
+                Log.w(TAG, "cannot prefetch the url of " + storage.getName(), e);
+            } finally {
+                synchronized (this) {
+                    urlRefreshing = false;
+                    if (url != null && running) {
+                        urls[current] = url;
+                        urlGeneration++;
+                        getMetrics().onUrlRefresh();
+                    }
+                    notifyAll();
+                }
+            }
+
+            if (url != null) writeThisToFileAsync();
+        });
+    }
+
     private void notify(int what) {
         mHandler.obtainMessage(what, this).sendToTarget();
     }
@@ -285,6 +554,13 @@ public class DownloadMission extends Mission {
 
         done += deltaLen;
 
+        // coalesce the progress, the UI only needs a snapshot from time to time
+        long now = getClock().elapsedRealtime();
+        if (now - progressNotified >= PROGRESS_NOTIFICATION_INTERVAL || deltaLen < 0) {
+            progressNotified = now;
+            notify(DownloadManagerService.MESSAGE_PROGRESS);
+        }
+
         if (metadata == null) return;
 
         if (!writingToFile && (done > writingToFileNext || deltaLen < 0)) {
@@ -375,7 +651,14 @@ public class DownloadMission extends Mission {
             if (current < urls.length) {
                 // prepare next sub-mission
                 offsets[current] = offsets[current - 1] + length;
-                initializer();
+
+                if (segmented) {
+                    length = 0;
+                    fallbackResumeOffset = 0;
+                    startSegmented();
+                } else {
+                    initializer();
+                }
                 return;
             }
         }
@@ -390,6 +673,7 @@ public class DownloadMission extends Mission {
 
         // this mission is fully finished
 
+        getMetrics().onFinished();
         unknownLength = false;
         enqueued = false;
         running = false;
@@ -437,6 +721,9 @@ public class DownloadMission extends Mission {
 
         running = true;
         errCode = ERROR_NOTHING;
+        urlRecovering = false;
+
+        if (limiter == null) limiter = new SpeedLimiter(speedLimit, getClock());
 
         if (hasInvalidStorage()) {
             notifyError(ERROR_FILE_CREATION, null);
@@ -455,15 +742,35 @@ public class DownloadMission extends Mission {
             return;
         }
 
+        if (segmented) {
+            startSegmented();
+            return;
+        }
+
         if (blocks == null) {
             initializer();
             return;
         }
 
+        if (blockChecksums == null || blockChecksums.length != blocks.length) {
+            // missions created by older versions, the progress can not be verified
+            blockChecksums = new int[blocks.length];
+            verifyBlocks = false;
+        }
+
+        if (verifyBlocks && blocks.length > 0) {
+            init = null;
+            threads = new Thread[]{runAsync(DownloadBlockVerifier.mId, new DownloadBlockVerifier(this))};
+            return;
+        }
+
         init = null;
         finishCount = 0;
         blockAcquired = new boolean[blocks.length];
 
+        // the speculative connection is only useful if the first block was not downloaded yet
+        if (blocks.length < 1 || blocks[0] != 0) setSpeculativeConnection(null);
+
         if (blocks.length < 1) {
             threads = new Thread[]{runAsync(1, new DownloadRunnableFallback(this))};
         } else {
@@ -518,8 +825,9 @@ public class DownloadMission extends Mission {
 
     private void pauseThreads() {
         running = false;
+        setSpeculativeConnection(null);
         joinForThreads(-1);
-        writeThisToFile();
+        writeThisToFileAsync();
     }
 
     /**
@@ -552,30 +860,82 @@ public class DownloadMission extends Mission {
         threads = new Thread[0];
         fallbackResumeOffset = 0;
         blocks = null;
+        blockChecksums = null;
         blockAcquired = null;
 
         if (rollback) current = 0;
-        if (persistChanges) writeThisToFile();
+        if (persistChanges) writeThisToFileAsync();
+    }
+
+    private void startSegmented() {
+        // the final length is unknown until all segments are downloaded
+        init = null;
+        finishCount = 0;
+        unknownLength = true;
+        blocks = new int[0];
+        threads = new Thread[]{runAsync(1, new DownloadRunnableSegmented(this))};
     }
 
     private void initializer() {
         init = runAsync(DownloadInitializer.mId, new DownloadInitializer(this));
     }
 
+    /**
+     * Marks the state of this mission as dirty, is saved later by the checkpoint writer
+     */
     private void writeThisToFileAsync() {
-        runAsync(-2, this::writeThisToFile);
+        MissionCheckpointWriter writer = checkpointWriter;
+
+        if (writer == null)
+            writeThisToFile();
+        else
+            writer.schedule(this);
     }
 
     /**
-     * Write this {@link DownloadMission} to the meta file asynchronously
-     * if no thread is already running.
+     * Write this {@link DownloadMission} to the meta file. The state is written in a temporal
+     * file which replaces the meta file, a crash while writing never leaves a truncated file.
      */
     void writeThisToFile() {
+        File target;
+        byte[] state;
+        long sequence;
+
         synchronized (LOCK) {
             if (metadata == null) return;
-            Utility.writeToFile(metadata, this);
+            savedWhileRunning = running;
             writingToFile = false;
+
+            target = metadata;
+            sequence = ++checkpointSequence;
+            state = Utility.serialize(this);
+        }
+
+        if (state == null) return;
+
+        // do not hold the lock while writing, the download threads need it to acquire blocks
+        File temp = new File(target.getPath() + "." + sequence + ".tmp");
+
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            output.write(state);
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot write the state of " + storage.getName(), e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        synchronized (LOCK) {
+            // discard if a newer state was written, or the mission was deleted/finished meanwhile
+            if (metadata == target && sequence > checkpointWritten && temp.renameTo(target)) {
+                checkpointWritten = sequence;
+                return;
+            }
         }
+
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
     }
 
     /**
@@ -611,6 +971,49 @@ public class DownloadMission extends Mission {
         return psAlgorithm != null && (psState == 1 || psState == 3);
     }
 
+    /**
+     * Describes the streams downloaded by this mission (kind, format and quality), used with
+     * the {@link #source} to find the same download later. Persisted, it is made of the
+     * {@link #VARIANT_VERSION} followed by the keys of the streams, see
+     * {@link MissionRecoveryInfo#getVariantKey()}
+     *
+     * @return the description or {@code null} if the streams are unknown
+     */
+    @Nullable
+    public String getVariant() {
+        return getVariant(recoveryInfo);
+    }
+
+    /**
+     * @see #getVariant()
+     */
+    @Nullable
+    public static String getVariant(@Nullable MissionRecoveryInfo[] recoveryInfo) {
+        if (recoveryInfo == null || recoveryInfo.length < 1) return null;
+
+        StringBuilder str = new StringBuilder().append(VARIANT_VERSION);
+        for (MissionRecoveryInfo info : recoveryInfo)
+            str.append(VARIANT_SEPARATOR).append(info.getVariantKey());
+        return str.toString();
+    }
+
+    /**
+     * Splits a variant in the keys of its streams, see {@link MissionRecoveryInfo#getVariantKey()}
+     *
+     * @param variant the variant, see {@link #getVariant()}
+     * @return the keys, in the order the streams were downloaded, or {@code null} if the variant
+     * is unknown or was written by another version
+     */
+    @Nullable
+    public static String[] getVariantKeys(@Nullable String variant) {
+        if (variant == null) return null;
+
+        String[] parts = variant.split(VARIANT_SEPARATOR);
+        if (parts.length < 2 || !parts[0].equals(String.valueOf(VARIANT_VERSION))) return null;
+
+        return Arrays.copyOfRange(parts, 1, parts.length);
+    }
+
     /**
      * Indicated if the mission is ready
      *
@@ -698,6 +1101,7 @@ public class DownloadMission extends Mission {
         }
 
         Exception exception = null;
+        long startTime = getClock().elapsedRealtime();
 
         try {
             psAlgorithm.run(this);
@@ -713,6 +1117,7 @@ public class DownloadMission extends Mission {
 
             exception = err;
         } finally {
+            getMetrics().onPostProcessing(getClock().elapsedRealtime() - startTime);
             notifyPostProcessing(errCode == ERROR_NOTHING ? 2 : 0);
         }
 
@@ -740,6 +1145,7 @@ public class DownloadMission extends Mission {
         }
 
         joinForThreads(0);
+        getMetrics().onRecovery();
 
         threads = new Thread[]{
                 runAsync(DownloadMissionRecover.mID, new DownloadMissionRecover(this, errorCode))
@@ -773,7 +1179,9 @@ public class DownloadMission extends Mission {
      */
     private Thread runAsync(int id, Thread who) {
         // known thread ids:
-        //   -2:     state saving by  notifyProgress()  method
+        //   -5:     url prefetch by  checkUrlExpiration()  method
+        //   -4:     block verifier
+        //   -3:     recovery
         //   -1:     wait for saving the state by  pause()  method
         //    0:     initializer
         //  >=1:     any download thread
@@ -820,7 +1228,7 @@ public class DownloadMission extends Mission {
 
         try {
             for (Thread thread : threads) {
-                if (!thread.isAlive()) continue;
+                if (!thread.isAlive() || thread == currentThread) continue;
                 if (DEBUG) {
                     Log.w(TAG, "thread alive: " + thread.getName());
                 }
@@ -848,6 +1256,7 @@ public class DownloadMission extends Mission {
     public static class Block {
         public int position;
         public int done;
+        public int checksum;
     }
 
     private static class Lock implements Serializable {
@@ -1,7 +1,10 @@
 package us.shandian.giga.get;
 
+import android.net.Uri;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import org.schabi.newpipe.extractor.NewPipe;
 import org.schabi.newpipe.extractor.StreamingService;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
@@ -24,6 +27,16 @@ public class DownloadMissionRecover extends Thread {
     private static final String TAG = "DownloadMissionRecover";
     static final int mID = -3;
 
+    /**
+     * Fresh urls are not used if they are going to expire in less than this time
+     */
+    static final long EXPIRATION_MARGIN = 60 * 1000;// 1 minute
+
+    /**
+     * Lifetime of the cached urls without an explicit expiration date
+     */
+    private static final long CACHE_LIFETIME = 5 * 60 * 1000;// 5 minutes
+
     private final DownloadMission mMission;
     private final boolean mNotInitialized;
 
@@ -65,32 +78,58 @@ public class DownloadMissionRecover extends Thread {
         mMission.notifyError(mErrCode, err);
     }
 
-    private void tryRecover() throws ExtractionException, IOException, HttpError {
-        if (mExtractor == null) {
-            try {
-                StreamingService svr = NewPipe.getServiceByUrl(mMission.source);
-                mExtractor = svr.getStreamExtractor(mMission.source);
-                mExtractor.fetchPage();
-            } catch (ExtractionException e) {
-                mExtractor = null;
-                throw e;
-            }
+    /**
+     * Gets a fresh url for the current resource, used to replace an expired (or about to
+     * expire) url without stopping the download threads
+     *
+     * @return the new url, or {@code null} if the resource is gone or has changed, in this
+     * case the whole recovery procedure is required
+     */
+    @Nullable
+    String refreshUrl() throws ExtractionException, IOException, HttpError {
+        if (mMission.source == null || mMission.recoveryInfo == null) return null;
+
+        mRecovery = mMission.recoveryInfo[mMission.current];
+
+        String url = getCachedUrl(mMission.current);
+        if (url == null) {
+            fetchExtractor();
+            url = resolveStream(mRecovery);
         }
 
-        // maybe the following check is redundant
-        if (!mMission.running || super.isInterrupted()) return;
+        if (url == null) return null;
+        if (mMission.unknownLength || mRecovery.getValidateCondition() == null) return url;
+
+        return isStale(url) ? null : url;
+    }
 
+    private void tryRecover() throws ExtractionException, IOException, HttpError {
         if (!mNotInitialized) {
+            mRecovery = mMission.recoveryInfo[mMission.current];
+
+            String url = getCachedUrl(mMission.current);
+
             // set the current download url to null in case if the recovery
             // process is canceled. Next time start() method is called the
             // recovery will be executed, saving time
             mMission.urls[mMission.current] = null;
 
-            mRecovery = mMission.recoveryInfo[mMission.current];
-            resolveStream();
+            if (url == null) {
+                fetchExtractor();
+                if (!mMission.running || super.isInterrupted()) return;
+
+                url = resolveStream(mRecovery);
+            }
+
+            resolve(url);
             return;
         }
 
+        fetchExtractor();
+
+        // maybe the following check is redundant
+        if (!mMission.running || super.isInterrupted()) return;
+
         Log.w(TAG, "mission is not fully initialized, this will take a while");
 
         try {
@@ -100,7 +139,7 @@ public class DownloadMissionRecover extends Thread {
                 if (test()) continue;
                 if (!mMission.running) return;
 
-                resolveStream();
+                resolve(resolveStream(mRecovery));
                 if (!mMission.running) return;
 
                 // before continue, check if the current stream was resolved
@@ -120,7 +159,72 @@ public class DownloadMissionRecover extends Thread {
         mMission.start();
     }
 
-    private void resolveStream() throws IOException, ExtractionException, HttpError {
+    private void fetchExtractor() throws ExtractionException, IOException {
+        if (mExtractor != null) return;
+
+        try {
+            StreamingService svr = NewPipe.getServiceByUrl(mMission.source);
+            mExtractor = svr.getStreamExtractor(mMission.source);
+            mExtractor.fetchPage();
+        } catch (ExtractionException e) {
+            mExtractor = null;
+            throw e;
+        }
+
+        // cache the urls of all resources, if other resource expires the extraction is not required
+        String[] urls = new String[mMission.recoveryInfo.length];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = resolveStream(mMission.recoveryInfo[i]);
+        }
+
+        synchronized (mMission) {
+            mMission.recoveredUrls = urls;
+            mMission.recoveredUrlsTimestamp = System.currentTimeMillis();
+        }
+    }
+
+    @Nullable
+    private String getCachedUrl(int index) {
+        String url;
+        long timestamp;
+
+        synchronized (mMission) {
+            if (mMission.recoveredUrls == null || index >= mMission.recoveredUrls.length) return null;
+            url = mMission.recoveredUrls[index];
+            timestamp = mMission.recoveredUrlsTimestamp;
+        }
+
+        // the url being replaced can not be reused
+        if (url == null || url.equals(mMission.urls[index])) return null;
+
+        long expiration = getUrlExpiration(url);
+        if (expiration < 0) expiration = timestamp + CACHE_LIFETIME;
+
+        if (expiration - System.currentTimeMillis() < EXPIRATION_MARGIN) return null;
+
+        Log.i(TAG, "using cached url for " + mMission.storage.getName());
+        return url;
+    }
+
+    /**
+     * Reads the expiration date present in the url (YouTube only)
+     *
+     * @param url the url
+     * @return the expiration date in milliseconds, or -1 if unknown
+     */
+    static long getUrlExpiration(@Nullable String url) {
+        if (url == null) return -1;
+
+        try {
+            String expire = Uri.parse(url).getQueryParameter("expire");
+            return expire == null ? -1 : Long.parseLong(expire) * 1000L;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private String resolveStream(MissionRecoveryInfo recovery) throws IOException, ExtractionException {
         // FIXME: this getErrorMessage() always returns "video is unavailable"
         /*if (mExtractor.getErrorMessage() != null) {
             mMission.notifyError(mErrCode, new ExtractionException(mExtractor.getErrorMessage()));
@@ -129,10 +233,10 @@ public class DownloadMissionRecover extends Thread {
 
         String url = null;
 
-        switch (mRecovery.getKind()) {
+        switch (recovery.getKind()) {
             case 'a':
                 for (AudioStream audio : mExtractor.getAudioStreams()) {
-                    if (audio.average_bitrate == mRecovery.getDesiredBitrate() && audio.getFormat() == mRecovery.getFormat()) {
+                    if (audio.average_bitrate == recovery.getDesiredBitrate() && audio.getFormat() == recovery.getFormat()) {
                         url = audio.getUrl();
                         break;
                     }
@@ -140,21 +244,21 @@ public class DownloadMissionRecover extends Thread {
                 break;
             case 'v':
                 List<VideoStream> videoStreams;
-                if (mRecovery.isDesired2())
+                if (recovery.isDesired2())
                     videoStreams = mExtractor.getVideoOnlyStreams();
                 else
                     videoStreams = mExtractor.getVideoStreams();
                 for (VideoStream video : videoStreams) {
-                    if (video.resolution.equals(mRecovery.getDesired()) && video.getFormat() == mRecovery.getFormat()) {
+                    if (video.resolution.equals(recovery.getDesired()) && video.getFormat() == recovery.getFormat()) {
                         url = video.getUrl();
                         break;
                     }
                 }
                 break;
             case 's':
-                for (SubtitlesStream subtitles : mExtractor.getSubtitles(mRecovery.getFormat())) {
+                for (SubtitlesStream subtitles : mExtractor.getSubtitles(recovery.getFormat())) {
                     String tag = subtitles.getLanguageTag();
-                    if (tag.equals(mRecovery.getDesired()) && subtitles.isAutoGenerated() == mRecovery.isDesired2()) {
+                    if (tag.equals(recovery.getDesired()) && subtitles.isAutoGenerated() == recovery.isDesired2()) {
                         url = subtitles.getUrl();
                         break;
                     }
@@ -164,19 +268,23 @@ public class DownloadMissionRecover extends Thread {
                 throw new RuntimeException("Unknown stream type");
         }
 
-        resolve(url);
+        return url;
     }
 
-    private void resolve(String url) throws IOException, HttpError {
+    private void resolve(@Nullable String url) throws IOException, HttpError {
         if (mRecovery.getValidateCondition() == null) {
             Log.w(TAG, "validation condition not defined, the resource can be stale");
         }
 
-        if (mMission.unknownLength || mRecovery.getValidateCondition() == null) {
+        if (url == null || mMission.unknownLength || mRecovery.getValidateCondition() == null) {
             recover(url, false);
             return;
         }
 
+        recover(url, isStale(url));
+    }
+
+    private boolean isStale(String url) throws IOException, HttpError {
         ///////////////////////////////////////////////////////////////////////
         ////// Validate the http resource doing a range request
         /////////////////////
@@ -191,15 +299,11 @@ public class DownloadMissionRecover extends Thread {
                 case 200:
                 case 413:
                     // stale
-                    recover(url, true);
-                    return;
+                    return true;
                 case 206:
                     // in case of validation using the Last-Modified date, check the resource length
                     long[] contentRange = parseContentRange(mConn.getHeaderField("Content-Range"));
-                    boolean lengthMismatch = contentRange[2] != -1 && contentRange[2] != mMission.length;
-
-                    recover(url, lengthMismatch);
-                    return;
+                    return contentRange[2] != -1 && contentRange[2] != mMission.length;
             }
 
             throw new HttpError(code);
@@ -12,6 +12,8 @@ import java.util.Objects;
 
 import us.shandian.giga.get.DownloadMission.Block;
 import us.shandian.giga.get.DownloadMission.HttpError;
+import us.shandian.giga.util.BufferPool;
+import us.shandian.giga.util.RollingChecksum;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
@@ -36,7 +38,7 @@ public class DownloadRunnable extends Thread {
 
     private void releaseBlock(Block block, long remain) {
         // set the block offset to -1 if it is completed
-        mMission.releaseBlock(block.position, remain < 0 ? -1 : block.done);
+        mMission.releaseBlock(block.position, remain < 0 ? -1 : block.done, block.checksum);
     }
 
     @Override
@@ -44,7 +46,10 @@ public class DownloadRunnable extends Thread {
         boolean retry = false;
         Block block = null;
         int retryCount = 0;
+        int refreshCount = 0;
+        int urlGeneration = 0;
         SharpStream f;
+        MissionMetrics.ThreadMetrics metrics = mMission.getMetrics().getThread(mId + 1);
 
         try {
             f = mMission.storage.getStream();
@@ -53,9 +58,13 @@ public class DownloadRunnable extends Thread {
             return;
         }
 
+        // reused across blocks
+        byte[] buf = BufferPool.acquire();
+
         while (mMission.running && mMission.errCode == DownloadMission.ERROR_NOTHING) {
             if (!retry) {
                 block = mMission.acquireBlock();
+                mMission.checkUrlExpiration();
             }
 
             if (block == null) {
@@ -80,8 +89,22 @@ public class DownloadRunnable extends Thread {
             }
 
             try {
-                mConn = mMission.openConnection(false, start, end);
-                mMission.establishConnection(mId, mConn);
+                long requestTime = System.nanoTime();
+                urlGeneration = mMission.getUrlGeneration();
+
+                // the initializer already requested the first block
+                mConn = block.position == 0 && block.done == 0 ? mMission.takeSpeculativeConnection() : null;
+
+                if (mConn == null) {
+                    mConn = mMission.openConnection(false, start, end);
+                    mMission.establishConnection(mId, mConn);
+                    metrics.onConnected(System.nanoTime() - requestTime);
+                } else {
+                    if (DEBUG) Log.d(TAG, mId + ":using the speculative connection for the first block");
+
+                    // the response can be an error too, like an expired url (403)
+                    mMission.establishConnection(mId, mConn);
+                }
 
                 // check if the download can be resumed
                 if (mConn.getResponseCode() == 416) {
@@ -89,6 +112,7 @@ public class DownloadRunnable extends Thread {
                         // try again from the start (of the block)
                         mMission.notifyProgress(-block.done);
                         block.done = 0;
+                        block.checksum = RollingChecksum.INITIAL;
                         retry = true;
                         mConn.disconnect();
                         continue;
@@ -98,6 +122,7 @@ public class DownloadRunnable extends Thread {
                 }
 
                 retry = false;
+                refreshCount = 0;
 
                 // The server may be ignoring the range request
                 if (mConn.getResponseCode() != 206) {
@@ -111,15 +136,20 @@ public class DownloadRunnable extends Thread {
                 f.seek(mMission.offsets[mMission.current] + start);
 
                 try (InputStream is = mConn.getInputStream()) {
-                    byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
                     int len;
 
                     // use always start <= end
                     // fixes a deadlock because in some videos, youtube is sending one byte alone
-                    while (start <= end && mMission.running && (len = is.read(buf, 0, buf.length)) != -1) {
+                    while (start <= end && mMission.running && (len = is.read(buf, 0, mMission.getReadChunkSize(buf.length))) != -1) {
+                        mMission.throttle(len);
+
+                        long writeTime = System.nanoTime();
                         f.write(buf, 0, len);
+                        metrics.onTransfer(len, System.nanoTime() - writeTime);
+
                         start += len;
                         block.done += len;
+                        block.checksum = RollingChecksum.update(block.checksum, buf, 0, len);
                         mMission.notifyProgress(len);
                     }
                 }
@@ -131,13 +161,23 @@ public class DownloadRunnable extends Thread {
                 if (!mMission.running || e instanceof ClosedByInterruptException) break;
 
                 if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
-                    // for youtube streams. The url has expired, recover
-                    f.close();
+                    // for youtube streams. The url has expired, wait for a fresh one
+                    if (refreshCount++ >= mMission.maxRetry) {
+                        mMission.notifyError(e);
+                        break;
+                    }
 
-                    if (mId == 1) {
-                        // only the first thread will execute the recovery procedure
-                        mMission.doRecover(ERROR_HTTP_FORBIDDEN);
+                    try {
+                        if (mMission.awaitFreshUrl(urlGeneration)) {
+                            retry = true;
+                            continue;
+                        }
+                    } catch (InterruptedException err) {
+                        // the mission was paused or the whole recovery is running
                     }
+
+                    BufferPool.release(buf);
+                    f.close();
                     return;
                 }
 
@@ -146,12 +186,14 @@ public class DownloadRunnable extends Thread {
                     break;
                 }
 
+                metrics.onRetry();
                 retry = true;
             } finally {
                 if (!retry) releaseBlock(block, end - start);
             }
         }
 
+        BufferPool.release(buf);
         f.close();
 
         if (DEBUG) {
@@ -12,6 +12,7 @@ import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 
 import us.shandian.giga.get.DownloadMission.HttpError;
+import us.shandian.giga.util.BufferPool;
 import us.shandian.giga.util.Utility;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
@@ -26,6 +27,7 @@ public class DownloadRunnableFallback extends Thread {
     private final DownloadMission mMission;
 
     private int mRetryCount = 0;
+    private int urlGeneration = 0;
     private InputStream mIs;
     private SharpStream mF;
     private HttpURLConnection mConn;
@@ -61,6 +63,10 @@ public class DownloadRunnableFallback extends Thread {
             long rangeStart = (mMission.unknownLength || start < 1) ? -1 : start;
 
             int mId = 1;
+            MissionMetrics.ThreadMetrics metrics = mMission.getMetrics().getThread(mId);
+            long requestTime = System.nanoTime();
+
+            urlGeneration = mMission.getUrlGeneration();
             mConn = mMission.openConnection(false, rangeStart, -1);
 
             if (mRetryCount == 0 && rangeStart == -1) {
@@ -69,6 +75,7 @@ public class DownloadRunnableFallback extends Thread {
             }
 
             mMission.establishConnection(mId, mConn);
+            metrics.onConnected(System.nanoTime() - requestTime);
 
             // check if the download can be resumed
             if (mConn.getResponseCode() == 416 && start > 0) {
@@ -92,13 +99,22 @@ public class DownloadRunnableFallback extends Thread {
 
             mIs = mConn.getInputStream();
 
-            byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
+            byte[] buf = BufferPool.acquire();
             int len = 0;
 
-            while (mMission.running && (len = mIs.read(buf, 0, buf.length)) != -1) {
-                mF.write(buf, 0, len);
-                start += len;
-                mMission.notifyProgress(len);
+            try {
+                while (mMission.running && (len = mIs.read(buf, 0, mMission.getReadChunkSize(buf.length))) != -1) {
+                    mMission.throttle(len);
+
+                    long writeTime = System.nanoTime();
+                    mF.write(buf, 0, len);
+                    metrics.onTransfer(len, System.nanoTime() - writeTime);
+
+                    start += len;
+                    mMission.notifyProgress(len);
+                }
+            } finally {
+                BufferPool.release(buf);
             }
 
             dispose();
@@ -113,9 +129,17 @@ public class DownloadRunnableFallback extends Thread {
             if (!mMission.running || e instanceof ClosedByInterruptException) return;
 
             if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
-                // for youtube streams. The url has expired, recover
-                dispose();
-                mMission.doRecover(ERROR_HTTP_FORBIDDEN);
+                // for youtube streams. The url has expired, try again with a fresh one
+                if (mRetryCount++ >= mMission.maxRetry) {
+                    mMission.notifyError(e);
+                    return;
+                }
+
+                try {
+                    if (mMission.awaitFreshUrl(urlGeneration)) run();
+                } catch (InterruptedException err) {
+                    // the mission was paused
+                }
                 return;
             }
 
@@ -128,6 +152,8 @@ public class DownloadRunnableFallback extends Thread {
                 Log.e(TAG, "got exception, retrying...", e);
             }
 
+            mMission.getMetrics().getThread(1).onRetry();
+
             run();// try again
             return;
         }
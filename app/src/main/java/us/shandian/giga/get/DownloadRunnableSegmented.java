@@ -0,0 +1,209 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import us.shandian.giga.util.BufferPool;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Downloads a segmented resource (HLS media playlist). The segments are fetched in parallel
+ * but written sequentially, a bounded reorder buffer holds the segments downloaded ahead
+ * of the one being written.
+ */
+public class DownloadRunnableSegmented extends Thread {
+    private static final String TAG = "DownloadRunnableSegm";
+    private static final int PENDING_SEGMENTS_PER_THREAD = 2;
+    private static final int MAXIMUM_PLAYLIST_SIZE = 4 * 1024 * 1024;// 4 MiB
+    private static final long MIN_RELOAD_INTERVAL = 1000;// 1 second, to not poll live playlists in a loop
+
+    private final DownloadMission mMission;
+    private final ArrayDeque<Future<byte[]>> mPending = new ArrayDeque<>();
+    private final ArrayDeque<Long> mPendingSequences = new ArrayDeque<>();
+
+    private ExecutorService mPool;
+
+    DownloadRunnableSegmented(@NonNull DownloadMission mission) {
+        mMission = mission;
+    }
+
+    @Override
+    public void run() {
+        SharpStream f = null;
+        int threads = Math.max(mMission.threadCount, 1);
+
+        mPool = Executors.newFixedThreadPool(threads);
+
+        try {
+            SegmentPlaylist playlist = fetchPlaylist(mMission.urls[mMission.current]);
+
+            f = mMission.storage.getStream();
+
+            boolean resume = mMission.fallbackResumeOffset > 0;
+            long submitted;
+
+            if (resume) {
+                submitted = mMission.segmentResumeSequence;
+                if (DEBUG) Log.i(TAG, "resuming segmented download at sequence=" + submitted);
+            } else {
+                submitted = playlist.firstSequence;
+            }
+
+            f.seek(mMission.offsets[mMission.current] + mMission.fallbackResumeOffset);
+
+            if (!resume && playlist.initSegment != null) {
+                write(f, fetchSegment(playlist.initSegment), submitted);
+            }
+
+            int limit = threads * PENDING_SEGMENTS_PER_THREAD;
+
+            while (mMission.running) {
+                if (submitted < playlist.firstSequence) {
+                    // live content, the missing segments are gone
+                    Log.w(TAG, "segments lost from " + submitted + " to " + playlist.firstSequence);
+                    submitted = playlist.firstSequence;
+                }
+
+                while (mPending.size() < limit && submitted <= playlist.getLastSequence()) {
+                    String url = playlist.getSegment(submitted);
+                    mPending.add(mPool.submit(() -> fetchSegment(url)));
+                    mPendingSequences.add(submitted++);
+                }
+
+                if (mPending.isEmpty()) {
+                    if (playlist.finished) break;
+
+                    // live content, wait for new segments (the target duration can be 0)
+                    Thread.sleep(Math.max(MIN_RELOAD_INTERVAL, playlist.targetDuration * 1000L));
+                    playlist = fetchPlaylist(mMission.urls[mMission.current]);
+                    continue;
+                }
+
+                byte[] segment = mPending.poll().get();
+                write(f, segment, mPendingSequences.poll() + 1);
+            }
+        } catch (Exception e) {
+            if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+                e = (Exception) e.getCause();
+            }
+
+            if (mMission.running && !(e instanceof InterruptedException) && !(e instanceof ClosedByInterruptException)) {
+                mMission.notifyError(e);
+            }
+        } finally {
+            for (Future<byte[]> pending : mPending) pending.cancel(true);
+            mPending.clear();
+            mPendingSequences.clear();
+            mPool.shutdownNow();
+
+            if (f != null) f.close();
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "segmented download exited, running=" + mMission.running);
+        }
+
+        if (mMission.errCode == DownloadMission.ERROR_NOTHING && mMission.running) {
+            mMission.notifyFinished();
+        }
+    }
+
+    private void write(SharpStream f, byte[] data, long nextSequence) throws IOException {
+        long writeTime = System.nanoTime();
+        f.write(data, 0, data.length);
+        mMission.getMetrics().getThread(1).onTransfer(data.length, System.nanoTime() - writeTime);
+
+        synchronized (mMission.LOCK) {
+            // keep both values consistent for the state saving
+            mMission.fallbackResumeOffset += data.length;
+            mMission.segmentResumeSequence = nextSequence;
+        }
+
+        mMission.notifyProgress(data.length);
+    }
+
+    private SegmentPlaylist fetchPlaylist(String url) throws Exception {
+        // follow master playlists (one level) up to the media playlist
+        for (int i = 0; i < 2; i++) {
+            byte[] content = fetch(url, MAXIMUM_PLAYLIST_SIZE, false);
+            SegmentPlaylist playlist = SegmentPlaylist.parse(url, new String(content, StandardCharsets.UTF_8));
+
+            if (playlist.variant == null) return playlist;
+            url = playlist.variant;
+        }
+
+        throw new IOException("nested HLS master playlists");
+    }
+
+    private byte[] fetchSegment(String url) throws Exception {
+        int retryCount = 0;
+
+        while (true) {
+            try {
+                return fetch(url, Integer.MAX_VALUE, true);
+            } catch (IOException e) {
+                if (!mMission.running || retryCount++ >= mMission.maxRetry) throw e;
+                if (DEBUG) Log.w(TAG, "segment failed, retrying " + url, e);
+
+                mMission.getMetrics().getThread(1).onRetry();
+            }
+        }
+    }
+
+    private byte[] fetch(String url, int maximumSize, boolean throttle) throws Exception {
+        long requestTime = System.nanoTime();
+        HttpURLConnection conn = mMission.openConnection(url, false, -1, -1);
+
+        try {
+            mMission.establishConnection(1, conn);
+            mMission.getMetrics().getThread(1).onConnected(System.nanoTime() - requestTime);
+
+            int length = (int) Math.min(Math.max(conn.getContentLength(), 0), maximumSize);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(length > 0 ? length : DownloadMission.BUFFER_SIZE);
+
+            byte[] buf = BufferPool.acquire();
+
+            try (InputStream is = conn.getInputStream()) {
+                int len;
+
+                while (mMission.running && (len = is.read(buf, 0, mMission.getReadChunkSize(buf.length))) != -1) {
+                    if (throttle) mMission.throttle(len);
+                    buffer.write(buf, 0, len);
+
+                    if (buffer.size() > maximumSize) throw new IOException("response too large: " + url);
+                }
+            } finally {
+                BufferPool.release(buf);
+            }
+
+            if (!mMission.running) throw new InterruptedException("mission paused");
+
+            return buffer.toByteArray();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        super.interrupt();
+
+        if (mPool != null) mPool.shutdownNow();
+    }
+}
@@ -4,6 +4,21 @@ import androidx.annotation.NonNull;
 
 public class FinishedMission extends Mission {
 
+    /**
+     * Streams downloaded, see {@link DownloadMission#getVariant()}
+     */
+    public String variant;
+
+    /**
+     * Length of the downloaded resources (before the post-processing), 0 if unknown
+     */
+    public long resourcesLength;
+
+    /**
+     * Hash of the file content, {@code null} if not calculated yet
+     */
+    public String contentHash;
+
     public FinishedMission() {
     }
 
@@ -13,6 +28,8 @@ public class FinishedMission extends Mission {
         timestamp = mission.timestamp;
         kind = mission.kind;
         storage = mission.storage;
+        variant = mission.getVariant();
+        resourcesLength = mission.nearLength;
     }
 
 }
@@ -0,0 +1,75 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Saves the state of the missions in background, a single thread serves all missions of a
+ * {@link us.shandian.giga.service.DownloadManager}. A mission is written once no matter how
+ * many times was marked as dirty while waiting, the latest state is always written.
+ */
+public class MissionCheckpointWriter extends Thread {
+    private final LinkedHashSet<DownloadMission> mDirty = new LinkedHashSet<>();
+    private boolean mClosed = false;
+
+    public MissionCheckpointWriter() {
+        super("MissionCheckpointWriter");
+    }
+
+    /**
+     * Marks the state of the mission as dirty, the state is saved as soon as possible
+     *
+     * @param mission the mission to save
+     */
+    void schedule(@NonNull DownloadMission mission) {
+        synchronized (mDirty) {
+            if (!mClosed) {
+                mDirty.add(mission);
+                mDirty.notify();
+                return;
+            }
+        }
+
+        // the manager is gone, write in the calling thread
+        mission.writeThisToFile();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            DownloadMission mission;
+
+            synchronized (mDirty) {
+                while (mDirty.isEmpty() && !mClosed) {
+                    try {
+                        mDirty.wait();
+                    } catch (InterruptedException e) {
+                        // write the pending missions before exit
+                        mClosed = true;
+                    }
+                }
+
+                if (mDirty.isEmpty()) return;
+
+                Iterator<DownloadMission> iterator = mDirty.iterator();
+                mission = iterator.next();
+                iterator.remove();
+            }
+
+            mission.writeThisToFile();
+        }
+    }
+
+    /**
+     * Stops the thread once the pending states are written, the missions scheduled after this
+     * call are written by the calling thread
+     */
+    public void close() {
+        synchronized (mDirty) {
+            mClosed = true;
+            mDirty.notify();
+        }
+    }
+}
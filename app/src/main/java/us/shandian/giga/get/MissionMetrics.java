@@ -0,0 +1,241 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import com.grack.nanojson.JsonSink;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import us.shandian.giga.util.Clock;
+import us.shandian.giga.util.Utility;
+
+/**
+ * Performance counters of a {@link DownloadMission}, used to tune the thread count and
+ * block size on real devices. The counters live in memory only (not saved with the mission).
+ */
+public class MissionMetrics {
+
+    /**
+     * Counters of a single download thread (or the workers of a segmented download)
+     */
+    public static class ThreadMetrics {
+        final int id;
+        private final Clock clock;
+
+        // updated by several threads at once (the workers of a segmented download)
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong firstByteTime = new AtomicLong(-1);
+        final AtomicLong lastByteTime = new AtomicLong(-1);
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicLong timeToFirstByte = new AtomicLong();// sum, in nanoseconds
+        final AtomicInteger retries = new AtomicInteger();
+
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicLong writeTime = new AtomicLong();// sum, in nanoseconds
+        final AtomicLong maximumWriteTime = new AtomicLong();
+
+        ThreadMetrics(int id, Clock clock) {
+            this.id = id;
+            this.clock = clock;
+        }
+
+        /**
+         * @param latency time elapsed between the request and the response headers, in nanoseconds
+         */
+        void onConnected(long latency) {
+            connections.incrementAndGet();
+            timeToFirstByte.addAndGet(latency);
+        }
+
+        void onRetry() {
+            retries.incrementAndGet();
+        }
+
+        /**
+         * @param amount       bytes read and written
+         * @param writeLatency time spent writing the bytes in the storage, in nanoseconds
+         */
+        void onTransfer(int amount, long writeLatency) {
+            long now = clock.elapsedRealtime();
+            firstByteTime.compareAndSet(-1, now);
+            lastByteTime.set(now);
+
+            bytes.addAndGet(amount);
+            writes.incrementAndGet();
+            writeTime.addAndGet(writeLatency);
+
+            long maximum = maximumWriteTime.get();
+            while (writeLatency > maximum) {
+                if (maximumWriteTime.compareAndSet(maximum, writeLatency)) break;
+                maximum = maximumWriteTime.get();
+            }
+        }
+
+        public double getBytesPerSecond() {
+            long elapsed = lastByteTime.get() - firstByteTime.get();
+            return elapsed > 0 ? (bytes.get() * 1000d) / elapsed : 0;
+        }
+
+        public double getAverageTimeToFirstByte() {
+            int count = connections.get();
+            return count > 0 ? (timeToFirstByte.get() / 1e6) / count : 0;
+        }
+
+        public double getAverageWriteLatency() {
+            int count = writes.get();
+            return count > 0 ? (writeTime.get() / 1e3) / count : 0;
+        }
+    }
+
+    private final Clock clock;
+    private final ArrayList<ThreadMetrics> threads = new ArrayList<>();
+
+    private volatile long startTime = -1;
+    private volatile long endTime = -1;
+    private final AtomicInteger recoveries = new AtomicInteger();
+    private final AtomicInteger urlRefreshes = new AtomicInteger();
+    private volatile long postProcessingTime = -1;
+
+    MissionMetrics(@NonNull Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the counters of a download thread, created if necessary
+     *
+     * @param id the id of the thread
+     * @return the thread counters
+     */
+    @NonNull
+    synchronized ThreadMetrics getThread(int id) {
+        if (startTime < 0) startTime = clock.elapsedRealtime();
+
+        for (ThreadMetrics thread : threads) {
+            if (thread.id == id) return thread;
+        }
+
+        ThreadMetrics thread = new ThreadMetrics(id, clock);
+        threads.add(thread);
+        return thread;
+    }
+
+    void onRecovery() {
+        recoveries.incrementAndGet();
+    }
+
+    void onUrlRefresh() {
+        urlRefreshes.incrementAndGet();
+    }
+
+    void onFinished() {
+        endTime = clock.elapsedRealtime();
+    }
+
+    /**
+     * @param duration time spent by the post-processing algorithm, in milliseconds
+     */
+    void onPostProcessing(long duration) {
+        postProcessingTime = duration;
+    }
+
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (ThreadMetrics thread : threads) bytes += thread.bytes.get();
+        return bytes;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        long first = Long.MAX_VALUE;
+        long last = -1;
+
+        for (ThreadMetrics thread : threads) {
+            if (thread.firstByteTime.get() < 0) continue;
+            first = Math.min(first, thread.firstByteTime.get());
+            last = Math.max(last, thread.lastByteTime.get());
+        }
+
+        long elapsed = last - first;
+        return elapsed > 0 ? (getBytes() * 1000d) / elapsed : 0;
+    }
+
+    public synchronized int getRetries() {
+        int retries = 0;
+        for (ThreadMetrics thread : threads) retries += thread.retries.get();
+        return retries;
+    }
+
+    /**
+     * Writes the counters as a JSON object
+     *
+     * @param mission the owner of the counters
+     * @param sink    where the object is written
+     */
+    public synchronized <T extends JsonSink<T>> void writeTo(@NonNull DownloadMission mission, @NonNull T sink) {
+        long elapsed = (endTime < 0 ? clock.elapsedRealtime() : endTime) - startTime;
+
+        sink.object()
+                .value("name", mission.storage.getName())
+                .value("threadCount", mission.threadCount)
+                .value("length", mission.length)
+                .value("elapsedMs", startTime < 0 ? 0 : elapsed)
+                .value("bytes", getBytes())
+                .value("bytesPerSecond", getBytesPerSecond())
+                .value("retries", getRetries())
+                .value("recoveries", recoveries.get())
+                .value("urlRefreshes", urlRefreshes.get())
+                .value("postProcessingMs", postProcessingTime);
+
+        sink.array("threads");
+        for (ThreadMetrics thread : threads) {
+            sink.object()
+                    .value("id", thread.id)
+                    .value("bytes", thread.bytes.get())
+                    .value("bytesPerSecond", thread.getBytesPerSecond())
+                    .value("connections", thread.connections.get())
+                    .value("timeToFirstByteMs", thread.getAverageTimeToFirstByte())
+                    .value("retries", thread.retries.get())
+                    .value("writeLatencyUs", thread.getAverageWriteLatency())
+                    .value("maximumWriteLatencyUs", thread.maximumWriteTime.get() / 1e3)
+                    .end();
+        }
+        sink.end();
+
+        sink.end();
+    }
+
+    /**
+     * Human readable summary, used by the diagnostics dialog
+     *
+     * @param mission the owner of the counters
+     * @return the summary
+     */
+    @NonNull
+    public synchronized String getSummary(@NonNull DownloadMission mission) {
+        Locale locale = Locale.getDefault();
+        StringBuilder str = new StringBuilder(256);
+
+        str.append(mission.storage.getName()).append('\n')
+                .append("  ").append(Utility.formatBytes(getBytes()))
+                .append("  ").append(Utility.formatSpeed(getBytesPerSecond()))
+                .append(String.format(locale, "  threads=%d retries=%d recoveries=%d refreshes=%d",
+                        mission.threadCount, getRetries(), recoveries.get(), urlRefreshes.get()));
+
+        if (postProcessingTime >= 0) {
+            str.append(String.format(locale, "  post-processing=%dms", postProcessingTime));
+        }
+
+        for (ThreadMetrics thread : threads) {
+            str.append('\n').append(String.format(locale,
+                    "    #%d %s  ttfb=%.1fms  write=%.1fus (max %.1fus)  retries=%d",
+                    thread.id, Utility.formatSpeed(thread.getBytesPerSecond()),
+                    thread.getAverageTimeToFirstByte(), thread.getAverageWriteLatency(),
+                    thread.maximumWriteTime.get() / 1e3, thread.retries.get()));
+        }
+
+        return str.toString();
+    }
+}
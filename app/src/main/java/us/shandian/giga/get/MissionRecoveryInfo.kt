@@ -39,6 +39,19 @@ class MissionRecoveryInfo(
         }
     }
 
+    /**
+     * Describes the stream in a stable way, persisted to find the same download later, see
+     * [DownloadMission.getVariant]. Unlike [toString], which is free to change, the result must
+     * stay the same across versions: change [DownloadMission.VARIANT_VERSION] if it really has to.
+     *
+     * @return the kind, the format id, the quality (resolution, bitrate or language) and the
+     * flag (video only or auto generated subtitles), separated by colons
+     */
+    fun getVariantKey(): String {
+        val quality = if (kind == 'a') desiredBitrate.toString() else desired.orEmpty()
+        return "$kind:${format.id}:$quality:${if (isDesired2) 1 else 0}"
+    }
+
     override fun toString(): String {
         val info: String
         val str = StringBuilder()
@@ -0,0 +1,169 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Minimal HLS playlist parser, only the tags required to download the media segments are
+ * handled. Segments can be MPEG-TS (concatenated as is) or fragmented MP4 (an initialization
+ * segment followed by the media segments, readable by the DASH muxers).
+ */
+public class SegmentPlaylist {
+    private static final String TAG_HEADER = "#EXTM3U";
+    private static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF:";
+    private static final String TAG_MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+    private static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+    private static final String TAG_MAP = "#EXT-X-MAP:";
+    private static final String TAG_KEY = "#EXT-X-KEY:";
+    private static final String TAG_END_LIST = "#EXT-X-ENDLIST";
+
+    /**
+     * Url of the best variant, only present if the parsed playlist is a master playlist
+     */
+    @Nullable
+    String variant;
+
+    /**
+     * Url of the initialization segment (fragmented MP4 only)
+     */
+    @Nullable
+    String initSegment;
+
+    /**
+     * Urls of the media segments, in playback order
+     */
+    final ArrayList<String> segments = new ArrayList<>();
+
+    /**
+     * Media sequence number of the first segment in the list
+     */
+    long firstSequence;
+
+    /**
+     * Maximum segment duration in seconds, used to reload live playlists
+     */
+    int targetDuration = 5;
+
+    /**
+     * Indicates if no more segments will be added to the playlist (non-live content)
+     */
+    boolean finished;
+
+    /**
+     * Checks if an url points to an HLS playlist, by the extension of its path. The streams
+     * offered for download carry no delivery method, the extension is all there is.
+     *
+     * @param url the url of the resource
+     * @return {@code true} if the resource has to be downloaded segment by segment
+     */
+    public static boolean isPlaylistUrl(@Nullable String url) {
+        if (url == null) return false;
+
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query >= 0) end = query;
+        int fragment = url.indexOf('#');
+        if (fragment >= 0 && fragment < end) end = fragment;
+
+        String path = url.substring(0, end).toLowerCase(Locale.ROOT);
+        return path.endsWith(".m3u8") || path.endsWith(".m3u");
+    }
+
+    long getLastSequence() {
+        return firstSequence + segments.size() - 1;
+    }
+
+    @Nullable
+    String getSegment(long sequence) {
+        long index = sequence - firstSequence;
+        if (index < 0 || index >= segments.size()) return null;
+        return segments.get((int) index);
+    }
+
+    static SegmentPlaylist parse(@NonNull String baseUrl, @NonNull String content) throws IOException {
+        SegmentPlaylist playlist = new SegmentPlaylist();
+        URL base = new URL(baseUrl);
+        String[] lines = content.split("\r?\n");
+        long bestBandwidth = -1;
+        boolean variantNext = false;
+        long variantBandwidth = 0;
+
+        if (lines.length < 1 || !lines[0].trim().startsWith(TAG_HEADER))
+            throw new IOException("invalid HLS playlist");
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            if (line.startsWith(TAG_STREAM_INF)) {
+                variantNext = true;
+                variantBandwidth = parseLong(getAttribute(line, "BANDWIDTH"), 0);
+            } else if (line.startsWith(TAG_MEDIA_SEQUENCE)) {
+                playlist.firstSequence = parseLong(line.substring(TAG_MEDIA_SEQUENCE.length()), 0);
+            } else if (line.startsWith(TAG_TARGET_DURATION)) {
+                playlist.targetDuration = (int) parseLong(line.substring(TAG_TARGET_DURATION.length()), 5);
+            } else if (line.startsWith(TAG_MAP)) {
+                String uri = getAttribute(line, "URI");
+                if (uri != null) playlist.initSegment = new URL(base, uri).toString();
+            } else if (line.startsWith(TAG_KEY)) {
+                String method = getAttribute(line, "METHOD");
+                if (method != null && !method.equals("NONE"))
+                    throw new IOException("encrypted HLS segments are not supported: " + method);
+            } else if (line.startsWith(TAG_END_LIST)) {
+                playlist.finished = true;
+            } else if (line.charAt(0) != '#') {
+                String url = new URL(base, line).toString();
+
+                if (variantNext) {
+                    // pick the variant with the highest bandwidth
+                    if (variantBandwidth > bestBandwidth) {
+                        bestBandwidth = variantBandwidth;
+                        playlist.variant = url;
+                    }
+                    variantNext = false;
+                } else {
+                    playlist.segments.add(url);
+                }
+            }
+        }
+
+        return playlist;
+    }
+
+    @Nullable
+    private static String getAttribute(String line, String name) {
+        String key = name + "=";
+        int index = line.indexOf(key);
+
+        // skip partial matches, example: BANDWIDTH inside AVERAGE-BANDWIDTH
+        while (index > 0 && line.charAt(index - 1) != ':' && line.charAt(index - 1) != ',') {
+            index = line.indexOf(key, index + 1);
+        }
+        if (index < 0) return null;
+
+        index += key.length();
+
+        if (index < line.length() && line.charAt(index) == '"') {
+            int end = line.indexOf('"', index + 1);
+            return end < 0 ? null : line.substring(index + 1, end);
+        }
+
+        int end = line.indexOf(',', index);
+        return end < 0 ? line.substring(index) : line.substring(index, end);
+    }
+
+    private static long parseLong(@Nullable String value, long defaultValue) {
+        if (value == null) return defaultValue;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
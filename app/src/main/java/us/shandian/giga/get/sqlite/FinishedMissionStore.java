@@ -9,9 +9,11 @@ import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import us.shandian.giga.get.DownloadMission;
@@ -27,7 +29,7 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
     // TODO: use NewPipeSQLiteHelper ('s constants) when playlist branch is merged (?)
     private static final String DATABASE_NAME = "downloads.db";
 
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 7;
 
     /**
      * The table name of download missions (old)
@@ -56,6 +58,12 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
 
     private static final String KEY_PATH = "path";
 
+    private static final String KEY_VARIANT = "variant";
+
+    private static final String KEY_RESOURCES_LENGTH = "resources_length";
+
+    private static final String KEY_CONTENT_HASH = "content_hash";
+
     /**
      * The statement to create the table
      */
@@ -68,17 +76,61 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
                     KEY_KIND + " TEXT NOT NULL, " +
                     " UNIQUE(" + KEY_TIMESTAMP + ", " + KEY_PATH + "));";
 
+    /**
+     * The statement to create the index used to find a mission by its path. The pages sorted
+     * by timestamp are served by the index of the UNIQUE(timestamp, path) constraint
+     */
+    private static final String MISSIONS_CREATE_PATH_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + FINISHED_TABLE_NAME + "_" + KEY_PATH + " ON " +
+                    FINISHED_TABLE_NAME + " (" + KEY_PATH + ");";
+
+    /**
+     * The statement to create the index used to find the previous downloads of a stream
+     */
+    private static final String MISSIONS_CREATE_SOURCE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + FINISHED_TABLE_NAME + "_" + KEY_SOURCE + " ON " +
+                    FINISHED_TABLE_NAME + " (" + KEY_SOURCE + ");";
+
+
+    private static FinishedMissionStore instance;
 
     private final Context context;
 
-    public FinishedMissionStore(Context context) {
+    private FinishedMissionStore(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         this.context = context;
     }
 
+    /**
+     * Gets the store shared by the process, the download manager and the players read and write
+     * the same database through a single connection
+     *
+     * @param context any context, the application context is kept
+     * @return the store
+     */
+    @NonNull
+    public static synchronized FinishedMissionStore getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new FinishedMissionStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(MISSIONS_CREATE_TABLE);
+        db.execSQL(MISSIONS_CREATE_PATH_INDEX);
+        addContentColumns(db);
+    }
+
+    /**
+     * Adds the columns used to find duplicated downloads (database version 6)
+     */
+    private static void addContentColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + FINISHED_TABLE_NAME + " ADD COLUMN " + KEY_VARIANT + " TEXT;");
+        db.execSQL("ALTER TABLE " + FINISHED_TABLE_NAME + " ADD COLUMN " + KEY_RESOURCES_LENGTH + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + FINISHED_TABLE_NAME + " ADD COLUMN " + KEY_CONTENT_HASH + " TEXT;");
+        db.execSQL(MISSIONS_CREATE_SOURCE_INDEX);
     }
 
     @Override
@@ -121,6 +173,22 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
 
             cursor.close();
             db.execSQL("DROP TABLE " + MISSIONS_TABLE_NAME_v2);
+            oldVersion++;
+        }
+
+        if (oldVersion == 4) {
+            db.execSQL(MISSIONS_CREATE_PATH_INDEX);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            addContentColumns(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            // the variants were the debug description of the streams, they can not be trusted
+            db.execSQL("UPDATE " + FINISHED_TABLE_NAME + " SET " + KEY_VARIANT + " = NULL;");
         }
     }
 
@@ -137,6 +205,17 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
         values.put(KEY_DONE, downloadMission.length);
         values.put(KEY_TIMESTAMP, downloadMission.timestamp);
         values.put(KEY_KIND, String.valueOf(downloadMission.kind));
+
+        if (downloadMission instanceof DownloadMission) {
+            values.put(KEY_VARIANT, ((DownloadMission) downloadMission).getVariant());
+            values.put(KEY_RESOURCES_LENGTH, ((DownloadMission) downloadMission).nearLength);
+        } else if (downloadMission instanceof FinishedMission) {
+            FinishedMission mission = (FinishedMission) downloadMission;
+            values.put(KEY_VARIANT, mission.variant);
+            values.put(KEY_RESOURCES_LENGTH, mission.resourcesLength);
+            values.put(KEY_CONTENT_HASH, mission.contentHash);
+        }
+
         return values;
     }
 
@@ -152,6 +231,9 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
         mission.length = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_DONE));
         mission.timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_TIMESTAMP));
         mission.kind = kind.charAt(0);
+        mission.variant = cursor.getString(cursor.getColumnIndexOrThrow(KEY_VARIANT));
+        mission.resourcesLength = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_RESOURCES_LENGTH));
+        mission.contentHash = cursor.getString(cursor.getColumnIndexOrThrow(KEY_CONTENT_HASH));
 
         try {
             mission.storage = new StoredFileHelper(context,null, Uri.parse(path), "");
@@ -168,20 +250,152 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
     // Data source methods
     ///////////////////////////////////
 
-    public ArrayList<FinishedMission> loadFinishedMissions() {
+    /**
+     * Loads a page of finished missions, sorted from the newest to the oldest
+     *
+     * @param after the last mission of the previous page, {@code null} for the first page
+     * @param limit maximum amount of missions in the page
+     * @return the missions, if the page is not full there are no more missions
+     */
+    public ArrayList<FinishedMission> loadFinishedMissions(@Nullable FinishedMission after, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+
+        if (after != null) {
+            // keyset pagination, unlike OFFSET this is not affected by deleted rows
+            String ts = String.valueOf(after.timestamp);
+            selection = KEY_TIMESTAMP + " < ? OR (" + KEY_TIMESTAMP + " = ? AND " + KEY_PATH + " < ?)";
+            selectionArgs = new String[]{ts, ts, getPath(after)};
+        }
+
+        SQLiteDatabase database = getReadableDatabase();
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null, selection, selectionArgs,
+                null, null, KEY_TIMESTAMP + " DESC, " + KEY_PATH + " DESC", String.valueOf(limit))) {
+
+            ArrayList<FinishedMission> result = new ArrayList<>(Math.max(cursor.getCount(), 1));
+            while (cursor.moveToNext()) {
+                result.add(getMissionFromCursor(cursor));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Finds a finished mission by the path of its file
+     *
+     * @param storage where the file is stored
+     * @return the mission or {@code null} if no such mission exists
+     */
+    @Nullable
+    public FinishedMission findFinishedMission(@NonNull StoredFileHelper storage) {
+        if (storage.isInvalid()) return null;
+
+        SQLiteDatabase database = getReadableDatabase();
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null, KEY_PATH + " = ?",
+                new String[]{storage.getUri().toString()}, null, null, null, "1")) {
+            return cursor.moveToFirst() ? getMissionFromCursor(cursor) : null;
+        }
+    }
+
+    /**
+     * Finds the downloads of a stream page, of any variant, sorted from the newest to the oldest
+     *
+     * @param source the url of the stream page
+     * @return the missions
+     */
+    public ArrayList<FinishedMission> findFinishedMissions(@NonNull String source) {
+        SQLiteDatabase database = getReadableDatabase();
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null, KEY_SOURCE + " = ?",
+                new String[]{source}, null, null, KEY_TIMESTAMP + " DESC")) {
+
+            ArrayList<FinishedMission> result = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(getMissionFromCursor(cursor));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Finds the previous downloads of the same streams, sorted from the newest to the oldest
+     *
+     * @param source  the url of the stream page
+     * @param variant the streams downloaded, see {@link DownloadMission#getVariant()}
+     * @return the missions
+     */
+    public ArrayList<FinishedMission> findFinishedMissions(@NonNull String source, @NonNull String variant) {
         SQLiteDatabase database = getReadableDatabase();
-        Cursor cursor = database.query(FINISHED_TABLE_NAME, null, null,
-                null, null, null, KEY_TIMESTAMP + " DESC");
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null, KEY_SOURCE + " = ? AND " + KEY_VARIANT + " = ?",
+                new String[]{source, variant}, null, null, KEY_TIMESTAMP + " DESC")) {
 
-        int count = cursor.getCount();
-        if (count == 0) return new ArrayList<>(1);
+            ArrayList<FinishedMission> result = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(getMissionFromCursor(cursor));
+            }
 
-        ArrayList<FinishedMission> result = new ArrayList<>(count);
-        while (cursor.moveToNext()) {
-            result.add(getMissionFromCursor(cursor));
+            return result;
         }
+    }
 
-        return result;
+    /**
+     * Loads the newest finished missions whose content was not hashed yet
+     *
+     * @param limit maximum amount of missions
+     * @return the missions
+     */
+    public ArrayList<FinishedMission> loadMissionsWithoutHash(int limit) {
+        SQLiteDatabase database = getReadableDatabase();
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null, KEY_CONTENT_HASH + " IS NULL",
+                null, null, null, KEY_TIMESTAMP + " DESC", String.valueOf(limit))) {
+
+            ArrayList<FinishedMission> result = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(getMissionFromCursor(cursor));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Finds another finished mission with the same content
+     *
+     * @param mission a mission with the content hash
+     * @return the oldest mission with the same content or {@code null} if the content is unique
+     */
+    @Nullable
+    public FinishedMission findDuplicate(@NonNull FinishedMission mission) {
+        if (mission.contentHash == null) return null;
+
+        SQLiteDatabase database = getReadableDatabase();
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null,
+                KEY_CONTENT_HASH + " = ? AND " + KEY_DONE + " = ? AND " + KEY_PATH + " != ?",
+                new String[]{mission.contentHash, String.valueOf(mission.length), getPath(mission)},
+                null, null, KEY_TIMESTAMP, "1")) {
+            return cursor.moveToFirst() ? getMissionFromCursor(cursor) : null;
+        }
+    }
+
+    /**
+     * Saves the hash of the file content
+     *
+     * @param mission the mission, with its {@code contentHash} field already set
+     */
+    public void setContentHash(@NonNull FinishedMission mission) {
+        if (mission.storage.isInvalid()) return;
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_CONTENT_HASH, mission.contentHash);
+
+        getWritableDatabase().update(FINISHED_TABLE_NAME, values, KEY_PATH + " = ?", new String[]{
+                mission.storage.getUri().toString()
+        });
+    }
+
+    private static String getPath(@NonNull Mission mission) {
+        return mission.storage.isInvalid() ? "" : mission.storage.getUri().toString();
     }
 
     public void addFinishedMission(DownloadMission downloadMission) {
@@ -208,6 +422,31 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Deletes multiple missions in a single transaction
+     *
+     * @param missions the missions to delete
+     */
+    public void deleteMissions(@NonNull List<? extends Mission> missions) {
+        if (missions.isEmpty()) return;
+
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (Mission mission : missions) deleteMission(mission);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes all finished missions, including the ones not loaded yet
+     */
+    public void deleteAllMissions() {
+        getWritableDatabase().delete(FINISHED_TABLE_NAME, null, null);
+    }
+
     public void updateMission(Mission mission) {
         ContentValues values = getValuesOfMission(Objects.requireNonNull(mission));
         SQLiteDatabase database = getWritableDatabase();
@@ -9,10 +9,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Objects;
 
+import us.shandian.giga.util.BufferPool;
+
 public class CircularFileWriter extends SharpStream {
 
     private final static int QUEUE_BUFFER_SIZE = 8 * 1024;// 8 KiB
-    private final static int COPY_BUFFER_SIZE = 128 * 1024; // 128 KiB
     private final static int NOTIFY_BYTES_INTERVAL = 64 * 1024;// 64 KiB
     private final static int THRESHOLD_AUX_LENGTH = 15 * 1024 * 1024;// 15 MiB
 
@@ -53,23 +54,27 @@ public class CircularFileWriter extends SharpStream {
         aux.flush();
 
         boolean underflow = aux.offset < aux.length || out.offset < out.length;
-        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        byte[] buffer = BufferPool.acquire();
 
         aux.target.seek(0);
         out.target.seek(out.length);
 
         long length = amount;
-        while (length > 0) {
-            int read = (int) Math.min(length, Integer.MAX_VALUE);
-            read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
+        try {
+            while (length > 0) {
+                int read = (int) Math.min(length, Integer.MAX_VALUE);
+                read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
 
-            if (read < 1) {
-                amount -= length;
-                break;
-            }
+                if (read < 1) {
+                    amount -= length;
+                    break;
+                }
 
-            out.writeProof(buffer, read);
-            length -= read;
+                out.writeProof(buffer, read);
+                length -= read;
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
 
         if (underflow) {
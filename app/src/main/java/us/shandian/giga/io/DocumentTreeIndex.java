@@ -0,0 +1,243 @@
+package us.shandian.giga.io;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static android.provider.DocumentsContract.Document.COLUMN_DISPLAY_NAME;
+import static android.provider.DocumentsContract.Document.COLUMN_DOCUMENT_ID;
+import static android.provider.DocumentsContract.Document.COLUMN_MIME_TYPE;
+import static android.provider.DocumentsContract.Document.MIME_TYPE_DIR;
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Listing of the children of a Storage Access Framework tree, queried with a single cursor
+ * instead of one ContentResolver call per file. The listing is updated with the files created
+ * and deleted by the app, and queried again after some time to catch external changes.
+ * <p>
+ * The filenames are compared ignoring the case, like the FAT file system does.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class DocumentTreeIndex {
+    private static final String TAG = "DocumentTreeIndex";
+    private static final long LIFETIME = 30000;// 30 seconds
+
+    private static final HashMap<String, DocumentTreeIndex> INDEXES = new HashMap<>(2);
+
+    static class Entry {
+        final String name;
+        final String documentId;
+        final String mime;
+
+        Entry(String name, String documentId, String mime) {
+            this.name = name;
+            this.documentId = documentId;
+            this.mime = mime;
+        }
+
+        boolean isDirectory() {
+            return MIME_TYPE_DIR.equals(mime);
+        }
+    }
+
+    private final Context context;
+    private final Uri tree;
+    private final String treeId;
+
+    private final HashMap<String, Entry> byName = new HashMap<>();
+    private final HashMap<String, Entry> byDocumentId = new HashMap<>();
+    private long timestamp = -1;
+
+    private DocumentTreeIndex(Context context, String authority, String treeId) {
+        this.context = context.getApplicationContext();
+        this.treeId = treeId;
+        this.tree = DocumentsContract.buildDocumentUriUsingTree(
+                DocumentsContract.buildTreeDocumentUri(authority, treeId), treeId
+        );
+    }
+
+    /**
+     * Gets the index of the tree containing the specified document (or the tree itself)
+     *
+     * @param context the context
+     * @param uri     a tree based uri, like the ones returned by {@code DocumentFile.fromTreeUri()}
+     * @return the index, or {@code null} if the uri is not tree based or the tree can not be listed
+     */
+    @Nullable
+    static DocumentTreeIndex get(@Nullable Context context, @NonNull Uri uri) {
+        return get(context, uri, false);
+    }
+
+    /**
+     * Gets the index of the tree containing the specified document (or the tree itself)
+     *
+     * @param context the context
+     * @param uri     a tree based uri, like the ones returned by {@code DocumentFile.fromTreeUri()}
+     * @param fresh   {@code true} to list the tree again even if the listing did not expire,
+     *                required when a missing name has to be trusted
+     * @return the index, or {@code null} if the uri is not tree based or the tree can not be listed
+     */
+    @Nullable
+    static DocumentTreeIndex get(@Nullable Context context, @NonNull Uri uri, boolean fresh) {
+        if (context == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return null;
+
+        // expected path: /tree/{tree id}/document/{document id}
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 4 || !"tree".equals(segments.get(0)) || !"document".equals(segments.get(2)))
+            return null;
+
+        String key = uri.getAuthority() + "/" + segments.get(1);
+        DocumentTreeIndex index;
+
+        synchronized (INDEXES) {
+            index = INDEXES.get(key);
+            if (index == null) {
+                index = new DocumentTreeIndex(context, uri.getAuthority(), segments.get(1));
+                INDEXES.put(key, index);
+            }
+        }
+
+        synchronized (index) {
+            if (fresh) index.invalidate();
+            return index.refresh() ? index : null;
+        }
+    }
+
+    /**
+     * Checks if the document is listed as a file in the root of its tree. If this method returns
+     * {@code false} the document can still exist (stale listing or inside a sub-directory).
+     *
+     * @param context  the context
+     * @param document a tree based uri of the document
+     * @return {@code true} if the file exists, otherwise, {@code false} if is unknown
+     */
+    static boolean containsFile(@Nullable Context context, @NonNull Uri document) {
+        DocumentTreeIndex index = get(context, document);
+        if (index == null) return false;
+
+        Entry entry;
+        synchronized (index) {
+            entry = index.byDocumentId.get(DocumentsContract.getDocumentId(document));
+        }
+
+        return entry != null && !entry.isDirectory();
+    }
+
+    /**
+     * Finds a child of the tree by its name. The listing can be stale, a missing name does not
+     * mean that there is no such child.
+     *
+     * @param name the filename
+     * @return the entry or {@code null} if the child is not listed
+     */
+    @Nullable
+    synchronized Entry find(@NonNull String name) {
+        return byName.get(name.toLowerCase());
+    }
+
+    /**
+     * Gets the names of the children starting with the specified prefix
+     *
+     * @param prefix the prefix, in lower case
+     * @return the names, in lower case
+     */
+    @NonNull
+    synchronized List<String> getNamesStartingWith(@NonNull String prefix) {
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : byName.keySet()) {
+            if (name.startsWith(prefix)) names.add(name);
+        }
+        return names;
+    }
+
+    @NonNull
+    Uri getUri(@NonNull Entry entry) {
+        return DocumentsContract.buildDocumentUriUsingTree(tree, entry.documentId);
+    }
+
+    /**
+     * Adds a document created by the app (or found by other means), avoids listing the whole
+     * tree again
+     *
+     * @param name     the name of the document (can be different from the requested one)
+     * @param document the uri of the document
+     * @param mime     the mime type of the document
+     */
+    synchronized void add(@Nullable String name, @NonNull Uri document, @Nullable String mime) {
+        if (name == null) {
+            invalidate();// the name chosen by the provider is unknown
+            return;
+        }
+
+        put(new Entry(name, DocumentsContract.getDocumentId(document), mime));
+    }
+
+    /**
+     * Removes a document deleted by the app
+     *
+     * @param document the uri of the document
+     */
+    synchronized void remove(@NonNull Uri document) {
+        Entry entry = byDocumentId.remove(DocumentsContract.getDocumentId(document));
+        if (entry != null) byName.remove(entry.name.toLowerCase());
+    }
+
+    /**
+     * Discards the listing, the next call queries the tree again
+     */
+    synchronized void invalidate() {
+        timestamp = -1;
+    }
+
+    private void put(Entry entry) {
+        String key = entry.name.toLowerCase();
+
+        // keep the first entry if two filenames only differs in the case
+        if (!byName.containsKey(key)) byName.put(key, entry);
+        byDocumentId.put(entry.documentId, entry);
+    }
+
+    private synchronized boolean refresh() {
+        long now = SystemClock.elapsedRealtime();
+        if (timestamp >= 0 && (now - timestamp) < LIFETIME) return true;
+
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(tree, treeId);
+        String[] projection = {COLUMN_DISPLAY_NAME, COLUMN_DOCUMENT_ID, COLUMN_MIME_TYPE};
+        ContentResolver cr = context.getContentResolver();
+
+        try (Cursor cursor = cr.query(childrenUri, projection, null, null, null)) {
+            if (cursor == null) return false;
+
+            byName.clear();
+            byDocumentId.clear();
+
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(0) || cursor.isNull(1)) continue;
+                put(new Entry(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+            }
+        } catch (Exception e) {
+            // missing permission or the tree is gone
+            Log.w(TAG, "cannot list the tree " + tree, e);
+            timestamp = -1;
+            return false;
+        }
+
+        timestamp = now;
+        if (DEBUG) Log.d(TAG, "listed " + byDocumentId.size() + " documents of " + tree);
+
+        return true;
+    }
+}
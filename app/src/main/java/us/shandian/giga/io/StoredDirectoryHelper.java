@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 import static android.provider.DocumentsContract.Document.COLUMN_DISPLAY_NAME;
+import static android.provider.DocumentsContract.Document.COLUMN_MIME_TYPE;
 import static android.provider.DocumentsContract.Root.COLUMN_DOCUMENT_ID;
 
 
@@ -73,9 +74,15 @@ public class StoredDirectoryHelper {
         String[] filename = splitFilename(name);
         String lcFilename = filename[0].toLowerCase();
 
+        // the names not listed are considered free, so the listing can not be a stale one
+        DocumentTreeIndex index = docTree == null
+                ? null : DocumentTreeIndex.get(context, docTree.getUri(), true);
+
         if (docTree == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             for (File file : ioTree.listFiles())
                 addIfStartWith(matches, lcFilename, file.getName());
+        } else if (index != null) {
+            matches.addAll(index.getNamesStartingWith(lcFilename));
         } else {
             // warning: SAF file listing is very slow
             Uri docTreeChildren = DocumentsContract.buildChildDocumentsUriUsingTree(
@@ -252,10 +259,18 @@ public class StoredDirectoryHelper {
             return tree.findFile(filename);// warning: this is very slow
         }
 
+        DocumentTreeIndex index = DocumentTreeIndex.get(context, tree.getUri());
+        if (index != null) {
+            DocumentTreeIndex.Entry entry = index.find(filename);
+            if (entry != null) return DocumentFile.fromSingleUri(context, index.getUri(entry));
+            // not listed, the listing can be stale (files created by other apps), ask the provider
+        }
+
         if (!tree.canRead()) return null;// missing read permission
 
         final int name = 0;
         final int documentId = 1;
+        final int mime = 2;
 
         // LOWER() SQL function is not supported
         String selection = COLUMN_DISPLAY_NAME + " = ?";
@@ -264,7 +279,7 @@ public class StoredDirectoryHelper {
         Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
                 tree.getUri(), DocumentsContract.getDocumentId(tree.getUri())
         );
-        String[] projection = {COLUMN_DISPLAY_NAME, COLUMN_DOCUMENT_ID};
+        String[] projection = {COLUMN_DISPLAY_NAME, COLUMN_DOCUMENT_ID, COLUMN_MIME_TYPE};
         ContentResolver contentResolver = context.getContentResolver();
 
         filename = filename.toLowerCase();
@@ -276,11 +291,12 @@ public class StoredDirectoryHelper {
                 if (cursor.isNull(name) || !cursor.getString(name).toLowerCase().startsWith(filename))
                     continue;
 
-                return DocumentFile.fromSingleUri(
-                        context, DocumentsContract.buildDocumentUriUsingTree(
-                                tree.getUri(), cursor.getString(documentId)
-                        )
+                Uri document = DocumentsContract.buildDocumentUriUsingTree(
+                        tree.getUri(), cursor.getString(documentId)
                 );
+                if (index != null) index.add(cursor.getString(name), document, cursor.getString(mime));
+
+                return DocumentFile.fromSingleUri(context, document);
             }
         }
 
@@ -6,7 +6,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
+import android.system.Os;
+import android.system.StructStatVfs;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -16,9 +19,11 @@ import androidx.fragment.app.Fragment;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 
 public class StoredFileHelper implements Serializable {
     private static final long serialVersionUID = 0L;
@@ -58,6 +63,8 @@ public class StoredFileHelper implements Serializable {
             // no conflicts (the filename is not in use)
             res = this.docTree.createFile(mime, filename);
             if (res == null) throw new IOException("Cannot create the file");
+
+            onCreatedSAF(res, mime);
         } else {
             res = createSAF(context, mime, filename);
         }
@@ -206,6 +213,11 @@ public class StoredFileHelper implements Serializable {
 
         boolean res = docFile.delete();
 
+        if (res) {
+            DocumentTreeIndex index = DocumentTreeIndex.get(context, docFile.getUri());
+            if (index != null) index.remove(docFile.getUri());
+        }
+
         try {
             int flags = Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
             context.getContentResolver().releasePersistableUriPermission(docFile.getUri(), flags);
@@ -222,6 +234,50 @@ public class StoredFileHelper implements Serializable {
         return docFile == null ? ioFile.length() : docFile.length();
     }
 
+    /**
+     * Opens the file for reading, the returned channel supports positional reads
+     *
+     * @return the channel, must be closed by the caller
+     * @throws IOException if the file can not be opened
+     */
+    @NonNull
+    public FileChannel openReadChannel() throws IOException {
+        invalid();
+
+        if (docFile == null) return new FileInputStream(ioFile).getChannel();
+
+        ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(docFile.getUri(), "r");
+        if (fd == null) throw new IOException("cannot open " + docFile.getUri());
+
+        return new ParcelFileDescriptor.AutoCloseInputStream(fd).getChannel();
+    }
+
+    /**
+     * Gets the free space available in the volume where this file is stored
+     *
+     * @return the amount of bytes, or -1 if unknown
+     */
+    public long getUsableSpace() {
+        if (source == null) return -1;
+
+        if (docFile == null) {
+            File parent = ioFile.getParentFile();
+            return parent == null ? -1 : parent.getUsableSpace();
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return -1;
+
+        // the volume behind a document is unknown, ask to the file system of the opened file
+        try (ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(docFile.getUri(), "r")) {
+            if (fd == null) return -1;
+
+            StructStatVfs stat = Os.fstatvfs(fd.getFileDescriptor());
+            return stat.f_bavail * stat.f_frsize;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
     public boolean canWrite() {
         if (source == null) return false;
         return docFile == null ? ioFile.canWrite() : docFile.canWrite();
@@ -252,6 +308,9 @@ public class StoredFileHelper implements Serializable {
     public boolean existsAsFile() {
         if (source == null) return false;
 
+        // fast path, the file is listed in the (cached) children of its tree
+        if (docFile != null && DocumentTreeIndex.containsFile(context, docFile.getUri())) return true;
+
         // WARNING: DocumentFile.exists() and DocumentFile.isFile() methods are slow
         boolean exists = docFile == null ? ioFile.exists() : docFile.exists();
         boolean isFile = docFile == null ? ioFile.isFile() : docFile.isFile();// ¿docFile.isVirtual() means is no-physical?
@@ -355,22 +414,50 @@ public class StoredFileHelper implements Serializable {
     }
 
     private DocumentFile createSAF(@Nullable Context context, String mime, String filename) throws IOException {
-        DocumentFile res = StoredDirectoryHelper.findFileSAFHelper(context, docTree, filename);
+        DocumentTreeIndex index = DocumentTreeIndex.get(context, docTree.getUri());
+        DocumentTreeIndex.Entry entry = index == null ? null : index.find(filename);
+        DocumentFile res;
 
-        if (res != null && res.exists() && res.isDirectory()) {
-            if (!res.delete())
-                throw new IOException("Directory with the same name found but cannot delete");
-            res = null;
+        if (entry != null) {
+            // avoid querying the existence and the type of the document
+            res = DocumentFile.fromSingleUri(context, index.getUri(entry));
+
+            if (res != null && entry.isDirectory()) {
+                if (!res.delete())
+                    throw new IOException("Directory with the same name found but cannot delete");
+                index.remove(res.getUri());
+                res = null;
+            }
+        } else {
+            // not listed (or no listing), the listing can be stale so ask the provider
+            res = StoredDirectoryHelper.findFileSAFHelper(context, docTree, filename);
+
+            if (res != null && res.exists() && res.isDirectory()) {
+                if (!res.delete())
+                    throw new IOException("Directory with the same name found but cannot delete");
+                if (index != null) index.remove(res.getUri());
+                res = null;
+            }
         }
 
         if (res == null) {
             res = this.docTree.createFile(srcType == null ? DEFAULT_MIME : mime, filename);
             if (res == null) throw new IOException("Cannot create the file");
+
+            onCreatedSAF(res, mime);
         }
 
         return res;
     }
 
+    /**
+     * Adds a new document to the cached listing of the tree (if any)
+     */
+    private void onCreatedSAF(@NonNull DocumentFile file, String mime) {
+        DocumentTreeIndex index = DocumentTreeIndex.get(context, docTree.getUri());
+        if (index != null) index.add(file.getName(), file.getUri(), mime);
+    }
+
     private String getLowerCase(String str) {
         return str == null ? null : str.toLowerCase();
     }
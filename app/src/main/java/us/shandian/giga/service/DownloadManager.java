@@ -6,21 +6,34 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.recyclerview.widget.DiffUtil;
 
+import com.grack.nanojson.JsonStringWriter;
+import com.grack.nanojson.JsonWriter;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.get.FinishedMission;
 import us.shandian.giga.get.Mission;
+import us.shandian.giga.get.MissionCheckpointWriter;
 import us.shandian.giga.get.sqlite.FinishedMissionStore;
 import us.shandian.giga.io.StoredDirectoryHelper;
 import us.shandian.giga.io.StoredFileHelper;
+import us.shandian.giga.util.BufferPool;
+import us.shandian.giga.util.ContentHasher;
+import us.shandian.giga.util.SpeedLimiter;
 import us.shandian.giga.util.Utility;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
@@ -37,14 +50,23 @@ public class DownloadManager {
     public static final String TAG_AUDIO = "audio";
     public static final String TAG_VIDEO = "video";
     private static final String DOWNLOADS_METADATA_FOLDER = "pending_downloads";
+    private static final int MAXIMUM_FINISHED_METRICS = 20;
+    private static final int FINISHED_MISSIONS_PAGE_SIZE = 100;
+    private static final long STORAGE_SAFETY_MARGIN = 16 * 1024 * 1024;// 16 MiB
+    private static final int MAXIMUM_PENDING_HASHES = 50;
 
     private final FinishedMissionStore mFinishedMissionStore;
 
     private final ArrayList<DownloadMission> mMissionsPending = new ArrayList<>();
-    private final ArrayList<FinishedMission> mMissionsFinished;
+    private final ArrayList<FinishedMission> mMissionsFinished = new ArrayList<>();
+    private volatile boolean mMissionsFinishedLoaded = false;
+    private final ArrayList<DownloadMission> mMissionsMetrics = new ArrayList<>();
 
     private final Handler mHandler;
     private final File mPendingMissionsDir;
+    private final SpeedLimiter mGlobalLimiter = new SpeedLimiter(0);
+    private final ThreadPoolExecutor mHashExecutor;
+    private final MissionCheckpointWriter mCheckpointWriter = new MissionCheckpointWriter();
 
     private NetworkState mLastNetworkStatus = NetworkState.Unavailable;
 
@@ -67,13 +89,22 @@ public class DownloadManager {
             Log.d(TAG, "new DownloadManager instance. 0x" + Integer.toHexString(this.hashCode()));
         }
 
-        mFinishedMissionStore = new FinishedMissionStore(context);
+        mFinishedMissionStore = FinishedMissionStore.getInstance(context);
         mHandler = handler;
         mMainStorageAudio = storageAudio;
         mMainStorageVideo = storageVideo;
-        mMissionsFinished = loadFinishedMissions();
         mPendingMissionsDir = getPendingDir(context);
+        mCheckpointWriter.start();
+
+        // one file at time, the chunks of the file are hashed in parallel
+        mHashExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "FinishedMissionsHasher");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        mHashExecutor.allowCoreThreadTimeOut(true);
 
+        loadFinishedMissions();
         loadPendingMissions(context);
     }
 
@@ -106,24 +137,174 @@ public class DownloadManager {
     }
 
     /**
-     * Loads finished missions from the data source
+     * Loads the newest finished missions from the data source, the remaining missions are loaded
+     * in background by pages. Missions whose file was removed are forgotten, this check is done
+     * in background too because can be slow with the Storage Access Framework.
      */
-    private ArrayList<FinishedMission> loadFinishedMissions() {
-        ArrayList<FinishedMission> finishedMissions = mFinishedMissionStore.loadFinishedMissions();
+    private void loadFinishedMissions() {
+        ArrayList<FinishedMission> page = mFinishedMissionStore.loadFinishedMissions(null, FINISHED_MISSIONS_PAGE_SIZE);
+        mMissionsFinished.addAll(page);
+
+        Thread thread = new Thread(() -> {
+            int count = page.size();
+            FinishedMission last = count > 0 ? page.get(count - 1) : null;
+
+            try {
+                // the first page is already visible
+                if (removeMissingFinishedMissions(page)) notifyFinishedMissionsChanged();
 
-        // check if the files exists, otherwise, forget the download
-        for (int i = finishedMissions.size() - 1; i >= 0; i--) {
-            FinishedMission mission = finishedMissions.get(i);
+                while (count >= FINISHED_MISSIONS_PAGE_SIZE) {
+                    ArrayList<FinishedMission> current = mFinishedMissionStore.loadFinishedMissions(last, FINISHED_MISSIONS_PAGE_SIZE);
+                    count = current.size();
+                    if (count < 1) break;
+
+                    last = current.get(count - 1);
+                    removeMissingFinishedMissions(current);
+
+                    synchronized (this) {
+                        if (mMissionsFinishedLoaded) break;// forgotten while loading
+                        mMissionsFinished.addAll(current);
+                    }
+                    notifyFinishedMissionsChanged();
+                }
 
+                // downloads finished before the content hashing was introduced
+                for (FinishedMission mission : mFinishedMissionStore.loadMissionsWithoutHash(MAXIMUM_PENDING_HASHES)) {
+                    hashContent(mission);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "failed to load the finished missions", e);
+            } finally {
+                mMissionsFinishedLoaded = true;
+            }
+        }, "FinishedMissionsLoader");
+
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Checks if the files of the finished missions exists, otherwise, forget the download
+     *
+     * @param missions a page of finished missions, the missing ones are removed from the list
+     * @return {@code true} if at least one mission was removed, otherwise, {@code false}
+     */
+    private boolean removeMissingFinishedMissions(ArrayList<FinishedMission> missions) {
+        ArrayList<FinishedMission> missing = new ArrayList<>();
+
+        for (FinishedMission mission : missions) {
             if (!mission.storage.existsAsFile()) {
                 if (DEBUG) Log.d(TAG, "downloaded file removed: " + mission.storage.getName());
+                missing.add(mission);
+            }
+        }
 
-                mFinishedMissionStore.deleteMission(mission);
-                finishedMissions.remove(i);
+        if (missing.isEmpty()) return false;
+
+        mFinishedMissionStore.deleteMissions(missing);
+        missions.removeAll(missing);
+
+        synchronized (this) {
+            mMissionsFinished.removeAll(new HashSet<>(missing));
+        }
+
+        return true;
+    }
+
+    /**
+     * Hashes in background the content of a finished download, used to detect duplicated files
+     *
+     * @param mission the finished mission
+     */
+    private void hashContent(FinishedMission mission) {
+        mHashExecutor.execute(() -> {
+            if (mission.storage.isInvalid() || !mission.storage.existsAsFile()) return;
+
+            mission.contentHash = computeContentHash(mission);
+            if (mission.contentHash == null) return;
+
+            mFinishedMissionStore.setContentHash(mission);
+
+            FinishedMission duplicate = mFinishedMissionStore.findDuplicate(mission);
+            if (duplicate != null) {
+                Log.i(TAG, mission.storage.getName() + " has the same content of " + duplicate.storage.getName());
+            }
+        });
+    }
+
+    /**
+     * Finds a previous download of the same streams whose file still exists, used to offer the
+     * existing file instead of downloading it again. Queries the database and the storage, do
+     * not call from the UI thread. The content is not verified, see
+     * {@link #isContentIntact(FinishedMission)}
+     *
+     * @param source         the url of the stream page
+     * @param variant        the streams to download, see {@link DownloadMission#getVariant()}
+     * @param expectedLength the length of the streams, 0 if unknown
+     * @return the finished mission or {@code null} if there no such download
+     */
+    @Nullable
+    @WorkerThread
+    public FinishedMission findExistingDownload(@Nullable String source, @Nullable String variant, long expectedLength) {
+        if (source == null || variant == null) return null;
+
+        for (FinishedMission mission : mFinishedMissionStore.findFinishedMissions(source, variant)) {
+            // the streams can change, for example, after being re-encoded
+            if (expectedLength > 0 && mission.resourcesLength > 0 && expectedLength != mission.resourcesLength)
+                continue;
+
+            if (mission.storage.isInvalid() || !mission.storage.existsAsFile()) continue;
+
+            // the file was modified or is incomplete
+            if (mission.storage.length() != mission.length) continue;
+
+            return mission;
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks that the content of a finished download did not change since it was hashed, the
+     * file can be corrupted or replaced by another one with the same length. Reads the whole
+     * file, so it is only done when the user picks the existing download
+     *
+     * @param mission the finished mission, see {@link #findExistingDownload(String, String, long)}
+     * @return {@code true} if the content is the same or was never hashed, otherwise, {@code false}
+     */
+    @WorkerThread
+    public boolean isContentIntact(FinishedMission mission) {
+        if (mission.contentHash == null) return true;
+        return mission.contentHash.equals(computeContentHash(mission));
+    }
+
+    /**
+     * Hashes the content of the file of a finished download, see {@link ContentHasher}
+     *
+     * @param mission the finished mission
+     * @return the hash or {@code null} if the file can not be read
+     */
+    @Nullable
+    @WorkerThread
+    private static String computeContentHash(FinishedMission mission) {
+        try (FileChannel channel = mission.storage.openReadChannel()) {
+            long start = System.nanoTime();
+            String hash = ContentHasher.hash(channel);
+
+            if (DEBUG) {
+                Log.d(TAG, "hashed " + mission.storage.getName() + " in " +
+                        ((System.nanoTime() - start) / 1000000L) + "ms");
             }
+
+            return hash;
+        } catch (Exception e) {
+            Log.w(TAG, "cannot hash the content of " + mission.storage.getName(), e);
+            return null;
         }
+    }
 
-        return finishedMissions;
+    private void notifyFinishedMissionsChanged() {
+        mHandler.obtainMessage(DownloadManagerService.MESSAGE_FINISHED_LOADED).sendToTarget();
     }
 
     private void loadPendingMissions(Context ctx) {
@@ -147,6 +328,13 @@ public class DownloadManager {
             if (!sub.isFile()) continue;
             if (sub.getName().equals(".tmp")) continue;
 
+            if (sub.getName().endsWith(".tmp")) {
+                // state not fully written (the app was killed)
+                //noinspection ResultOfMethodCallIgnored
+                sub.delete();
+                continue;
+            }
+
             DownloadMission mis = Utility.readFromFile(sub);
             if (mis == null || mis.isFinished()) {
                 //noinspection ResultOfMethodCallIgnored
@@ -184,6 +372,9 @@ public class DownloadManager {
                 // the progress is lost, reset mission state
                 if (mis.isInitialized())
                     mis.resetState(true, true, DownloadMission.ERROR_PROGRESS_LOST);
+            } else if (mis.isInitialized() && mis.savedWhileRunning) {
+                // NewPipe was killed while downloading, the file can contain torn writes
+                mis.verifyBlocks = true;
             }
 
             if (mis.psAlgorithm != null) {
@@ -194,6 +385,8 @@ public class DownloadManager {
             mis.metadata = sub;
             mis.maxRetry = mPrefMaxRetry;
             mis.mHandler = mHandler;
+            mis.globalLimiter = mGlobalLimiter;
+            mis.checkpointWriter = mCheckpointWriter;
 
             mMissionsPending.add(mis);
         }
@@ -212,6 +405,8 @@ public class DownloadManager {
             mission.timestamp = System.currentTimeMillis();
             mission.mHandler = mHandler;
             mission.maxRetry = mPrefMaxRetry;
+            mission.globalLimiter = mGlobalLimiter;
+            mission.checkpointWriter = mCheckpointWriter;
 
             // create metadata file
             while (true) {
@@ -244,7 +439,7 @@ public class DownloadManager {
 
             boolean start = !mPrefQueueLimit || getRunningMissionsCount() < 1;
 
-            if (canDownloadInCurrentNetwork() && start) {
+            if (canDownloadInCurrentNetwork() && start && admit(mission)) {
                 mission.start();
             }
         }
@@ -253,6 +448,8 @@ public class DownloadManager {
 
     public void resumeMission(DownloadMission mission) {
         if (!mission.running) {
+            // started by the user, ignore the free space
+            mission.waitingForStorage = false;
             mission.start();
         }
     }
@@ -280,6 +477,13 @@ public class DownloadManager {
     public void forgetMission(StoredFileHelper storage) {
         synchronized (this) {
             Mission mission = getAnyMission(storage);
+
+            if (mission == null && !mMissionsFinishedLoaded) {
+                // the mission can be in a page not loaded yet
+                mission = mFinishedMissionStore.findFinishedMission(storage);
+                if (mission != null) mFinishedMissionStore.deleteMission(mission);
+                return;
+            }
             if (mission == null) return;
 
             if (mission instanceof DownloadMission) {
@@ -386,11 +590,19 @@ public class DownloadManager {
         }
     }
 
+    /**
+     * Stops the background threads, the pending mission states are written before
+     */
+    void release() {
+        mCheckpointWriter.close();
+    }
+
     public void startAllMissions() {
         synchronized (this) {
             for (DownloadMission mission : mMissionsPending) {
                 if (mission.running || mission.isCorrupt()) continue;
 
+                mission.waitingForStorage = false;
                 mission.start();
             }
         }
@@ -404,8 +616,15 @@ public class DownloadManager {
     void setFinished(DownloadMission mission) {
         synchronized (this) {
             mMissionsPending.remove(mission);
-            mMissionsFinished.add(0, new FinishedMission(mission));
+            FinishedMission finished = new FinishedMission(mission);
+            mMissionsFinished.add(0, finished);
             mFinishedMissionStore.addFinishedMission(mission);
+            hashContent(finished);
+
+            // keep the performance counters of the recent downloads
+            mMissionsMetrics.add(0, mission);
+            if (mMissionsMetrics.size() > MAXIMUM_FINISHED_METRICS)
+                mMissionsMetrics.remove(mMissionsMetrics.size() - 1);
         }
     }
 
@@ -429,7 +648,9 @@ public class DownloadManager {
                 if (mission.running || !mission.enqueued || mission.isFinished())
                     continue;
 
-                resumeMission(mission);
+                if (!admit(mission)) continue;
+
+                mission.start();
                 if (mission.errCode != DownloadMission.ERROR_NOTHING) continue;
 
                 if (mPrefQueueLimit) return true;
@@ -450,10 +671,10 @@ public class DownloadManager {
      */
     public void forgetFinishedDownloads() {
         synchronized (this) {
-            for (FinishedMission mission : mMissionsFinished) {
-                mFinishedMissionStore.deleteMission(mission);
-            }
+            // also forget the missions not loaded yet
+            mFinishedMissionStore.deleteAllMissions();
             mMissionsFinished.clear();
+            mMissionsFinishedLoaded = true;
         }
     }
 
@@ -480,7 +701,7 @@ public class DownloadManager {
 
                 if (mission.running && isMetered) {
                     mission.pause();
-                } else if (!mission.running && !isMetered && mission.enqueued) {
+                } else if (!mission.running && !isMetered && mission.enqueued && admit(mission)) {
                     mission.start();
                     if (mPrefQueueLimit) break;
                 }
@@ -488,18 +709,151 @@ public class DownloadManager {
         }
     }
 
+    /**
+     * Estimates the free space still required to finish a mission: the bytes not downloaded yet
+     * plus the output of the post-processing, written while the downloaded resources still
+     * exists. If the algorithm reserves space at the start of the file, the output overwrites
+     * the reserved space first.
+     * <p>
+     * Setting the length of the file does not allocate it ({@code RandomAccessFile} creates a
+     * sparse file and SAF streams can only truncate), so only the bytes already written count
+     * as used.
+     * </p>
+     *
+     * @param mission the mission
+     * @return the amount of bytes, 0 if unknown
+     */
+    private static long estimateRequiredSpace(DownloadMission mission) {
+        long total = mission.getLength();
+        if (total < 1 || mission.unknownLength) return 0;
+
+        long required = Math.max(total - mission.done, 0);
+
+        if (mission.psAlgorithm != null && mission.psState == 0) {
+            if (mission.psAlgorithm.reserveSpace)
+                required += Math.max(total - mission.offsets[0], 0);
+            else
+                required += total;
+        }
+
+        return required;
+    }
+
+    /**
+     * Admission control, checks if the free space is enough to finish the mission considering
+     * the space still required by the running missions. Missions which do not fit wait in the
+     * queue until a running mission finishes (or the user starts them).
+     *
+     * @param mission the mission to start
+     * @return {@code true} if the mission can start, otherwise, {@code false}
+     */
+    private boolean admit(DownloadMission mission) {
+        long required = estimateRequiredSpace(mission);
+        long reserved = 0;
+
+        if (required > 0) {
+            for (DownloadMission other : mMissionsPending) {
+                // assume all missions are stored in the same volume
+                if (other != mission && other.running) reserved += estimateRequiredSpace(other);
+            }
+
+            long available = mission.storage.getUsableSpace();
+
+            if (available >= 0 && available - reserved < required + STORAGE_SAFETY_MARGIN) {
+                if (!mission.waitingForStorage) {
+                    Log.i(TAG, "not enough free space to start " + mission.storage.getName() +
+                            ": required=" + required + " reserved=" + reserved + " available=" + available);
+                }
+
+                mission.waitingForStorage = true;
+                return false;
+            }
+        }
+
+        mission.waitingForStorage = false;
+        return true;
+    }
+
     void updateMaximumAttempts() {
         synchronized (this) {
             for (DownloadMission mission : mMissionsPending) mission.maxRetry = mPrefMaxRetry;
         }
     }
 
+    /**
+     * Changes the bandwidth shared by all missions, running missions are throttled immediately
+     *
+     * @param bytesPerSecond maximum download speed, use 0 to remove the limit
+     */
+    void updateSpeedLimit(long bytesPerSecond) {
+        mGlobalLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Gets the missions whose performance counters are available, the pending missions
+     * first followed by the missions finished in this session
+     */
+    private List<DownloadMission> getMetricsMissions() {
+        synchronized (this) {
+            ArrayList<DownloadMission> missions = new ArrayList<>(mMissionsPending);
+            missions.addAll(mMissionsMetrics);
+            return missions;
+        }
+    }
+
+    /**
+     * Human readable summary of the performance counters, one entry per mission
+     */
+    @NonNull
+    public String getMetricsSummary() {
+        StringBuilder summary = new StringBuilder();
+
+        for (DownloadMission mission : getMetricsMissions()) {
+            if (summary.length() > 0) summary.append("\n\n");
+            summary.append(mission.getMetrics().getSummary(mission));
+        }
+
+        if (summary.length() > 0) {
+            summary.append("\n\nbuffers: ").append(Utility.formatBytes(BufferPool.getInFlightBytes()))
+                    .append(" in use, ").append(Utility.formatBytes(BufferPool.getPeakInFlightBytes()))
+                    .append(" peak, ").append(Utility.formatBytes(BufferPool.getIdleBytes()))
+                    .append(" idle");
+        }
+
+        return summary.toString();
+    }
+
+    /**
+     * Exports the performance counters as JSON
+     */
+    @NonNull
+    public String exportMetrics() {
+        JsonStringWriter writer = JsonWriter.string().object()
+                .value("blockSize", DownloadMission.BLOCK_SIZE)
+                .value("bufferSize", DownloadMission.BUFFER_SIZE)
+                .value("speedLimit", mGlobalLimiter.getRate())
+                .value("bufferInFlightBytes", BufferPool.getInFlightBytes())
+                .value("bufferPeakInFlightBytes", BufferPool.getPeakInFlightBytes())
+                .value("bufferIdleBytes", BufferPool.getIdleBytes())
+                .array("missions");
+
+        for (DownloadMission mission : getMetricsMissions()) {
+            mission.getMetrics().writeTo(mission, writer);
+        }
+
+        return writer.end().end().done();
+    }
+
     public MissionState checkForExistingMission(StoredFileHelper storage) {
         synchronized (this) {
             DownloadMission pending = getPendingMission(storage);
 
             if (pending == null) {
                 if (getFinishedMissionIndex(storage) >= 0) return MissionState.Finished;
+
+                // the older missions can still being loaded
+                if (!mMissionsFinishedLoaded && mFinishedMissionStore.findFinishedMission(storage) != null)
+                    return MissionState.Finished;
             } else {
                 if (pending.isFinished()) {
                     return MissionState.Finished;// this never should happen (race-condition)
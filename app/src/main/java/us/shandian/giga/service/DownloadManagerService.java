@@ -51,6 +51,7 @@ import us.shandian.giga.io.StoredDirectoryHelper;
 import us.shandian.giga.io.StoredFileHelper;
 import us.shandian.giga.postprocessing.Postprocessing;
 import us.shandian.giga.service.DownloadManager.NetworkState;
+import us.shandian.giga.util.BufferPool;
 
 import static org.schabi.newpipe.BuildConfig.APPLICATION_ID;
 import static org.schabi.newpipe.BuildConfig.DEBUG;
@@ -64,6 +65,8 @@ public class DownloadManagerService extends Service {
     public static final int MESSAGE_FINISHED = 2;
     public static final int MESSAGE_ERROR = 3;
     public static final int MESSAGE_DELETED = 4;
+    public static final int MESSAGE_PROGRESS = 5;
+    public static final int MESSAGE_FINISHED_LOADED = 6;
 
     private static final int FOREGROUND_NOTIFICATION_ID = 1000;
     private static final int DOWNLOADS_NOTIFICATION_ID = 1001;
@@ -79,6 +82,7 @@ public class DownloadManagerService extends Service {
     private static final String EXTRA_PARENT_PATH = "DownloadManagerService.extra.storageParentPath";
     private static final String EXTRA_STORAGE_TAG = "DownloadManagerService.extra.storageTag";
     private static final String EXTRA_RECOVERY_INFO = "DownloadManagerService.extra.recoveryInfo";
+    private static final String EXTRA_SEGMENTED = "DownloadManagerService.extra.segmented";
 
     private static final String ACTION_RESET_DOWNLOAD_FINISHED = APPLICATION_ID + ".reset_download_finished";
     private static final String ACTION_OPEN_DOWNLOADS_FINISHED = APPLICATION_ID + ".open_downloads_finished";
@@ -192,6 +196,7 @@ public class DownloadManagerService extends Service {
         handlePreferenceChange(mPrefs, getString(R.string.downloads_cross_network));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_maximum_retry));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_queue_limit));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_speed_limit));
 
         mLock = new LockManager(this);
     }
@@ -257,6 +262,16 @@ public class DownloadManagerService extends Service {
 
         mHandler = null;
         mManager.pauseAllMissions(true);
+        mManager.release();
+        BufferPool.trim();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // the buffers in use are released when the threads exit, only drop the idle ones
+        if (level >= TRIM_MEMORY_RUNNING_LOW) BufferPool.trim();
     }
 
     @Override
@@ -282,6 +297,13 @@ public class DownloadManagerService extends Service {
     private boolean handleMessage(@NonNull Message msg) {
         if (mHandler == null) return true;
 
+        if (msg.what == MESSAGE_PROGRESS || msg.what == MESSAGE_FINISHED_LOADED) {
+            // progress of a running mission or more finished missions, only interesting for the UI
+            for (Callback observer : mEchoObservers)
+                observer.handleMessage(msg);
+            return true;
+        }
+
         DownloadMission mission = (DownloadMission) msg.obj;
 
         switch (msg.what) {
@@ -350,6 +372,15 @@ public class DownloadManagerService extends Service {
             mManager.mPrefMeteredDownloads = prefs.getBoolean(key, false);
         } else if (key.equals(getString(R.string.downloads_queue_limit))) {
             mManager.mPrefQueueLimit = prefs.getBoolean(key, true);
+        } else if (key.equals(getString(R.string.downloads_speed_limit))) {
+            long limit;
+            try {
+                String value = prefs.getString(key, getString(R.string.downloads_speed_limit_default));
+                limit = value == null ? 0 : Long.parseLong(value) * 1024;// stored in KiB/s
+            } catch (Exception e) {
+                limit = 0;
+            }
+            mManager.updateSpeedLimit(limit);
         } else if (key.equals(getString(R.string.download_path_video_key))) {
             mManager.mMainStorageVideo = loadMainVideoStorage();
         } else if (key.equals(getString(R.string.download_path_audio_key))) {
@@ -384,10 +415,13 @@ public class DownloadManagerService extends Service {
      * @param psArgs       the arguments for the post-processing algorithm.
      * @param nearLength   the approximated final length of the file
      * @param recoveryInfo array of MissionRecoveryInfo, in case is required recover the download
+     * @param segmented    {@code true} if the urls are HLS playlists, the segments will be
+     *                     downloaded in parallel and concatenated in the output file
      */
     public static void startMission(Context context, String[] urls, StoredFileHelper storage,
                                     char kind, int threads, String source, String psName,
-                                    String[] psArgs, long nearLength, MissionRecoveryInfo[] recoveryInfo) {
+                                    String[] psArgs, long nearLength, MissionRecoveryInfo[] recoveryInfo,
+                                    boolean segmented) {
         Intent intent = new Intent(context, DownloadManagerService.class);
         intent.setAction(Intent.ACTION_RUN);
         intent.putExtra(EXTRA_URLS, urls);
@@ -398,6 +432,7 @@ public class DownloadManagerService extends Service {
         intent.putExtra(EXTRA_POSTPROCESSING_ARGS, psArgs);
         intent.putExtra(EXTRA_NEAR_LENGTH, nearLength);
         intent.putExtra(EXTRA_RECOVERY_INFO, recoveryInfo);
+        intent.putExtra(EXTRA_SEGMENTED, segmented);
 
         intent.putExtra(EXTRA_PARENT_PATH, storage.getParentUri());
         intent.putExtra(EXTRA_PATH, storage.getUri());
@@ -418,6 +453,7 @@ public class DownloadManagerService extends Service {
         long nearLength = intent.getLongExtra(EXTRA_NEAR_LENGTH, 0);
         String tag = intent.getStringExtra(EXTRA_STORAGE_TAG);
         Parcelable[] parcelRecovery = intent.getParcelableArrayExtra(EXTRA_RECOVERY_INFO);
+        boolean segmented = intent.getBooleanExtra(EXTRA_SEGMENTED, false);
 
         StoredFileHelper storage;
         try {
@@ -441,6 +477,7 @@ public class DownloadManagerService extends Service {
         mission.source = source;
         mission.nearLength = nearLength;
         mission.recoveryInfo = recovery;
+        mission.segmented = segmented;
 
         if (ps != null)
             ps.setTemporalDir(DownloadManager.pickAvailableTemporalDir(this));
@@ -49,9 +49,11 @@ import org.schabi.newpipe.util.ShareUtils;
 
 import java.io.File;
 import java.net.URI;
+import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
 import io.reactivex.rxjava3.core.Observable;
@@ -94,6 +96,14 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
     private static final String UNDEFINED_PROGRESS = "--.-%";
     private static final String DEFAULT_MIME_TYPE = "*/*";
     private static final String UNDEFINED_ETA = "--:--";
+    private static final String UNDEFINED_SPEED = "--.- kB/s";
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
+    /**
+     * Running missions without progress for this long are shown as stalled, they send no
+     * progress messages so the list checks them at this rate
+     */
+    private static final int STALLED_INTERVAL = 3000;
 
     private static final int HASH_NOTIFICATION_ID = 123790;
 
@@ -118,9 +128,11 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
     private final View mView;
     private final ArrayList<Mission> mHidden;
     private Snackbar mSnackbar;
+    private boolean mPaused;
+    private final char mDecimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
 
-    private final Runnable rUpdater = this::updater;
     private final Runnable rDelete = this::deleteFinishedDownloads;
+    private final Runnable rStalledUpdater = this::stalledUpdater;
 
     private final CompositeDisposable compositeDisposable = new CompositeDisposable();
 
@@ -199,6 +211,10 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
 
         ViewHolderItem h = (ViewHolderItem) view;
         h.item = item;
+        h.lengthValue = -1;
+
+        // the holder can be bound again without being recycled
+        mPendingDownloadsItems.remove(h);
 
         Utility.FileType type = Utility.getFileType(item.mission.kind, item.mission.storage.getName());
 
@@ -209,10 +225,11 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
 
         if (h.item.mission instanceof DownloadMission) {
             DownloadMission mission = (DownloadMission) item.mission;
-            String length = Utility.formatBytes(mission.getLength());
-            if (mission.running && !mission.isPsRunning()) length += " --.- kB/s";
+            h.text.setLength(0);
+            h.text.append(getLengthText(h, mission.getLength()));
+            if (mission.running && !mission.isPsRunning()) h.text.append(' ').append(UNDEFINED_SPEED);
 
-            h.size.setText(length);
+            h.size.setText(h.text);
             h.pause.setTitle(mission.unknownLength ? R.string.stop : R.string.pause);
             updateProgress(h);
             mPendingDownloadsItems.add(h);
@@ -224,6 +241,17 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         }
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder view, int pos, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || !(view instanceof ViewHolderItem)) {
+            onBindViewHolder(view, pos);
+            return;
+        }
+
+        // partial bind, only the progress of the mission has changed
+        updateProgress((ViewHolderItem) view);
+    }
+
     @Override
     public int getItemCount() {
         return mIterator.getOldListSize();
@@ -234,7 +262,6 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         return mIterator.getSpecialAtItem(position);
     }
 
-    @SuppressLint("DefaultLocale")
     private void updateProgress(ViewHolderItem h) {
         if (h == null || h.item == null || h.item.mission instanceof FinishedMission) return;
 
@@ -263,18 +290,23 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         } else if (isNotFinite(progress)) {
             h.status.setText(UNDEFINED_PROGRESS);
         } else {
-            h.status.setText(String.format("%.2f%%", progress * 100));
+            h.status.setText(formatPercent(h.text, progress));
             h.progress.setProgress(progress);
         }
 
         @StringRes int state;
-        String sizeStr = Utility.formatBytes(length).concat("  ");
+        StringBuilder sizeStr = h.text;
+        sizeStr.setLength(0);
+        sizeStr.append(getLengthText(h, length)).append("  ");
 
         if (mission.isPsFailed() || mission.errCode == ERROR_POSTPROCESSING_HOLD) {
             h.size.setText(sizeStr);
             return;
         } else if (!mission.running) {
-            state = mission.enqueued ? R.string.queued : R.string.paused;
+            if (mission.waitingForStorage)
+                state = R.string.waiting_for_storage;
+            else
+                state = mission.enqueued ? R.string.queued : R.string.paused;
         } else if (mission.isPsRunning()) {
             state = R.string.post_processing;
         } else if (mission.isRecovering()) {
@@ -285,7 +317,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
 
         if (state != 0) {
             // update state without download speed
-            h.size.setText(sizeStr.concat("(").concat(mContext.getString(state)).concat(")"));
+            h.size.setText(sizeStr.append('(').append(mContext.getString(state)).append(')'));
             h.resetSpeedMeasure();
             return;
         }
@@ -306,7 +338,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             return;
         }
 
-        if (deltaDone > 0 && deltaTime > 0) {
+        if (deltaTime > 0 && (deltaDone > 0 || deltaTime >= STALLED_INTERVAL)) {
             float speed = (float) ((deltaDone * 1000d) / deltaTime);
             float averageSpeed = speed;
 
@@ -320,17 +352,18 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                 averageSpeed /= h.lastSpeed.length + 1.0f;
             }
 
-            String speedStr = Utility.formatSpeed(averageSpeed);
-            String etaStr;
-
-            if (mission.unknownLength) {
-                etaStr = "";
-            } else {
-                long eta = (long) Math.ceil((length - done) / averageSpeed);
-                etaStr = Utility.formatBytes((long) done) + "/" + Utility.stringifySeconds(eta) + "  ";
+            if (!mission.unknownLength) {
+                sizeStr.append(Utility.formatBytes((long) done)).append('/');
+                if (averageSpeed > 0) {
+                    long eta = (long) Math.ceil((length - done) / averageSpeed);
+                    sizeStr.append(Utility.stringifySeconds(eta));
+                } else {
+                    sizeStr.append(UNDEFINED_ETA);
+                }
+                sizeStr.append("  ");
             }
 
-            h.size.setText(sizeStr.concat(etaStr).concat(speedStr));
+            h.size.setText(sizeStr.append(Utility.formatSpeed(averageSpeed)));
 
             h.lastTimestamp = now;
             h.lastDone = done;
@@ -340,6 +373,32 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         }
     }
 
+    /**
+     * Formats the mission length, cached in the holder because rarely changes
+     */
+    private static String getLengthText(ViewHolderItem h, long length) {
+        if (h.lengthValue != length || h.lengthText == null) {
+            h.lengthValue = length;
+            h.lengthText = Utility.formatBytes(length);
+        }
+        return h.lengthText;
+    }
+
+    /**
+     * Formats the progress as a percentage with two decimals, equivalent
+     * to {@code String.format("%.2f%%")} but without creating a formatter
+     */
+    private StringBuilder formatPercent(StringBuilder str, double progress) {
+        long value = Math.round(progress * 10000d);
+        long decimals = value % 100;
+
+        str.setLength(0);
+        str.append(value / 100).append(mDecimalSeparator);
+        if (decimals < 10) str.append('0');
+
+        return str.append(decimals).append('%');
+    }
+
     private void viewWithFileProvider(Mission mission) {
         if (checkInvalidFile(mission)) return;
 
@@ -441,8 +500,28 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         return null;
     }
 
+    /**
+     * Rebinds only the progress of the mission, if visible
+     */
+    private void notifyProgressChanged(Object mission) {
+        ViewHolderItem h = getViewHolder(mission);
+        if (h == null) return;
+
+        int position = h.getAdapterPosition();
+        if (position != RecyclerView.NO_POSITION) notifyItemChanged(position, PAYLOAD_PROGRESS);
+    }
+
     @Override
     public boolean handleMessage(@NonNull Message msg) {
+        if (msg.what == DownloadManagerService.MESSAGE_PROGRESS) {
+            if (!mPaused) notifyProgressChanged(msg.obj);
+            return true;
+        }
+        if (msg.what == DownloadManagerService.MESSAGE_FINISHED_LOADED) {
+            applyChanges();
+            return true;
+        }
+
         if (mStartButton != null && mPauseButton != null) {
             checkMasterButtonsVisibility();
         }
@@ -566,6 +645,28 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                 .show();
     }
 
+    private void showSpeedLimitDialog(@NonNull DownloadMission mission) {
+        // the values are expressed in KiB/s
+        String[] values = mContext.getResources().getStringArray(R.array.downloads_speed_limit_values);
+        int checked = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            if (Long.parseLong(values[i]) * 1024 == mission.speedLimit) {
+                checked = i;
+                break;
+            }
+        }
+
+        new AlertDialog.Builder(mContext)
+                .setTitle(R.string.downloads_speed_limit_mission)
+                .setSingleChoiceItems(R.array.downloads_speed_limit_names, checked, (dialog, which) -> {
+                    mission.setSpeedLimit(Long.parseLong(values[which]) * 1024);
+                    dialog.dismiss();
+                })
+                .setNegativeButton(R.string.cancel, (dialog, which) -> dialog.cancel())
+                .show();
+    }
+
     private void showError(DownloadMission mission, UserAction action, @StringRes int reason) {
         StringBuilder request = new StringBuilder(256);
         request.append(mission.source);
@@ -665,6 +766,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                     mission.setEnqueued(flag);
                     updateProgress(h);
                     return true;
+                case R.id.speed_limit:
+                    showSpeedLimitDialog(mission);
+                    return true;
                 case R.id.retry:
                     if (mission.isPsRunning()) {
                         mission.psContinue(true);
@@ -736,7 +840,8 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
 
     public void applyChanges() {
         mIterator.start();
-        DiffUtil.calculateDiff(mIterator, true).dispatchUpdatesTo(this);
+        // missions never move, only are added or removed (finished missions are new objects)
+        DiffUtil.calculateDiff(mIterator, false).dispatchUpdatesTo(this);
         mIterator.end();
 
         checkEmptyMessageVisibility();
@@ -802,16 +907,39 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
     public void onDestroy() {
         compositeDisposable.dispose();
         mDeleter.dispose();
+        mHandler.removeCallbacks(rStalledUpdater);
     }
 
     public void onResume() {
         mDeleter.resume();
-        mHandler.post(rUpdater);
+        mPaused = false;
+
+        // catch up with the progress notifications ignored while paused
+        for (ViewHolderItem h : mPendingDownloadsItems) {
+            if (((DownloadMission) h.item.mission).running) updateProgress(h);
+        }
+        mHandler.removeCallbacks(rStalledUpdater);
+        mHandler.postDelayed(rStalledUpdater, STALLED_INTERVAL);
     }
 
     public void onPaused() {
         mDeleter.pause();
-        mHandler.removeCallbacks(rUpdater);
+        mPaused = true;
+        mHandler.removeCallbacks(rStalledUpdater);
+    }
+
+    /**
+     * Refreshes the running missions without recent progress, so their speed and ETA do not
+     * stay frozen at the last values
+     */
+    private void stalledUpdater() {
+        long now = System.currentTimeMillis();
+        for (ViewHolderItem h : mPendingDownloadsItems) {
+            if (!((DownloadMission) h.item.mission).running) continue;
+            if (now - h.lastTimestamp >= STALLED_INTERVAL) updateProgress(h);
+        }
+
+        mHandler.postDelayed(rStalledUpdater, STALLED_INTERVAL);
     }
 
 
@@ -829,17 +957,6 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         mDownloadManager.resumeMission(mission);
     }
 
-    private void updater() {
-        for (ViewHolderItem h : mPendingDownloadsItems) {
-            // check if the mission is running first
-            if (!((DownloadMission) h.item.mission).running) continue;
-
-            updateProgress(h);
-        }
-
-        mHandler.postDelayed(rUpdater, 1000);
-    }
-
     private boolean isNotFinite(double value) {
         return Double.isNaN(value) || Double.isInfinite(value);
     }
@@ -865,6 +982,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         MenuItem pause;
         MenuItem open;
         MenuItem queue;
+        MenuItem speedLimit;
         MenuItem showError;
         MenuItem delete;
         MenuItem source;
@@ -876,6 +994,11 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         float[] lastSpeed = new float[3];
         String estimatedTimeArrival = UNDEFINED_ETA;
 
+        // reused on every progress update
+        final StringBuilder text = new StringBuilder(64);
+        String lengthText;
+        long lengthValue = -1;
+
         ViewHolderItem(View view) {
             super(view);
 
@@ -900,6 +1023,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             pause = menu.findItem(R.id.pause);
             open = menu.findItem(R.id.menu_item_share);
             queue = menu.findItem(R.id.queue);
+            speedLimit = menu.findItem(R.id.speed_limit);
             showError = menu.findItem(R.id.error_message_view);
             delete = menu.findItem(R.id.delete);
             source = menu.findItem(R.id.source);
@@ -926,6 +1050,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             pause.setVisible(false);
             open.setVisible(false);
             queue.setVisible(false);
+            speedLimit.setVisible(false);
             showError.setVisible(false);
             delete.setVisible(false);
             source.setVisible(false);
@@ -948,6 +1073,8 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                             break;
                     }
                 } else {
+                    speedLimit.setVisible(true);
+
                     if (mission.running) {
                         pause.setVisible(true);
                     } else {
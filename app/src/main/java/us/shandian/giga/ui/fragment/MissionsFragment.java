@@ -41,6 +41,7 @@ import us.shandian.giga.service.DownloadManager;
 import us.shandian.giga.service.DownloadManagerService;
 import us.shandian.giga.service.DownloadManagerService.DownloadManagerBinder;
 import us.shandian.giga.ui.adapter.MissionAdapter;
+import us.shandian.giga.util.Utility;
 
 public class MissionsFragment extends Fragment {
 
@@ -200,6 +201,9 @@ public class MissionsFragment extends Fragment {
             case R.id.start_downloads:
                 mBinder.getDownloadManager().startAllMissions();
                 return true;
+            case R.id.download_metrics:
+                showMetricsDialog();
+                return true;
             case R.id.pause_downloads:
                 mBinder.getDownloadManager().pauseAllMissions(false);
                 mAdapter.refreshMissionItems();// update items view
@@ -208,6 +212,25 @@ public class MissionsFragment extends Fragment {
         }
     }
 
+    private void showMetricsDialog() {
+        if (mBinder == null) return;
+
+        DownloadManager manager = mBinder.getDownloadManager();
+        String summary = manager.getMetricsSummary();
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(mContext);
+        builder.setTitle(R.string.download_metrics_title);
+        builder.setMessage(summary.isEmpty() ? getString(R.string.download_metrics_empty) : summary);
+        builder.setNegativeButton(R.string.close, null);
+
+        if (!summary.isEmpty()) {
+            builder.setPositiveButton(R.string.download_metrics_export,
+                    (dialog, which) -> Utility.copyToClipboard(mContext, manager.exportMetrics()));
+        }
+
+        builder.create().show();
+    }
+
     private void updateList() {
         if (mLinear) {
             mList.setLayoutManager(mLinearManager);
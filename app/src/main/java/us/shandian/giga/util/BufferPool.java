@@ -0,0 +1,94 @@
+package us.shandian.giga.util;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of the transfer buffers used by the download threads and the post-processing, avoids
+ * allocating a new buffer per block. The amount of idle buffers retained is bounded by the
+ * heap size, the buffers in use are only accounted (never blocks the caller).
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 64 * 1024;// 64 KiB
+
+    // retain up to 1/64 of the heap, 16 buffers (1 MiB) in a 64 MiB heap
+    private static final int MAXIMUM_IDLE_BUFFERS = (int) Math.max(4, Math.min(
+            Runtime.getRuntime().maxMemory() / 64 / BUFFER_SIZE, 64
+    ));
+
+    private static final ArrayDeque<byte[]> idle = new ArrayDeque<>(MAXIMUM_IDLE_BUFFERS);
+    private static int inUse = 0;
+    private static int peakInUse = 0;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a buffer from the pool, a new one is allocated if the pool is empty
+     *
+     * @return a buffer of {@link #BUFFER_SIZE} bytes
+     */
+    @NonNull
+    public static byte[] acquire() {
+        byte[] buffer;
+
+        synchronized (idle) {
+            buffer = idle.poll();
+            inUse++;
+            if (inUse > peakInUse) peakInUse = inUse;
+        }
+
+        return buffer == null ? new byte[BUFFER_SIZE] : buffer;
+    }
+
+    /**
+     * Returns a buffer taken with {@link #acquire()}, the buffer must not be used after this call
+     *
+     * @param buffer the buffer, can be {@code null}
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) return;
+
+        synchronized (idle) {
+            inUse--;
+            if (idle.size() < MAXIMUM_IDLE_BUFFERS) idle.push(buffer);
+        }
+    }
+
+    /**
+     * Drops the idle buffers, called when the system is running low on memory
+     */
+    public static void trim() {
+        synchronized (idle) {
+            idle.clear();
+        }
+    }
+
+    /**
+     * @return the memory used by the buffers taken from the pool, in bytes
+     */
+    public static long getInFlightBytes() {
+        synchronized (idle) {
+            return (long) inUse * BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * @return the maximum memory used at same time by the buffers taken from the pool, in bytes
+     */
+    public static long getPeakInFlightBytes() {
+        synchronized (idle) {
+            return (long) peakInUse * BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * @return the memory retained by the idle buffers, in bytes
+     */
+    public static long getIdleBytes() {
+        synchronized (idle) {
+            return (long) idle.size() * BUFFER_SIZE;
+        }
+    }
+}
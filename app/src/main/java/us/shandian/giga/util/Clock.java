@@ -0,0 +1,16 @@
+package us.shandian.giga.util;
+
+import android.os.SystemClock;
+
+/**
+ * Milliseconds elapsed since an arbitrary point, used by the classes measuring the download
+ * speed. The tests run them with a clock of the JVM, see {@link #SYSTEM} for the real one.
+ */
+public interface Clock {
+    /**
+     * The clock of the device, {@link SystemClock#elapsedRealtime()}
+     */
+    Clock SYSTEM = SystemClock::elapsedRealtime;
+
+    long elapsedRealtime();
+}
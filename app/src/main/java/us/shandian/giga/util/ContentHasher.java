@@ -0,0 +1,117 @@
+package us.shandian.giga.util;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes the content of the downloaded files. The file is split in chunks hashed in parallel
+ * using positional reads, the result is the SHA-256 of the file length and the chunk hashes
+ * (this is not the SHA-256 of the whole file).
+ */
+public class ContentHasher {
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;// 4 MiB
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        POOL = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "ContentHasher");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        });
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    private ContentHasher() {
+    }
+
+    /**
+     * Hashes the whole content of the channel, the position of the channel is not changed
+     *
+     * @param channel the file, positional reads must be supported
+     * @return the hash, in hexadecimal
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    @NonNull
+    public static String hash(@NonNull FileChannel channel) throws IOException, InterruptedException {
+        long length = channel.size();
+        List<Future<byte[]>> chunks = new ArrayList<>((int) (length / CHUNK_SIZE) + 1);
+
+        try {
+            for (long position = 0; position < length; position += CHUNK_SIZE) {
+                long start = position;
+                long end = Math.min(position + CHUNK_SIZE, length);
+
+                chunks.add(POOL.submit(() -> hashChunk(channel, start, end)));
+            }
+
+            MessageDigest digest = getDigest();
+            digest.update(ByteBuffer.allocate(8).putLong(length).array());
+
+            for (Future<byte[]> chunk : chunks) digest.update(chunk.get());
+
+            return toHex(digest.digest());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<byte[]> chunk : chunks) chunk.cancel(false);
+        }
+    }
+
+    private static byte[] hashChunk(FileChannel channel, long start, long end) throws IOException {
+        MessageDigest digest = getDigest();
+        byte[] buffer = BufferPool.acquire();
+
+        try {
+            ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+
+            while (start < end) {
+                wrapper.clear().limit((int) Math.min(buffer.length, end - start));
+
+                int read = channel.read(wrapper, start);
+                if (read < 0) throw new IOException("unexpected end of file");
+
+                digest.update(buffer, 0, read);
+                start += read;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        return digest.digest();
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);// SHA-256 is always available
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder str = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            str.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+        return str.toString();
+    }
+}
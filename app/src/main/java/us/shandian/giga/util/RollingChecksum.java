@@ -0,0 +1,47 @@
+package us.shandian.giga.util;
+
+/**
+ * Adler-32 checksum whose state fits in a single {@code int}, this allows resuming the
+ * calculation of a partially downloaded block after the state was saved to disk.
+ * {@link java.util.zip.Adler32} can not be used because the state can not be restored.
+ */
+public class RollingChecksum {
+    public static final int INITIAL = 1;
+
+    private static final int MOD_ADLER = 65521;
+
+    // largest n such that 255n(n+1)/2 + (n+1)(MOD_ADLER-1) <= 2^32-1 (avoids overflow)
+    private static final int NMAX = 5552;
+
+    private RollingChecksum() {
+    }
+
+    /**
+     * Updates the checksum with the specified array of bytes
+     *
+     * @param checksum the previous value, use {@link #INITIAL} for the first call
+     * @param buffer   the data
+     * @param offset   the start offset of the data
+     * @param length   the number of bytes to use for the update
+     * @return the updated checksum
+     */
+    public static int update(int checksum, byte[] buffer, int offset, int length) {
+        long a = checksum & 0xFFFF;
+        long b = (checksum >>> 16) & 0xFFFF;
+
+        while (length > 0) {
+            int count = Math.min(length, NMAX);
+            length -= count;
+
+            while (count-- > 0) {
+                a += buffer[offset++] & 0xFF;
+                b += a;
+            }
+
+            a %= MOD_ADLER;
+            b %= MOD_ADLER;
+        }
+
+        return (int) ((b << 16) | a);
+    }
+}
@@ -0,0 +1,95 @@
+package us.shandian.giga.util;
+
+/**
+ * Token-bucket bandwidth limiter shared by download threads. Every thread pays the bytes
+ * read from the network, if the bucket runs dry the thread waits until enough tokens are
+ * refilled. The rate can be changed at any moment, waiting threads are woken up.
+ */
+public class SpeedLimiter {
+    private static final int MINIMUM_CHUNK = 4 * 1024;// 4 KiB
+
+    /**
+     * Allowed bytes per second, a value less than 1 means unlimited
+     */
+    private volatile long rate;
+
+    private final Clock clock;
+    private long tokens;
+    private long lastRefill;
+
+    public SpeedLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, Clock.SYSTEM);
+    }
+
+    public SpeedLimiter(long bytesPerSecond, Clock clock) {
+        this.clock = clock;
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the allowed bandwidth
+     *
+     * @param bytesPerSecond maximum bytes per second, use 0 to disable the limiter
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        rate = Math.max(bytesPerSecond, 0);
+        tokens = 0;
+        lastRefill = clock.elapsedRealtime();
+        notifyAll();
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isLimited() {
+        return rate > 0;
+    }
+
+    /**
+     * Suggests the amount of bytes to read at once, reading big chunks against a low rate
+     * produces bursts instead of a steady throughput.
+     *
+     * @param bufferSize the size of the read buffer
+     * @return the amount of bytes to read
+     */
+    public int getChunkSize(int bufferSize) {
+        long current = rate;
+        if (current < 1) return bufferSize;
+
+        // allow around of 8 reads per second
+        return (int) Math.min(bufferSize, Math.max(MINIMUM_CHUNK, current / 8));
+    }
+
+    /**
+     * Pays the specified amount of bytes, blocks the calling thread if the bucket is empty
+     *
+     * @param amount bytes read from the network
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public synchronized void consume(int amount) throws InterruptedException {
+        if (rate < 1) return;
+
+        refill();
+        tokens -= amount;
+
+        while (rate > 0 && tokens < 0) {
+            long wait = (-tokens * 1000L) / rate;
+            wait(Math.max(wait, 1));
+
+            if (rate < 1) break;// limiter disabled while waiting
+            refill();
+        }
+    }
+
+    private void refill() {
+        long now = clock.elapsedRealtime();
+        long elapsed = now - lastRefill;
+        if (elapsed < 1) return;
+
+        lastRefill = now;
+
+        // cap the bucket to one second of traffic, avoids bursts after idle periods
+        tokens = Math.min(tokens + (elapsed * rate) / 1000L, rate);
+    }
+}
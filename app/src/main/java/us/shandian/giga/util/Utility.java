@@ -17,6 +17,7 @@ import org.schabi.newpipe.R;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -66,6 +67,26 @@ public class Utility {
         }
     }
 
+    /**
+     * Serializes an object in memory
+     *
+     * @param serializable the object
+     * @return the serialized object or {@code null} if failed
+     */
+    @Nullable
+    public static byte[] serialize(@NonNull Serializable serializable) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(buffer)) {
+            objectOutputStream.writeObject(serializable);
+        } catch (Exception e) {
+            Log.e("Utility", "Failed to serialize the object", e);
+            return null;
+        }
+
+        return buffer.toByteArray();
+    }
+
     public static void writeToFile(@NonNull File file, @NonNull Serializable serializable) {
 
         try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
@@ -0,0 +1,122 @@
+package org.schabi.newpipe.player.playback;
+
+import com.google.android.exoplayer2.Player;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.schabi.newpipe.player.playback.LookAheadWindow.MAXIMUM_SIZE;
+import static org.schabi.newpipe.player.playback.LookAheadWindow.MINIMUM_SIZE;
+
+public class LookAheadWindowTest {
+    private static final int REPEAT_OFF = Player.REPEAT_MODE_OFF;
+    private static final long SKIP = 1_000;
+    private static final long WATCH = 60_000;
+
+    private long now = 0;
+
+    private LookAheadWindow window() {
+        return new LookAheadWindow(now);
+    }
+
+    /**
+     * Changes the current stream of the window after some time.
+     *
+     * @param window  the window
+     * @param elapsed how long the previous stream was played, in milliseconds
+     * @param count   how many times the stream is changed
+     */
+    private void changeIndex(final LookAheadWindow window, final long elapsed, final int count) {
+        for (int i = 0; i < count; i++) {
+            now += elapsed;
+            window.onIndexChanged(now);
+        }
+    }
+
+    @Test
+    public void startsWithTheMinimumSize() {
+        final LookAheadWindow window = window();
+
+        assertEquals(0, window.getSkipRate(), 0);
+        assertEquals(MINIMUM_SIZE, window.getAheadSize(false, false, REPEAT_OFF));
+        assertEquals(MINIMUM_SIZE, window.getAheadSize(true, false, REPEAT_OFF));
+    }
+
+    @Test
+    public void repeatOneKeepsTheMinimumSize() {
+        final LookAheadWindow window = window();
+        changeIndex(window, SKIP, 8);
+        window.onExtractionFinished(10_000);
+
+        assertEquals(MINIMUM_SIZE, window.getAheadSize(false, true, Player.REPEAT_MODE_ONE));
+    }
+
+    @Test
+    public void skipRateUsesTheLastChangesOnly() {
+        final LookAheadWindow window = window();
+
+        changeIndex(window, WATCH, 8);
+        assertEquals(0, window.getSkipRate(), 0);
+
+        // the ring buffer holds 8 changes, half of them are now skips
+        changeIndex(window, SKIP, 4);
+        assertEquals(0.5f, window.getSkipRate(), 0);
+
+        changeIndex(window, SKIP, 8);
+        assertEquals(1, window.getSkipRate(), 0);
+
+        changeIndex(window, WATCH, 6);
+        assertEquals(0.25f, window.getSkipRate(), 0);
+    }
+
+    @Test
+    public void skippingGrowsTheWindowLessWhenMetered() {
+        final LookAheadWindow window = window();
+
+        changeIndex(window, SKIP, 4);
+        assertEquals(MINIMUM_SIZE + 3, window.getAheadSize(false, false, REPEAT_OFF));
+        assertEquals(MINIMUM_SIZE + 1, window.getAheadSize(true, false, REPEAT_OFF));
+
+        // two skips out of the last eight changes
+        changeIndex(window, WATCH, 6);
+        changeIndex(window, SKIP, 2);
+        assertEquals(0.25f, window.getSkipRate(), 0);
+        assertEquals(MINIMUM_SIZE + 1, window.getAheadSize(false, false, REPEAT_OFF));
+        assertEquals(MINIMUM_SIZE, window.getAheadSize(true, false, REPEAT_OFF));
+    }
+
+    @Test
+    public void slowExtractionGrowsTheWindow() {
+        final LookAheadWindow window = window();
+
+        // served from the cache, ignored
+        window.onExtractionFinished(10);
+        assertEquals(MINIMUM_SIZE, window.getAheadSize(true, false, REPEAT_OFF));
+
+        window.onExtractionFinished(3_000);
+        assertEquals(MINIMUM_SIZE + 1, window.getAheadSize(true, false, REPEAT_OFF));
+
+        // moving average: (3000 * 3 + 15000) / 4 = 6000
+        window.onExtractionFinished(15_000);
+        assertEquals(MINIMUM_SIZE + 2, window.getAheadSize(true, false, REPEAT_OFF));
+    }
+
+    @Test
+    public void shuffleGrowsTheWindowOnlyWhenNotMetered() {
+        final LookAheadWindow window = window();
+
+        assertEquals(MINIMUM_SIZE + 1, window.getAheadSize(false, true, REPEAT_OFF));
+        assertEquals(MINIMUM_SIZE, window.getAheadSize(true, true, REPEAT_OFF));
+    }
+
+    @Test
+    public void sizeIsCappedToTheMaximum() {
+        final LookAheadWindow window = window();
+        changeIndex(window, SKIP, 8);
+        window.onExtractionFinished(10_000);
+
+        // 1 + 3 (skips) + 2 (very slow extraction) + 1 (shuffled) would be 7
+        assertEquals(MAXIMUM_SIZE, window.getAheadSize(false, true, REPEAT_OFF));
+        assertEquals(MINIMUM_SIZE + 1 + 2, window.getAheadSize(true, true, REPEAT_OFF));
+    }
+}
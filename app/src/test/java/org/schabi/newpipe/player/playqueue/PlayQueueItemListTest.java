@@ -0,0 +1,286 @@
+package org.schabi.newpipe.player.playqueue;
+
+import org.junit.Test;
+import org.schabi.newpipe.extractor.stream.StreamInfoItem;
+import org.schabi.newpipe.extractor.stream.StreamType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class PlayQueueItemListTest {
+    private static final Logger LOGGER = Logger.getLogger(PlayQueueItemListTest.class.getName());
+    private static final int BENCHMARK_SIZE = 20000;
+
+    private static PlayQueueItem item(final String url) {
+        return new PlayQueueItem(new StreamInfoItem(0, url, url, StreamType.VIDEO_STREAM));
+    }
+
+    private static List<PlayQueueItem> items(final int count) {
+        final List<PlayQueueItem> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(item("https://example.com/" + i));
+        }
+        return items;
+    }
+
+    /**
+     * Checks every index against a linear search, which is what the index replaces.
+     *
+     * @param list the list to check
+     */
+    private static void assertIndexed(final PlayQueueItemList list) {
+        final List<PlayQueueItem> items = list.asList();
+        for (final PlayQueueItem item : items) {
+            assertEquals(items.indexOf(item), list.indexOf(item));
+        }
+    }
+
+    @Test
+    public void indexOfFindsTheFirstEqualItem() {
+        final PlayQueueItemList list = new PlayQueueItemList(Arrays.asList(
+                item("a"), item("b"), item("a"), item("c")));
+
+        assertEquals(0, list.indexOf(item("a")));
+        assertEquals(1, list.indexOf(item("b")));
+        assertEquals(3, list.indexOf(item("c")));
+        assertEquals(-1, list.indexOf(item("d")));
+    }
+
+    @Test
+    public void indexIsUpdatedOnRemove() {
+        final PlayQueueItemList list = new PlayQueueItemList(Arrays.asList(
+                item("a"), item("b"), item("a"), item("c")));
+
+        list.remove(0);
+        assertEquals(1, list.indexOf(item("a")));
+        assertEquals(0, list.indexOf(item("b")));
+        assertEquals(2, list.indexOf(item("c")));
+
+        list.remove(1);
+        assertEquals(-1, list.indexOf(item("a")));
+        assertIndexed(list);
+    }
+
+    @Test
+    public void indexIsUpdatedOnMove() {
+        final PlayQueueItemList list = new PlayQueueItemList(items(10));
+
+        list.move(2, 7);
+        assertIndexed(list);
+        list.move(9, 0);
+        assertIndexed(list);
+        list.move(4, 4);
+        assertIndexed(list);
+        assertEquals("https://example.com/9", list.get(0).getUrl());
+    }
+
+    @Test
+    public void indexIsUpdatedOnRandomOperations() {
+        final Random random = new Random(42);
+        final PlayQueueItemList list = new PlayQueueItemList(items(50));
+
+        for (int i = 0; i < 500; i++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    list.remove(random.nextInt(list.size()));
+                    break;
+                case 1:
+                    list.move(random.nextInt(list.size()), random.nextInt(list.size()));
+                    break;
+                case 2:
+                    // duplicates of items already in the list
+                    list.addAll(Collections.singletonList(
+                            item("https://example.com/" + random.nextInt(60))));
+                    break;
+                case 3:
+                    list.shuffle(random.nextInt(list.size()));
+                    break;
+                default:
+                    list.unshuffle();
+                    break;
+            }
+            assertIndexed(list);
+        }
+    }
+
+    @Test
+    public void unshuffleRestoresTheOrder() {
+        final List<PlayQueueItem> items = items(100);
+        final PlayQueueItemList list = new PlayQueueItemList(items);
+
+        list.shuffle(42);
+        assertTrue(list.isShuffled());
+        assertEquals(items.get(42), list.get(0));
+        assertIndexed(list);
+
+        list.shuffle(0);
+        list.unshuffle();
+        assertFalse(list.isShuffled());
+        assertEquals(items, list.asList());
+    }
+
+    @Test
+    public void unshuffleKeepsChangesMadeWhileShuffled() {
+        final List<PlayQueueItem> items = items(20);
+        final PlayQueueItemList list = new PlayQueueItemList(items);
+
+        list.shuffle(0);
+        list.remove(list.indexOf(items.get(5)));
+        list.move(3, 10);
+        final List<PlayQueueItem> appended = items(25).subList(20, 25);
+        list.addAll(appended);
+        list.unshuffle();
+
+        final List<PlayQueueItem> expected = new ArrayList<>(items);
+        expected.remove(5);
+        expected.addAll(appended);
+        assertEquals(expected, list.asList());
+        assertIndexed(list);
+    }
+
+    @Test
+    public void copiesDoNotSeeTheChangesOfEachOther() {
+        final List<PlayQueueItem> items = items(10);
+        final PlayQueueItemList list = new PlayQueueItemList(items);
+        final PlayQueueItemList copy = list.copy();
+        final PlayQueueItemList secondCopy = copy.copy();
+
+        copy.remove(0);
+        list.move(0, 9);
+        secondCopy.shuffle(3);
+
+        assertEquals(items.subList(1, 10), copy.asList());
+        assertEquals(items.get(0), list.get(9));
+        assertEquals(items.get(3), secondCopy.get(0));
+        assertIndexed(list);
+        assertIndexed(copy);
+        assertIndexed(secondCopy);
+
+        secondCopy.unshuffle();
+        assertEquals(items, secondCopy.asList());
+    }
+
+    @Test
+    public void copiesHaveTheirOwnItems() {
+        final List<PlayQueueItem> items = items(3);
+        items.get(1).setRecoveryPosition(1000);
+        final PlayQueueItemList list = new PlayQueueItemList(items);
+        final PlayQueueItemList copy = list.copy();
+
+        assertEquals(1000, copy.get(1).getRecoveryPosition());
+        copy.get(1).setRecoveryPosition(2000);
+        copy.get(2).setAutoQueued(true);
+
+        assertEquals(1000, list.get(1).getRecoveryPosition());
+        assertFalse(list.get(2).isAutoQueued());
+    }
+
+    @Test
+    public void staleIndexIsRebuiltWithoutChangingTheCopies() {
+        final List<PlayQueueItem> items = items(10);
+        final PlayQueueItemList list = new PlayQueueItemList(items);
+
+        list.shuffle(5);
+        final PlayQueueItemList copy = list.copy();
+        // changed while its index is stale, then both rebuild their index
+        copy.move(0, 9);
+        assertEquals(0, list.indexOf(items.get(5)));
+        assertEquals(9, copy.indexOf(items.get(5)));
+        assertIndexed(list);
+        assertIndexed(copy);
+
+        list.unshuffle();
+        assertEquals(5, list.indexOf(items.get(5)));
+        assertIndexed(copy);
+    }
+
+    @Test
+    public void indexIsRebuiltAfterDeserialization() throws Exception {
+        final PlayQueueItemList list = new PlayQueueItemList(items(10));
+        list.move(0, 9);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(list);
+        }
+        final PlayQueueItemList deserialized;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            deserialized = (PlayQueueItemList) in.readObject();
+        }
+
+        assertEquals(list.asList(), deserialized.asList());
+        assertIndexed(deserialized);
+        deserialized.remove(0);
+        assertIndexed(deserialized);
+    }
+
+    /**
+     * Compares the indexed queue with a linear search on a large queue, as it happens when
+     * a long playlist is imported. Slow, only runs if the {@code PLAY_QUEUE_BENCHMARK}
+     * environment variable is set, example:
+     * {@code PLAY_QUEUE_BENCHMARK=1 ./gradlew testDebugUnitTest --tests *PlayQueueItemListTest}
+     */
+    @Test
+    public void benchmarkLargeQueue() {
+        assumeTrue(System.getenv("PLAY_QUEUE_BENCHMARK") != null);
+
+        final List<PlayQueueItem> items = items(BENCHMARK_SIZE);
+        final ArrayList<PlayQueueItem> plain = new ArrayList<>(items);
+        final PlayQueueItemList list = new PlayQueueItemList(items);
+
+        long start = System.nanoTime();
+        for (final PlayQueueItem item : items) {
+            plain.indexOf(item);
+        }
+        final long linearLookups = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (final PlayQueueItem item : items) {
+            list.indexOf(item);
+        }
+        final long indexedLookups = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final ArrayList<PlayQueueItem> backup = new ArrayList<>(plain);
+        Collections.shuffle(plain);
+        plain.add(0, plain.remove(plain.indexOf(items.get(BENCHMARK_SIZE / 2))));
+        plain.clear();
+        plain.addAll(backup);
+        final long copyShuffle = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        list.shuffle(BENCHMARK_SIZE / 2);
+        list.unshuffle();
+        final long rankShuffle = System.nanoTime() - start;
+
+        // removing from the end, as when the user clears the end of the queue
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            list.remove(list.size() - 1);
+            list.indexOf(items.get(i));
+        }
+        final long indexedRemoves = System.nanoTime() - start;
+
+        LOGGER.info(String.format(Locale.ENGLISH,
+                "%d items: lookups %.2f ms linear, %.2f ms indexed; shuffle and unshuffle "
+                        + "%.2f ms with a copy, %.2f ms with ranks; 100 removes %.2f ms",
+                BENCHMARK_SIZE, linearLookups / 1e6, indexedLookups / 1e6, copyShuffle / 1e6,
+                rankShuffle / 1e6, indexedRemoves / 1e6));
+        assertEquals(list.asList(), items.subList(0, BENCHMARK_SIZE - 100));
+    }
+}
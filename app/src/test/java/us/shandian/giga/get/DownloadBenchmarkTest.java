@@ -0,0 +1,73 @@
+package us.shandian.giga.get;
+
+import android.app.Application;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import us.shandian.giga.service.DownloadManagerService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the throughput of the downloader against {@link LocalDownloadServer} with several
+ * thread counts, useful to compare block size and retry changes without a network. Slow, only
+ * runs if the {@code DOWNLOADER_BENCHMARK} environment variable is set, example:
+ * {@code DOWNLOADER_BENCHMARK=1 ./gradlew testDebugUnitTest --tests *DownloadBenchmarkTest}
+ */
+@RunWith(RobolectricTestRunner.class)
+// a plain application, the downloader does not need the one of NewPipe
+@Config(sdk = 28, application = Application.class)
+public class DownloadBenchmarkTest {
+    private static final Logger LOGGER = Logger.getLogger(DownloadBenchmarkTest.class.getName());
+    private static final int LENGTH = 32 * 1024 * 1024; // 32 MiB
+    private static final long BYTES_PER_SECOND = 4 * 1024 * 1024; // 4 MiB/s per connection
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+    private static final long TIMEOUT = 120000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void benchmarkThreadCount() throws Exception {
+        assumeTrue(System.getenv("DOWNLOADER_BENCHMARK") != null);
+
+        for (final int threads : THREAD_COUNTS) {
+            run(threads, false);
+            run(threads, true);
+        }
+    }
+
+    private void run(final int threads, final boolean unstable) throws Exception {
+        try (LocalDownloadServer server =
+                     new LocalDownloadServer(LENGTH).setBytesPerSecond(BYTES_PER_SECOND)) {
+            // unstable network, drop a few connections (each thread gives up after 3 retries)
+            if (unstable) {
+                server.dropRequest(10).dropRequest(20);
+            }
+
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), threads);
+
+            final long start = System.nanoTime();
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertArrayEquals(server.getContent(), harness.readFile());
+
+            LOGGER.info(String.format(Locale.ENGLISH,
+                    "threads=%d unstable=%b: %.2f MiB/s, %d requests, %d retries",
+                    threads, unstable, LENGTH / seconds / (1024 * 1024),
+                    server.getRequestCount(), harness.mission.getMetrics().getRetries()));
+        }
+    }
+}
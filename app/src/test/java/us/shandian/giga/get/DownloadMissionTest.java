@@ -0,0 +1,140 @@
+package us.shandian.giga.get;
+
+import android.app.Application;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import us.shandian.giga.service.DownloadManagerService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads against {@link LocalDownloadServer}, checks the downloaded bytes and how the
+ * mission reacts to the server behavior.
+ */
+@RunWith(RobolectricTestRunner.class)
+// a plain application, the downloader does not need the one of NewPipe
+@Config(sdk = 28, application = Application.class)
+public class DownloadMissionTest {
+    private static final int LENGTH = 3 * DownloadMission.BLOCK_SIZE + 12345;
+    private static final long TIMEOUT = 30000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMultipleThreads() throws Exception {
+        try (LocalDownloadServer server = new LocalDownloadServer(LENGTH)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 3);
+
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            assertArrayEquals(server.getContent(), harness.readFile());
+            assertEquals(LENGTH, harness.mission.done);
+            assertTrue(harness.mission.isFinished());
+
+            // the first block is read from the probe request
+            assertEquals(4, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testSingleThread() throws Exception {
+        try (LocalDownloadServer server = new LocalDownloadServer(LENGTH)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 1);
+
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            assertArrayEquals(server.getContent(), harness.readFile());
+        }
+    }
+
+    @Test
+    public void testRangeNotSupported() throws Exception {
+        try (LocalDownloadServer server =
+                     new LocalDownloadServer(LENGTH).setRangeSupported(false)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 3);
+
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            assertArrayEquals(server.getContent(), harness.readFile());
+            assertEquals(0, harness.mission.blocks.length);
+        }
+    }
+
+    @Test
+    public void testDroppedConnections() throws Exception {
+        try (LocalDownloadServer server =
+                     new LocalDownloadServer(LENGTH).dropRequest(2).dropRequest(3)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 2);
+
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            assertArrayEquals(server.getContent(), harness.readFile());
+            assertEquals(LENGTH, harness.mission.done);
+            assertEquals(2, harness.mission.getMetrics().getRetries());
+        }
+    }
+
+    @Test
+    public void testExpiredUrl() throws Exception {
+        try (LocalDownloadServer server = new LocalDownloadServer(LENGTH).setExpireAfter(2)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 2);
+
+            // without recovery info the url can not be refreshed
+            assertEquals(DownloadManagerService.MESSAGE_ERROR, harness.run(TIMEOUT));
+            assertEquals(DownloadMission.ERROR_HTTP_FORBIDDEN, harness.mission.errCode);
+            assertFalse(harness.mission.running);
+        }
+    }
+
+    @Test
+    public void testThrottledServer() throws Exception {
+        final long rate = DownloadMission.BLOCK_SIZE; // per connection
+
+        try (LocalDownloadServer server = new LocalDownloadServer(LENGTH).setBytesPerSecond(rate)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 4);
+
+            final long start = System.nanoTime();
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertArrayEquals(server.getContent(), harness.readFile());
+
+            // the connections run in parallel, faster than a single throttled connection
+            assertTrue("took " + seconds + "s", seconds < (double) LENGTH / rate);
+        }
+    }
+
+    @Test
+    public void testSpeedLimit() throws Exception {
+        final long rate = LENGTH / 2; // for the whole mission
+
+        try (LocalDownloadServer server = new LocalDownloadServer(LENGTH)) {
+            final MissionHarness harness =
+                    new MissionHarness(server.getUrl(), folder.newFile(), 3);
+            harness.mission.speedLimit = rate;
+
+            final long start = System.nanoTime();
+            assertEquals(DownloadManagerService.MESSAGE_FINISHED, harness.run(TIMEOUT));
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertArrayEquals(server.getContent(), harness.readFile());
+
+            // the bucket starts empty, every byte is paid at the limited rate
+            assertTrue("took " + seconds + "s", seconds >= 1.5);
+            final double measured = harness.mission.getMetrics().getBytesPerSecond();
+            assertTrue("measured " + measured + " B/s", measured > 0 && measured < rate * 1.5);
+        }
+    }
+}
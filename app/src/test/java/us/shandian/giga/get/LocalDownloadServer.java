@@ -0,0 +1,159 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+/**
+ * In-process HTTP server used by the downloader tests, serves a single random resource and
+ * can simulate the behavior of the streaming servers: range requests, per-connection
+ * bandwidth, expired urls (HTTP 403) and connections dropped in the middle of the body.
+ */
+class LocalDownloadServer extends Dispatcher implements AutoCloseable {
+    private final MockWebServer server = new MockWebServer();
+    private final byte[] content;
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final Set<Integer> dropped = new HashSet<>();
+
+    private volatile boolean rangeSupported = true;
+    private volatile long bytesPerSecond = 0;
+    private volatile int expireAfter = -1;
+
+    LocalDownloadServer(final int length) throws IOException {
+        content = new byte[length];
+        new Random(length).nextBytes(content);
+
+        server.setDispatcher(this);
+        server.start();
+    }
+
+    /**
+     * @param supported {@code false} to ignore the Range header and reply the whole resource
+     * @return this server
+     */
+    LocalDownloadServer setRangeSupported(final boolean supported) {
+        rangeSupported = supported;
+        return this;
+    }
+
+    /**
+     * @param rate the bandwidth of each connection, in bytes per second. Use 0 for no limit
+     * @return this server
+     */
+    LocalDownloadServer setBytesPerSecond(final long rate) {
+        bytesPerSecond = rate;
+        return this;
+    }
+
+    /**
+     * @param count amount of requests served before the url expires (HTTP 403)
+     * @return this server
+     */
+    LocalDownloadServer setExpireAfter(final int count) {
+        expireAfter = count;
+        return this;
+    }
+
+    /**
+     * Drops the connection in the middle of the response body.
+     *
+     * @param request the number of the request, starting from 1
+     * @return this server
+     */
+    LocalDownloadServer dropRequest(final int request) {
+        synchronized (dropped) {
+            dropped.add(request);
+        }
+        return this;
+    }
+
+    @NonNull
+    String getUrl() {
+        return server.url("/resource.bin").toString();
+    }
+
+    @NonNull
+    byte[] getContent() {
+        return content;
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    @NonNull
+    @Override
+    public MockResponse dispatch(@NonNull final RecordedRequest request) {
+        final int number = requests.incrementAndGet();
+
+        if (expireAfter >= 0 && number > expireAfter) {
+            return new MockResponse().setResponseCode(403);
+        }
+
+        long start = 0;
+        long end = content.length - 1;
+        boolean partial = false;
+        final String range = request.getHeader("Range");
+
+        if (rangeSupported && range != null && range.startsWith("bytes=")) {
+            final String[] limits = range.substring("bytes=".length()).split("-", 2);
+            start = Long.parseLong(limits[0]);
+            if (!limits[1].isEmpty()) {
+                end = Math.min(Long.parseLong(limits[1]), end);
+            }
+
+            if (start > end) {
+                return new MockResponse()
+                        .setResponseCode(416)
+                        .setHeader("Content-Range", "bytes */" + content.length);
+            }
+
+            partial = true;
+        }
+
+        final MockResponse response = new MockResponse()
+                .setResponseCode(partial ? 206 : 200)
+                .setHeader("Accept-Ranges", rangeSupported ? "bytes" : "none");
+
+        if (partial) {
+            response.setHeader("Content-Range",
+                    "bytes " + start + "-" + end + "/" + content.length);
+        }
+
+        if ("HEAD".equals(request.getMethod())) {
+            return response.setHeader("Content-Length", end - start + 1);
+        }
+
+        response.setBody(new Buffer().write(content, (int) start, (int) (end - start + 1)));
+
+        if (bytesPerSecond > 0) {
+            // 10 writes per second
+            response.throttleBody(Math.max(bytesPerSecond / 10, 1), 100, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized (dropped) {
+            if (dropped.contains(number)) {
+                response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            }
+        }
+
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,94 @@
+package us.shandian.giga.get;
+
+import android.os.Handler;
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import us.shandian.giga.io.FileStream;
+import us.shandian.giga.io.StoredFileHelper;
+import us.shandian.giga.service.DownloadManagerService;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs a {@link DownloadMission} outside of {@link DownloadManagerService}, the file is stored
+ * using the {@code java.io} API and the messages for the service are captured.
+ * <p>
+ * The storage and the handler are mocks. The mission logs from its own threads, where static
+ * mocks are not active, so the tests using the harness run with Robolectric. Its clock only
+ * moves when the tests advance it, the speed limiter and the metrics of the mission get a
+ * clock of the JVM instead.
+ * </p>
+ */
+class MissionHarness {
+    final DownloadMission mission;
+    final File file;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int result = -1;
+
+    MissionHarness(@NonNull final String url, @NonNull final File file, final int threadCount)
+            throws Exception {
+        this.file = file;
+
+        final StoredFileHelper storage = mock(StoredFileHelper.class);
+        when(storage.getName()).thenReturn(file.getName());
+        when(storage.existsAsFile()).thenReturn(true);
+        when(storage.canWrite()).thenReturn(true);
+        when(storage.getStream()).thenAnswer(invocation -> new FileStream(file));
+
+        final Handler handler = mock(Handler.class);
+        final Message message = mock(Message.class);
+        when(handler.obtainMessage(anyInt(), any())).thenAnswer(invocation -> {
+            final int what = invocation.getArgument(0);
+
+            if (what == DownloadManagerService.MESSAGE_FINISHED
+                    || what == DownloadManagerService.MESSAGE_ERROR) {
+                result = what;
+                done.countDown();
+            }
+
+            return message;
+        });
+
+        mission = new DownloadMission(new String[]{url}, storage, 'v', null);
+        mission.threadCount = threadCount;
+        mission.metadata = new File(file.getPath() + ".giga");
+        mission.mHandler = handler;
+        mission.clock = () -> System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Starts the mission and waits until is finished or fails.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return {@link DownloadManagerService#MESSAGE_FINISHED} or
+     * {@link DownloadManagerService#MESSAGE_ERROR}
+     * @throws Exception if the mission does not end in time
+     */
+    int run(final long timeout) throws Exception {
+        mission.start();
+
+        if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+            mission.pause();
+            throw new TimeoutException("the mission did not finish in " + timeout + "ms");
+        }
+
+        return result;
+    }
+
+    @NonNull
+    byte[] readFile() throws Exception {
+        return Files.readAllBytes(file.toPath());
+    }
+}
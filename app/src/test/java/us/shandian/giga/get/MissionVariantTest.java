@@ -0,0 +1,46 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+import org.schabi.newpipe.extractor.MediaFormat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The variants are persisted, their format must not change by accident.
+ */
+public class MissionVariantTest {
+    private static final MissionRecoveryInfo VIDEO_ONLY =
+            new MissionRecoveryInfo(MediaFormat.MPEG_4, "720p", true, 0, 'v', null);
+    private static final MissionRecoveryInfo AUDIO =
+            new MissionRecoveryInfo(MediaFormat.M4A, null, false, 128, 'a', null);
+
+    @Test
+    public void variantIsStable() {
+        assertEquals("v:" + MediaFormat.MPEG_4.id + ":720p:1", VIDEO_ONLY.getVariantKey());
+        assertEquals("a:" + MediaFormat.M4A.id + ":128:0", AUDIO.getVariantKey());
+        assertEquals(DownloadMission.VARIANT_VERSION + ";" + VIDEO_ONLY.getVariantKey() + ";"
+                        + AUDIO.getVariantKey(),
+                DownloadMission.getVariant(new MissionRecoveryInfo[]{VIDEO_ONLY, AUDIO}));
+    }
+
+    @Test
+    public void variantKeysAreSplit() {
+        final String variant =
+                DownloadMission.getVariant(new MissionRecoveryInfo[]{VIDEO_ONLY, AUDIO});
+
+        assertArrayEquals(new String[]{VIDEO_ONLY.getVariantKey(), AUDIO.getVariantKey()},
+                DownloadMission.getVariantKeys(variant));
+    }
+
+    @Test
+    public void unknownVariantsAreIgnored() {
+        assertNull(DownloadMission.getVariant(null));
+        assertNull(DownloadMission.getVariantKeys(null));
+        // written by the first version, the debug description of the streams
+        assertNull(DownloadMission.getVariantKeys(
+                "{type=video format=MPEG-4 quality=720p videoOnly=true}"));
+        assertNull(DownloadMission.getVariantKeys("0;" + AUDIO.getVariantKey()));
+    }
+}